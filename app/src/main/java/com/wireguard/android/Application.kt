@@ -21,6 +21,7 @@ import com.wireguard.android.model.TunnelManager
 import com.wireguard.android.util.ApplicationPreferences
 import com.wireguard.android.util.updateAppTheme
 import javax.inject.Inject
+import me.msfjarvis.viscerion.config.Interner
 import timber.log.Timber
 
 @Suppress("Unused")
@@ -66,6 +67,10 @@ class Application : android.app.Application(), InjectorProvider {
 
         updateAppTheme(prefs.useDarkTheme)
 
+        // Tunnels imported from the same provider repeat the same addresses and endpoints, so
+        // let all of the loaded configurations share them.
+        Interner.isEnabled = true
+
         if (Build.VERSION.SDK_INT >= 26) {
             createNotificationChannel()
         }
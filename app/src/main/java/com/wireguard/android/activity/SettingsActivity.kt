@@ -24,6 +24,7 @@ import com.wireguard.android.BuildConfig
 import com.wireguard.android.R
 import com.wireguard.android.backend.GoBackend
 import com.wireguard.android.backend.WgQuickBackend
+import com.wireguard.android.configStore.ConfigStore
 import com.wireguard.android.di.injector
 import com.wireguard.android.fragment.AppListDialogFragment
 import com.wireguard.android.model.TunnelManager
@@ -75,6 +76,7 @@ class SettingsActivity : AppCompatActivity() {
         @Inject lateinit var prefs: ApplicationPreferences
         @Inject lateinit var asyncWorker: AsyncWorker
         @Inject lateinit var backendAsync: BackendAsync
+        @Inject lateinit var configStore: ConfigStore
         @Inject lateinit var tunnelManager: TunnelManager
 
         override fun onAttach(context: Context) {
@@ -229,7 +231,7 @@ class SettingsActivity : AppCompatActivity() {
             val ctx = requireContext()
             val snackbarView = requireNotNull(requireActivity().findViewById<View>(android.R.id.content))
             tunnelManager.getTunnels().thenAccept { tunnels ->
-                ZipExporter.exportZip(asyncWorker, ctx.contentResolver, fileUri, tunnels) { throwable ->
+                ZipExporter.exportZip(asyncWorker, configStore, ctx.contentResolver, fileUri, tunnels) { throwable ->
                     if (throwable != null) {
                         val error = ExceptionLoggers.unwrapMessage(throwable)
                         val message = ctx.getString(R.string.zip_export_error, error)
@@ -65,6 +65,27 @@ interface Backend {
     @Throws(Exception::class)
     fun setState(tunnel: Tunnel, state: State): State
 
+    /**
+     * Bring up several tunnels at once, as when restoring the tunnels that were running before
+     * the device rebooted. Backends that can only run one tunnel at a time bring up the first
+     * tunnel of the list and fail the others.
+     *
+     * @param tunnels The tunnels to bring up, most wanted first. Their configurations must be
+     * loaded.
+     * @return The outcome for every tunnel: null if it is up, or else why it could not be brought
+     * up.
+     */
+    fun restore(tunnels: List<Tunnel>): Map<Tunnel, Exception?> {
+        return tunnels.associateWith { tunnel ->
+            try {
+                setState(tunnel, State.UP)
+                null
+            } catch (e: Exception) {
+                e
+            }
+        }
+    }
+
     /**
      * Determine version of underlying backend.
      *
@@ -19,13 +19,15 @@ import com.wireguard.android.model.TunnelManager
 import com.wireguard.android.util.ApplicationPreferences
 import com.wireguard.android.util.ExceptionLoggers
 import com.wireguard.android.util.SharedLibraryLoader
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.util.concurrent.TimeUnit
 import java.util.concurrent.TimeoutException
 import java9.util.concurrent.CompletableFuture
 import javax.inject.Inject
 import me.msfjarvis.viscerion.config.Config
-import me.msfjarvis.viscerion.crypto.Key
-import me.msfjarvis.viscerion.crypto.KeyFormatException
+import me.msfjarvis.viscerion.config.ConfigDiff
+import me.msfjarvis.viscerion.config.InetNetworkSet
 import timber.log.Timber
 
 class GoBackend @Inject constructor(
@@ -33,15 +35,29 @@ class GoBackend @Inject constructor(
     private val prefs: ApplicationPreferences
 ) : Backend {
 
-    private var currentTunnel: Tunnel? = null
-    private var currentTunnelHandle = -1
+    @Volatile private var currentTunnel: Tunnel? = null
+    @Volatile private var currentTunnelHandle = -1
+    // Statistics are sampled off the worker thread, and the Go side does not expect its tunnel
+    // handles to be looked up while they are being added or removed.
+    private val handleLock = Any()
 
-    private external fun wgGetConfig(handle: Int): String
+    private var statisticsBuffer: ByteBuffer =
+        ByteBuffer.allocateDirect(STATISTICS_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN)
 
     private external fun wgGetSocketV4(handle: Int): Int
 
     private external fun wgGetSocketV6(handle: Int): Int
 
+    /**
+     * Writes the statistics of every peer of the tunnel into the direct `buffer` as fixed-size
+     * binary records, as laid out in api-android.go, so that polling them allocates no strings.
+     * Returns the number of bytes needed, which may exceed the capacity of `buffer` if nothing
+     * was written, or a negative value on error.
+     */
+    private external fun wgGetStatistics(handle: Int, buffer: ByteBuffer): Int
+
+    private external fun wgSetConfig(handle: Int, settings: String): Int
+
     private external fun wgTurnOff(handle: Int)
 
     private external fun wgTurnOn(ifName: String, tunFd: Int, settings: String): Int
@@ -52,8 +68,28 @@ class GoBackend @Inject constructor(
         SharedLibraryLoader.loadSharedLibrary(context, "wg-go")
     }
 
+    // Only one tunnel can be up at a time, so changes to different tunnels must not interleave.
+    @Synchronized
     override fun applyConfig(tunnel: Tunnel, config: Config): Config {
         if (tunnel.state == Tunnel.State.UP) {
+            val oldConfig = tunnel.getConfig()
+            if (oldConfig != null && tunnel == currentTunnel && currentTunnelHandle != -1) {
+                val diff = ConfigDiff.between(oldConfig, config)
+                // Peer and key changes can be applied to the running device, but everything
+                // that goes into the VpnService builder requires a new tun interface.
+                if (!diff.isTunnelChanged) {
+                    if (!diff.isEmpty) {
+                        Timber.d("Updating running tunnel ${tunnel.name} in place")
+                        val ret = synchronized(handleLock) {
+                            wgSetConfig(currentTunnelHandle, diff.toWgUserspaceString())
+                        }
+                        if (ret < 0) {
+                            throw Exception(context.getString(R.string.tunnel_update_error, ret))
+                        }
+                    }
+                    return config
+                }
+            }
             // Restart the tunnel to apply the new config.
             setStateInternal(tunnel, tunnel.getConfig(), Tunnel.State.DOWN)
             try {
@@ -81,50 +117,61 @@ class GoBackend @Inject constructor(
     }
 
     override fun getStatistics(tunnel: Tunnel): Statistics? {
-        val stats = Statistics()
-        if (tunnel != currentTunnel) {
-            return stats
-        }
-        val config = wgGetConfig(currentTunnelHandle)
-        var key: Key? = null
-        var rx: Long = 0
-        var tx: Long = 0
-        for (line in config.split("\\n").toTypedArray()) {
-            if (line.startsWith("public_key=")) {
-                if (key != null) {
-                    stats.add(key, rx, tx)
-                }
-                rx = 0
-                tx = 0
-                key = try {
-                    Key.fromHex(line.substring(11))
-                } catch (_: KeyFormatException) {
-                    null
-                }
-            } else if (line.startsWith("rx_bytes=")) {
-                if (key == null) {
-                    continue
-                }
-                rx = try {
-                    line.substring(9).toLong()
-                } catch (_: NumberFormatException) {
-                    0
-                }
-            } else if (line.startsWith("tx_bytes=")) {
-                if (key == null) {
-                    continue
+        synchronized(handleLock) {
+            if (tunnel != currentTunnel) {
+                return Statistics()
+            }
+            val stats = tunnel.statisticsStore
+            var buffer = statisticsBuffer
+            var length = wgGetStatistics(currentTunnelHandle, buffer)
+            if (length > buffer.capacity()) {
+                // More peers than fit in the current buffer; grow it and ask again.
+                buffer = ByteBuffer.allocateDirect(length * 2).order(ByteOrder.LITTLE_ENDIAN)
+                statisticsBuffer = buffer
+                length = wgGetStatistics(currentTunnelHandle, buffer)
+            }
+            if (length < STATISTICS_HEADER_SIZE || length > buffer.capacity()) {
+                return stats
+            }
+            val recordSize = buffer.getInt(0)
+            val count = buffer.getInt(4)
+            if (recordSize < STATISTICS_RECORD_SIZE || count < 0 ||
+                count.toLong() * recordSize > length - STATISTICS_HEADER_SIZE
+            ) {
+                return stats
+            }
+            if (!stats.beginSample()) {
+                return stats
+            }
+            val ipv4 = ByteArray(4)
+            val ipv6 = ByteArray(16)
+            for (i in 0 until count) {
+                val offset = STATISTICS_HEADER_SIZE + i * recordSize
+                val endpoint = when (buffer.get(offset + 58).toInt()) {
+                    4 -> ipv4
+                    16 -> ipv6
+                    else -> null
                 }
-                tx = try {
-                    line.substring(9).toLong()
-                } catch (_: NumberFormatException) {
-                    0
+                if (endpoint != null) {
+                    buffer.position(offset + 64)
+                    buffer.get(endpoint)
                 }
+                stats.add(
+                    buffer,
+                    offset,
+                    buffer.getLong(offset + 32),
+                    buffer.getLong(offset + 40),
+                    buffer.getLong(offset + 48),
+                    endpoint,
+                    buffer.getShort(offset + 56).toInt() and 0xffff
+                )
             }
+            stats.endSample()
+            return stats
         }
-        if (key != null) stats.add(key, rx, tx)
-        return stats
     }
 
+    @Synchronized
     override fun setState(tunnel: Tunnel, state: Tunnel.State): Tunnel.State {
         val originalState = getState(tunnel)
         var finalState = state
@@ -140,6 +187,24 @@ class GoBackend @Inject constructor(
         return getState(tunnel)
     }
 
+    /**
+     * Only one userspace tunnel can run, so this brings up the first of `tunnels`, unless one of
+     * them is already running, and fails the others without touching the VPN service for them.
+     */
+    @Synchronized
+    override fun restore(tunnels: List<Tunnel>): Map<Tunnel, Exception?> {
+        val chosen = tunnels.firstOrNull { it == currentTunnel } ?: tunnels.firstOrNull()
+        return tunnels.associateWith { tunnel ->
+            try {
+                check(tunnel == chosen) { context.getString(R.string.multiple_tunnels_error) }
+                setState(tunnel, Tunnel.State.UP)
+                null
+            } catch (e: Exception) {
+                e
+            }
+        }
+    }
+
     override fun getVersion(): String {
         return wgVersion()
     }
@@ -209,10 +274,10 @@ class GoBackend @Inject constructor(
                 builder.addDnsServer(dns.hostAddress)
             }
 
-            config.peers.forEach { peer ->
-                peer.allowedIps.forEach { addr ->
-                    builder.addRoute(addr.address, addr.mask)
-                }
+            // Install the smallest set of routes covering every peer's allowed IPs, rather than
+            // one route per (possibly overlapping or adjacent) allowed IP.
+            InetNetworkSet.of(config.peers.flatMap { it.allowedIps }).toNetworks().forEach { addr ->
+                builder.addRoute(addr.address, addr.mask)
             }
 
             if (Build.VERSION.SDK_INT >= 29) {
@@ -231,7 +296,7 @@ class GoBackend @Inject constructor(
                     throw Exception(context.getString(R.string.tun_create_error))
                 }
                 Timber.d("Go backend v%s", wgVersion())
-                currentTunnelHandle = wgTurnOn(tunnel.name, tun.detachFd(), goConfig)
+                currentTunnelHandle = synchronized(handleLock) { wgTurnOn(tunnel.name, tun.detachFd(), goConfig) }
             }
             if (currentTunnelHandle < 0) {
                 throw Exception(context.getString(R.string.tunnel_on_error, currentTunnelHandle))
@@ -250,9 +315,11 @@ class GoBackend @Inject constructor(
                 return
             }
 
-            wgTurnOff(currentTunnelHandle)
-            currentTunnel = null
-            currentTunnelHandle = -1
+            synchronized(handleLock) {
+                wgTurnOff(currentTunnelHandle)
+                currentTunnel = null
+                currentTunnelHandle = -1
+            }
         }
     }
 
@@ -305,6 +372,10 @@ class GoBackend @Inject constructor(
     }
 
     companion object {
+        private const val STATISTICS_HEADER_SIZE = 8
+        private const val STATISTICS_RECORD_SIZE = 80
+        // Enough for 51 peers before the buffer needs to grow.
+        private const val STATISTICS_BUFFER_SIZE = 4096
         private var vpnService = CompletableFuture<VpnService>()
     }
 }
@@ -9,6 +9,7 @@ import android.app.Notification
 import android.app.PendingIntent
 import android.content.Context
 import android.content.Intent
+import android.os.SystemClock
 import androidx.core.app.NotificationCompat
 import androidx.core.app.NotificationManagerCompat
 import com.wireguard.android.R
@@ -23,9 +24,11 @@ import com.wireguard.android.util.RootShell
 import com.wireguard.android.util.ToolsInstaller
 import java.io.File
 import java.io.FileOutputStream
-import java.nio.charset.StandardCharsets
+import java.io.IOException
 import javax.inject.Inject
 import me.msfjarvis.viscerion.config.Config
+import me.msfjarvis.viscerion.config.ConfigDiff
+import me.msfjarvis.viscerion.config.InetAddressUtils
 import me.msfjarvis.viscerion.crypto.Key
 import timber.log.Timber
 
@@ -42,6 +45,13 @@ class WgQuickBackend @Inject constructor(
 
     private val localTemporaryDir: File = File(context.cacheDir, "tmp")
     private var notificationManager = NotificationManagerCompat.from(context)
+    private var snapshot: Snapshot? = null
+
+    /**
+     * How long, in milliseconds, the output of `wg show all dump` is reused to answer queries
+     * about the state and statistics of tunnels. Changing state always discards it.
+     */
+    var snapshotTtl = DEFAULT_SNAPSHOT_TTL
 
     @Throws(Exception::class)
     override fun getVersion(): String {
@@ -59,7 +69,18 @@ class WgQuickBackend @Inject constructor(
     @Throws(Exception::class)
     override fun applyConfig(tunnel: Tunnel, config: Config): Config {
         if (tunnel.state == State.UP) {
+            val oldConfig = tunnel.getConfig()
+            if (oldConfig != null) {
+                addGlobalExclusions(config)
+                val diff = ConfigDiff.between(oldConfig, config)
+                // Only the addresses, DNS servers, MTU and routes need wg-quick to set them up, so
+                // anything else can be synced onto the running interface without a restart.
+                if (!diff.isTunnelChanged && (diff.isEmpty || syncConfig(tunnel, config))) {
+                    return config
+                }
+            }
             // Restart the tunnel to apply the new config.
+            invalidateSnapshot()
             setStateInternal(tunnel, State.DOWN, tunnel.getConfig())
             try {
                 setStateInternal(tunnel, State.UP, config)
@@ -67,26 +88,15 @@ class WgQuickBackend @Inject constructor(
                 // The new configuration didn't work, so try to go back to the old one.
                 setStateInternal(tunnel, State.UP, tunnel.getConfig())
                 throw e
+            } finally {
+                invalidateSnapshot()
             }
         }
         return config
     }
 
     override fun enumerate(): Set<String> {
-        val output = ArrayList<String>()
-        // Don't throw an exception here or nothing will show up in the UI.
-        try {
-            toolsInstaller.ensureToolsAvailable()
-            if (rootShell.run(output, "wg show interfaces") != 0 || output.isEmpty()) {
-                return emptySet()
-            }
-        } catch (e: Exception) {
-            Timber.w(e, "Unable to enumerate running tunnels")
-            return emptySet()
-        }
-
-        // wg puts all interface names on the same line. Split them into separate elements.
-        return output[0].split(" ".toRegex()).toSet()
+        return snapshot()?.peers?.keys ?: emptySet()
     }
 
     override fun getState(tunnel: Tunnel): State {
@@ -98,34 +108,23 @@ class WgQuickBackend @Inject constructor(
     }
 
     override fun getStatistics(tunnel: Tunnel): Statistics? {
-        val stats = Statistics()
-        val output = ArrayList<String>()
-        try {
-            if (rootShell.run(output, String.format("wg show '%s' transfer", tunnel.name)) != 0) {
-                return stats
-            }
-        } catch (_: Exception) {
+        val stats = tunnel.statisticsStore
+        val snapshot = snapshot() ?: return stats
+        val peers = snapshot.peers[tunnel.name] ?: return stats
+        // Several polls may be served by the same snapshot, but it only counts as one sample.
+        if (!stats.beginSample(snapshot.time)) {
             return stats
         }
-        for (line in output) {
-            val parts = line.split("\\t".toRegex()).toTypedArray()
-            if (parts.size != 3) {
-                continue
-            }
-            try {
-                stats.add(
-                    Key.fromBase64(parts[0]),
-                    parts[1].toLong(),
-                    parts[2].toLong()
-                )
-            } catch (_: Exception) {
-            }
+        for (peer in peers) {
+            stats.add(peer.publicKey, peer.rx, peer.tx, peer.latestHandshake, peer.endpointAddress, peer.endpointPort)
         }
+        stats.endSample()
         return stats
     }
 
     @Throws(Exception::class)
     override fun setState(tunnel: Tunnel, state: State): State {
+        invalidateSnapshot()
         var stateToSet = state
         val originalState = getState(tunnel)
         if (stateToSet == State.TOGGLE) {
@@ -140,10 +139,75 @@ class WgQuickBackend @Inject constructor(
         }
         Timber.d("Changing tunnel %s to state %s", tunnel.name, stateToSet)
         toolsInstaller.ensureToolsAvailable()
-        setStateInternal(tunnel, stateToSet, tunnel.getConfig())
+        try {
+            setStateInternal(tunnel, stateToSet, tunnel.getConfig())
+        } finally {
+            invalidateSnapshot()
+        }
         return getState(tunnel)
     }
 
+    /**
+     * Brings up every tunnel that is not already running with a single root shell script, rather
+     * than paying for one shell round-trip per tunnel, and reads back the exit status of each
+     * `wg-quick up` from its output.
+     */
+    override fun restore(tunnels: List<Tunnel>): Map<Tunnel, Exception?> {
+        val results = LinkedHashMap<Tunnel, Exception?>()
+        val running = enumerate()
+        val toStart = ArrayList<Tunnel>()
+        val tempFiles = ArrayList<File>()
+        for (tunnel in tunnels) {
+            if (tunnel.name in running) {
+                results[tunnel] = null
+                continue
+            }
+            try {
+                val config = requireNotNull(tunnel.getConfig()) { "Trying to set state with a null config" }
+                addGlobalExclusions(config)
+                val tempFile = File(localTemporaryDir, tunnel.name + CONFIGURATION_FILE_SUFFIX)
+                FileOutputStream(tempFile, false).use { stream -> config.writeWgQuick(stream) }
+                toStart.add(tunnel)
+                tempFiles.add(tempFile)
+            } catch (e: Exception) {
+                results[tunnel] = e
+            }
+        }
+        if (toStart.isEmpty()) {
+            return results
+        }
+        Timber.d("Restoring tunnels %s", toStart.joinToString { it.name })
+        invalidateSnapshot()
+        val output = ArrayList<String>()
+        try {
+            toolsInstaller.ensureToolsAvailable()
+            val script = StringBuilder("cat /sys/module/wireguard/version >/dev/null || exit 1")
+            for (tempFile in tempFiles) {
+                script.append("; wg-quick up '").append(tempFile.absolutePath).append("' >/dev/null; echo \$?")
+            }
+            val result = rootShell.run(output, script.toString())
+            if (result != 0) {
+                throw Exception(context.getString(R.string.tunnel_config_error, result))
+            }
+            toStart.forEachIndexed { i, tunnel ->
+                val status = output.getOrNull(i)?.toIntOrNull()
+                    ?: throw IOException("Unable to read exit status of ${tunnel.name}")
+                if (status == 0) {
+                    postNotification(State.UP, tunnel)
+                    results[tunnel] = null
+                } else {
+                    results[tunnel] = Exception(context.getString(R.string.tunnel_config_error, status))
+                }
+            }
+        } catch (e: Exception) {
+            toStart.forEach { results.getOrPut(it) { e } }
+        } finally {
+            tempFiles.forEach { it.delete() }
+            invalidateSnapshot()
+        }
+        return results
+    }
+
     override fun postNotification(state: State, tunnel: Tunnel) {
         if (state == State.UP) {
             val intent = Intent(context, LaunchActivity::class.java)
@@ -180,12 +244,9 @@ class WgQuickBackend @Inject constructor(
         // returns identical configurations. Second, this is far, far less work to handle than
         // the assorted hacks I had in place earlier throughout config. Being able to remove those
         // made it possible to test the entire config package inside the JVM with little extra effort.
-        config.interfaze.excludedApplications.addAll(prefs.exclusions)
+        addGlobalExclusions(config)
         val tempFile = File(localTemporaryDir, tunnel.name + CONFIGURATION_FILE_SUFFIX)
-        FileOutputStream(
-            tempFile,
-            false
-        ).use { stream -> stream.write(config.toWgQuickString().toByteArray(StandardCharsets.UTF_8)) }
+        FileOutputStream(tempFile, false).use { stream -> config.writeWgQuick(stream) }
         var command = "wg-quick $state '${tempFile.absolutePath}'"
         if (state == State.UP) {
             command = "cat /sys/module/wireguard/version && $command"
@@ -198,4 +259,128 @@ class WgQuickBackend @Inject constructor(
             else -> throw Exception(context.getString(R.string.tunnel_config_error, result))
         }
     }
+
+    private fun addGlobalExclusions(config: Config) {
+        val excludedApplications = config.interfaze.excludedApplications
+        for (application in prefs.exclusions) {
+            if (application !in excludedApplications) {
+                excludedApplications.add(application)
+            }
+        }
+    }
+
+    /**
+     * Applies `config` to the running interface with `wg syncconf`, which only touches the peers
+     * and keys that actually changed. Returns false if that failed, for instance because the
+     * installed tools predate `syncconf`, so that the caller can restart the tunnel instead.
+     */
+    private fun syncConfig(tunnel: Tunnel, config: Config): Boolean {
+        val tempFile = File(localTemporaryDir, tunnel.name + CONFIGURATION_FILE_SUFFIX)
+        return try {
+            FileOutputStream(tempFile, false).use { stream -> config.writeWgStripped(stream) }
+            val result = rootShell.run(null, "wg syncconf '${tunnel.name}' '${tempFile.absolutePath}'")
+            invalidateSnapshot()
+            if (result != 0) {
+                Timber.w("wg syncconf returned %d, restarting %s instead", result, tunnel.name)
+            }
+            result == 0
+        } catch (e: Exception) {
+            Timber.w(e, "Unable to sync the configuration of %s", tunnel.name)
+            false
+        } finally {
+            tempFile.delete()
+        }
+    }
+
+    @Synchronized
+    private fun invalidateSnapshot() {
+        snapshot = null
+    }
+
+    /**
+     * Returns the state of every running interface and its peers, as reported by a single
+     * `wg show all dump`. The result is reused for [snapshotTtl] milliseconds, so that polling
+     * the state and statistics of several tunnels costs one root shell round-trip.
+     */
+    @Synchronized
+    private fun snapshot(): Snapshot? {
+        val now = SystemClock.elapsedRealtime()
+        snapshot?.let { if (now - it.time < snapshotTtl) return it }
+        val output = ArrayList<String>()
+        // Don't throw an exception here or nothing will show up in the UI.
+        try {
+            toolsInstaller.ensureToolsAvailable()
+            if (rootShell.run(output, "wg show all dump") != 0) {
+                return null
+            }
+        } catch (e: Exception) {
+            Timber.w(e, "Unable to enumerate running tunnels")
+            return null
+        }
+        return Snapshot.parse(now, output).also { snapshot = it }
+    }
+
+    private class PeerDump(
+        val publicKey: Key,
+        val endpointAddress: ByteArray?,
+        val endpointPort: Int,
+        val latestHandshake: Long,
+        val rx: Long,
+        val tx: Long
+    )
+
+    private class Snapshot(val time: Long, val peers: Map<String, List<PeerDump>>) {
+        companion object {
+            /**
+             * Parses the output of `wg show all dump`. Every line starts with the interface name;
+             * interfaces are followed by their private key, public key, listen port and fwmark,
+             * and peers by their public key, preshared key, endpoint, allowed IPs, latest
+             * handshake, rx, tx and persistent keepalive.
+             */
+            fun parse(time: Long, lines: List<String>): Snapshot {
+                val peers = LinkedHashMap<String, ArrayList<PeerDump>>()
+                for (line in lines) {
+                    val parts = line.split('\t')
+                    when (parts.size) {
+                        5 -> peers.getOrPut(parts[0]) { ArrayList() }
+                        9 -> try {
+                            peers.getOrPut(parts[0]) { ArrayList() }.add(parsePeer(parts))
+                        } catch (_: Exception) {
+                        }
+                    }
+                }
+                return Snapshot(time, peers)
+            }
+
+            private fun parsePeer(parts: List<String>): PeerDump {
+                val endpoint = parts[3]
+                val separator = endpoint.lastIndexOf(':')
+                val address = if (separator > 0) {
+                    try {
+                        InetAddressUtils.parse(endpoint.substring(0, separator)).address
+                    } catch (_: Exception) {
+                        null
+                    }
+                } else {
+                    null
+                }
+                return PeerDump(
+                    Key.fromBase64(parts[1]),
+                    address,
+                    if (address != null) endpoint.substring(separator + 1).toInt() else 0,
+                    parts[5].toLong() * 1000,
+                    parts[6].toLong(),
+                    parts[7].toLong()
+                )
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Comfortably below the one second interval at which the UI polls statistics, so that
+         * every poll still sees fresh counters.
+         */
+        const val DEFAULT_SNAPSHOT_TTL = 750L
+    }
 }
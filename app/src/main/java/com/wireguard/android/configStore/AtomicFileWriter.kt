@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import android.system.ErrnoException
+import android.system.Os
+import android.system.OsConstants
+import java.io.BufferedOutputStream
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import timber.log.Timber
+
+/**
+ * Replaces files in a directory atomically: the new contents are written to a temporary file,
+ * synced to disk and renamed over the target, so that a crash leaves either the old or the new
+ * file behind, never a truncated one.
+ *
+ * Making the renames themselves durable takes a sync of the directory. Writers that finish while
+ * such a sync is running wait for it and then share a single sync between them, so a burst of
+ * writes from several threads costs one directory sync per round rather than one per file.
+ *
+ * Temporary files left behind by a crash are deleted when the writer is created, so a directory
+ * should only ever have one writer.
+ */
+
+class AtomicFileWriter(
+    private val directory: File,
+    private val syncDirectory: (File) -> Unit = ::fsync
+) {
+    private val lock = ReentrantLock()
+    private val synced = lock.newCondition()
+    private var requestedGeneration = 0L
+    private var syncedGeneration = 0L
+    private var isSyncing = false
+
+    init {
+        directory.listFiles { file -> file.name.startsWith('.') && file.name.endsWith(TEMPORARY_FILE_SUFFIX) }
+            ?.forEach { file ->
+                if (!file.delete()) {
+                    Timber.w("Unable to delete stale temporary file %s", file.name)
+                }
+            }
+    }
+
+    /**
+     * The number of threads waiting in [sync] for another thread's directory sync to finish.
+     */
+    internal val waitingWriters: Int
+        get() = lock.withLock { lock.getWaitQueueLength(synced) }
+
+    /**
+     * Writes `file` atomically and durably with what `write` puts into the stream.
+     */
+    @Throws(IOException::class)
+    fun write(file: File, write: (OutputStream) -> Unit) {
+        replace(file, write)
+        sync()
+    }
+
+    /**
+     * Writes `file` atomically, without waiting for the rename to be durable; call [sync] once
+     * after a batch of such writes.
+     */
+    @Throws(IOException::class)
+    fun replace(file: File, write: (OutputStream) -> Unit) {
+        val tempFile = File(directory, ".${file.name}$TEMPORARY_FILE_SUFFIX")
+        try {
+            FileOutputStream(tempFile, false).use { stream ->
+                BufferedOutputStream(stream).let {
+                    write(it)
+                    it.flush()
+                }
+                stream.fd.sync()
+            }
+            if (!tempFile.renameTo(file)) {
+                throw IOException("Unable to replace ${file.name}")
+            }
+        } catch (e: IOException) {
+            tempFile.delete()
+            throw e
+        }
+    }
+
+    /**
+     * Makes every rename that happened before this call durable, joining the next directory sync
+     * if another thread is already syncing.
+     */
+    @Throws(IOException::class)
+    fun sync() {
+        val target = lock.withLock {
+            val generation = ++requestedGeneration
+            while (syncedGeneration < generation) {
+                if (!isSyncing) {
+                    isSyncing = true
+                    return@withLock requestedGeneration
+                }
+                synced.await()
+            }
+            return
+        }
+        var error: IOException? = null
+        try {
+            syncDirectory(directory)
+        } catch (e: IOException) {
+            error = e
+        }
+        lock.withLock {
+            isSyncing = false
+            if (error == null) {
+                syncedGeneration = target
+            }
+            synced.signalAll()
+        }
+        error?.let { throw it }
+    }
+
+    companion object {
+        const val TEMPORARY_FILE_SUFFIX = ".tmp"
+
+        @Throws(IOException::class)
+        private fun fsync(directory: File) {
+            try {
+                val fd = Os.open(directory.path, OsConstants.O_RDONLY, 0)
+                try {
+                    Os.fsync(fd)
+                } finally {
+                    Os.close(fd)
+                }
+            } catch (e: ErrnoException) {
+                throw IOException("Unable to sync ${directory.name}", e)
+            }
+        }
+    }
+}
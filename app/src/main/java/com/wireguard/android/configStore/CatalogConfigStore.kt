@@ -0,0 +1,330 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.IOException
+import java.nio.ByteBuffer
+import me.msfjarvis.viscerion.config.BadConfigException
+import me.msfjarvis.viscerion.config.Config
+import me.msfjarvis.viscerion.config.ConfigReader
+import me.msfjarvis.viscerion.crypto.Key
+import timber.log.Timber
+
+/**
+ * Configuration store that keeps a binary catalog of every tunnel next to the files of a
+ * [FileBackedConfigStore], so that tunnels can be listed and described without parsing their
+ * configurations.
+ *
+ * The catalog records the name, public key, first endpoint, peer count, modification time, size
+ * and CRC-32 of each configuration file. It is read in full on first use and brought up to date
+ * incrementally on [enumerate] and [summarize]: only files whose modification time or size
+ * changed are read again, and only those whose contents changed are parsed, all of them in
+ * parallel. Configurations themselves are only loaded on demand, from the [ParseCache] in
+ * `cacheDir` whenever their file's contents are unchanged.
+ *
+ * The catalog and the parse cache hold everything but private keys in the clear, including for
+ * an [EncryptedConfigStore]; they only spare it the decryption when listing tunnels.
+ */
+class CatalogConfigStore(
+    cacheDir: File,
+    private val store: FileBackedConfigStore
+) : ConfigStore {
+    private val catalogFile = File(store.filesDir, CATALOG_FILE_NAME)
+    private val parseCache = ParseCache(File(cacheDir, PARSE_CACHE_DIRECTORY_NAME))
+    private var entries: HashMap<String, Entry>? = null
+
+    /**
+     * Summary of a configuration, as recorded in the catalog.
+     */
+    private class Entry(
+        val name: String,
+        val publicKey: Key?,
+        val endpoint: String?,
+        val peerCount: Int,
+        internal val lastModified: Long,
+        internal val size: Long,
+        internal val hash: Long
+    )
+
+    @Throws(Exception::class)
+    override fun create(name: String, config: Config): Config {
+        return store.create(name, config).also { update(mapOf(name to it)) }
+    }
+
+    override fun createAll(configs: Map<String, Config>): Map<String, Exception?> {
+        return store.createAll(configs).also { results ->
+            update(configs.filterKeys { results[it] == null })
+        }
+    }
+
+    @Throws(Exception::class)
+    override fun delete(name: String) {
+        store.delete(name)
+        parseCache.remove(name)
+        synchronized(this) {
+            if (catalog().remove(name) != null) {
+                persist()
+            }
+        }
+    }
+
+    override fun deleteAll(names: Collection<String>): Map<String, Exception?> {
+        val results = store.deleteAll(names)
+        val deleted = results.filterValues { it == null }.keys
+        deleted.forEach { parseCache.remove(it) }
+        synchronized(this) {
+            if (catalog().keys.removeAll(deleted)) {
+                persist()
+            }
+        }
+        return results
+    }
+
+    @Synchronized
+    override fun enumerate(): Set<String> {
+        refresh()
+        return catalog().keys.toSet()
+    }
+
+    @Synchronized
+    override fun summarize(): Collection<ConfigSummary> {
+        refresh()
+        return catalog().values.map { ConfigSummary(it.name, it.publicKey, it.endpoint, it.peerCount) }
+    }
+
+    @Throws(IOException::class, BadConfigException::class)
+    override fun load(name: String): Config {
+        val contents = store.decode(name, fileFor(name).readBytes())
+        parseCache.load(name, contents)?.let { return it }
+        return Config.parse(ByteArrayInputStream(contents)).also { parseCache.store(name, contents, it) }
+    }
+
+    override fun loadAll(names: Collection<String>): Map<String, Config.ParseResult> {
+        val results = HashMap<String, Config.ParseResult>()
+        val sources = HashMap<String, ByteArray>()
+        for (name in names) {
+            val contents = try {
+                store.decode(name, fileFor(name).readBytes())
+            } catch (e: IOException) {
+                results[name] = Config.ParseResult(null, e)
+                continue
+            }
+            val cached = parseCache.load(name, contents)
+            if (cached != null) {
+                results[name] = Config.ParseResult(cached, null)
+            } else {
+                sources[name] = contents
+            }
+        }
+        // Only the configurations that changed since they were cached need parsing.
+        Config.parseAll(sources.mapValues { (_, bytes) -> { ByteArrayInputStream(bytes) } }).forEach { (name, result) ->
+            result.config?.let { parseCache.store(name, sources.getValue(name), it) }
+            results[name] = result
+        }
+        return results
+    }
+
+    @Throws(Exception::class)
+    override fun open(name: String): ConfigReader {
+        return store.open(name)
+    }
+
+    @Throws(Exception::class)
+    override fun rename(name: String, replacement: String) {
+        store.rename(name, replacement)
+        parseCache.rename(name, replacement)
+        synchronized(this) {
+            val catalog = catalog()
+            val entry = catalog.remove(name)
+            val file = fileFor(replacement)
+            if (entry != null && file.lastModified() == entry.lastModified && file.length() == entry.size) {
+                catalog[replacement] = Entry(
+                    replacement, entry.publicKey, entry.endpoint, entry.peerCount, entry.lastModified, entry.size, entry.hash
+                )
+                persist()
+            } else {
+                refresh()
+            }
+        }
+    }
+
+    @Throws(Exception::class)
+    override fun save(name: String, config: Config): Config {
+        return store.save(name, config).also { update(mapOf(name to it)) }
+    }
+
+    private fun fileFor(name: String): File {
+        return store.fileFor(name)
+    }
+
+    private fun catalog(): HashMap<String, Entry> {
+        return entries ?: read().also { entries = it }
+    }
+
+    /**
+     * Records freshly written configurations, writing the catalog out once for all of them.
+     */
+    @Synchronized
+    private fun update(configs: Map<String, Config>) {
+        if (configs.isEmpty()) {
+            return
+        }
+        for ((name, config) in configs) {
+            val file = fileFor(name)
+            try {
+                val bytes = file.readBytes()
+                catalog()[name] = entryFor(name, config, file.lastModified(), bytes)
+                parseCache.store(name, store.decode(name, bytes), config)
+            } catch (e: IOException) {
+                Timber.w(e, "Unable to catalog %s", name)
+                catalog().remove(name)
+            }
+        }
+        persist()
+    }
+
+    /**
+     * Brings the catalog in line with the configuration files that are actually present.
+     */
+    private fun refresh() {
+        val catalog = catalog()
+        val names = store.enumerate()
+        var changed = catalog.keys.retainAll(names)
+        val files = HashMap<String, ByteArray>()
+        val sources = HashMap<String, ByteArray>()
+        for (name in names) {
+            val file = fileFor(name)
+            val lastModified = file.lastModified()
+            val size = file.length()
+            val entry = catalog[name]
+            if (entry != null && entry.lastModified == lastModified && entry.size == size) {
+                continue
+            }
+            changed = true
+            try {
+                val bytes = file.readBytes()
+                val hash = ParseCache.hash(bytes)
+                if (entry != null && entry.hash == hash) {
+                    catalog[name] = Entry(name, entry.publicKey, entry.endpoint, entry.peerCount, lastModified, size, hash)
+                } else {
+                    sources[name] = store.decode(name, bytes)
+                    files[name] = bytes
+                }
+            } catch (e: IOException) {
+                Timber.w(e, "Unable to catalog %s", name)
+                catalog[name] = Entry(name, null, null, 0, lastModified, size, 0)
+            }
+        }
+        // On first use this is every tunnel, so parse them together rather than one by one.
+        Config.parseAll(sources.mapValues { (_, bytes) -> { ByteArrayInputStream(bytes) } }).forEach { (name, result) ->
+            val file = fileFor(name)
+            val bytes = files.getValue(name)
+            val config = result.config
+            catalog[name] = if (config != null) {
+                parseCache.store(name, sources.getValue(name), config)
+                entryFor(name, config, file.lastModified(), bytes)
+            } else {
+                // Keep listing the tunnel, so that loading it reports what is wrong with it.
+                Timber.w(result.error, "Unable to catalog %s", name)
+                Entry(name, null, null, 0, file.lastModified(), bytes.size.toLong(), 0)
+            }
+        }
+        if (changed) {
+            persist()
+        }
+    }
+
+    private fun read(): HashMap<String, Entry> {
+        val catalog = HashMap<String, Entry>()
+        if (!catalogFile.isFile) {
+            return catalog
+        }
+        try {
+            val buffer = ByteBuffer.wrap(catalogFile.readBytes())
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return catalog
+            }
+            repeat(buffer.getInt()) {
+                val entry = readEntry(buffer)
+                catalog[entry.name] = entry
+            }
+        } catch (e: Exception) {
+            // The catalog is only a cache, so start over rather than fail.
+            Timber.w(e, "Discarding unreadable tunnel catalog")
+            catalog.clear()
+        }
+        return catalog
+    }
+
+    private fun persist() {
+        val encoded = catalog().values.map { encode(it) }
+        val buffer = ByteBuffer.allocate(HEADER_SIZE + encoded.sumBy { it.size })
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(encoded.size)
+        encoded.forEach { buffer.put(it) }
+        try {
+            // The catalog can always be rebuilt, so there is no need to wait for a directory sync.
+            store.writer.replace(catalogFile) { stream -> stream.write(buffer.array()) }
+        } catch (e: IOException) {
+            Timber.w(e, "Unable to write tunnel catalog")
+        }
+    }
+
+    companion object {
+        const val CATALOG_FILE_NAME = "tunnels.catalog"
+        const val PARSE_CACHE_DIRECTORY_NAME = "parsed"
+        private const val MAGIC = 0x57474354 // "WGCT"
+        private const val VERSION = 1
+        private const val HEADER_SIZE = 12
+
+        private fun entryFor(name: String, config: Config, lastModified: Long, bytes: ByteArray): Entry {
+            return Entry(
+                name,
+                config.interfaze.keyPair.publicKey,
+                config.peers.firstOrNull()?.endpoint?.toString(),
+                config.peers.size,
+                lastModified,
+                bytes.size.toLong(),
+                ParseCache.hash(bytes)
+            )
+        }
+
+        // Entries are a name, a public key (empty if unknown), an endpoint (empty if none), the
+        // peer count, the modification time, the size and the hash.
+        private fun encode(entry: Entry): ByteArray {
+            val name = entry.name.toByteArray()
+            val key = entry.publicKey?.bytes ?: ByteArray(0)
+            val endpoint = entry.endpoint?.toByteArray() ?: ByteArray(0)
+            val buffer = ByteBuffer.allocate(3 * 2 + name.size + key.size + endpoint.size + 4 + 3 * 8)
+            buffer.putShort(name.size.toShort()).put(name)
+            buffer.putShort(key.size.toShort()).put(key)
+            buffer.putShort(endpoint.size.toShort()).put(endpoint)
+            buffer.putInt(entry.peerCount)
+            buffer.putLong(entry.lastModified).putLong(entry.size).putLong(entry.hash)
+            return buffer.array()
+        }
+
+        private fun readEntry(buffer: ByteBuffer): Entry {
+            val name = String(readBytes(buffer))
+            val key = readBytes(buffer)
+            val endpoint = readBytes(buffer)
+            return Entry(
+                name,
+                if (key.isNotEmpty()) Key.fromBytes(key) else null,
+                if (endpoint.isNotEmpty()) String(endpoint) else null,
+                buffer.getInt(),
+                buffer.getLong(),
+                buffer.getLong(),
+                buffer.getLong()
+            )
+        }
+
+        private fun readBytes(buffer: ByteBuffer): ByteArray {
+            return ByteArray(buffer.getShort().toInt()).also { buffer.get(it) }
+        }
+    }
+}
@@ -6,6 +6,7 @@
 package com.wireguard.android.configStore
 
 import me.msfjarvis.viscerion.config.Config
+import me.msfjarvis.viscerion.config.ConfigReader
 
 /**
  * Interface for persistent storage providers for WireGuard configurations.
@@ -23,6 +24,25 @@ interface ConfigStore {
     @Throws(Exception::class)
     fun create(name: String, config: Config): Config
 
+    /**
+     * Create several persistent tunnels at once, in parallel where the storage medium allows it.
+     * A tunnel that cannot be created does not prevent the others from being created, and each
+     * tunnel that is created is saved with the configuration it was given.
+     *
+     * @param configs Configurations for the new tunnels, keyed by tunnel name.
+     * @return The outcome for each tunnel: null if it was created, or else why it was not.
+     */
+    fun createAll(configs: Map<String, Config>): Map<String, Exception?> {
+        return configs.mapValues { (name, config) ->
+            try {
+                create(name, config)
+                null
+            } catch (e: Exception) {
+                e
+            }
+        }
+    }
+
     /**
      * Delete a persistent tunnel.
      *
@@ -31,6 +51,24 @@ interface ConfigStore {
     @Throws(Exception::class)
     fun delete(name: String)
 
+    /**
+     * Delete several persistent tunnels at once, in parallel where the storage medium allows it.
+     * A tunnel that cannot be deleted does not prevent the others from being deleted.
+     *
+     * @param names The names of the tunnels to delete.
+     * @return The outcome for each tunnel: null if it was deleted, or else why it was not.
+     */
+    fun deleteAll(names: Collection<String>): Map<String, Exception?> {
+        return names.associateWith { name ->
+            try {
+                delete(name)
+                null
+            } catch (e: Exception) {
+                e
+            }
+        }
+    }
+
     /**
      * Enumerate the names of tunnels present in persistent storage.
      *
@@ -38,6 +76,16 @@ interface ConfigStore {
      */
     fun enumerate(): Set<String>
 
+    /**
+     * Enumerate the tunnels present in persistent storage, along with whatever the storage
+     * medium knows about each of them without loading its configuration.
+     *
+     * @return A summary of each present tunnel; by default, only its name.
+     */
+    fun summarize(): Collection<ConfigSummary> {
+        return enumerate().map { ConfigSummary(it) }
+    }
+
     /**
      * Load the configuration for the tunnel given by `name`.
      *
@@ -48,6 +96,28 @@ interface ConfigStore {
     @Throws(Exception::class)
     fun load(name: String): Config
 
+    /**
+     * Load the configurations for all of the tunnels given by `names`, in parallel where the
+     * storage medium allows it. A configuration that cannot be loaded does not prevent the
+     * others from loading.
+     *
+     * @param names The identifiers for the configurations in persistent storage.
+     * @return The result of loading each configuration, keyed by tunnel name.
+     */
+    fun loadAll(names: Collection<String>): Map<String, Config.ParseResult>
+
+    /**
+     * Open the configuration for the tunnel given by `name` for streaming, so that its peers can
+     * be processed one at a time without holding the whole configuration in memory. The caller
+     * is responsible for closing the returned reader.
+     *
+     * @param name The identifier for the configuration in persistent storage (i.e. the name of the
+     * tunnel).
+     * @return A reader positioned at the start of the configuration.
+     */
+    @Throws(Exception::class)
+    fun open(name: String): ConfigReader
+
     /**
      * Rename the configuration for the tunnel given by `name`.
      *
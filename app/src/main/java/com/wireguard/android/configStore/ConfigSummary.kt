@@ -0,0 +1,19 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import me.msfjarvis.viscerion.crypto.Key
+
+/**
+ * What a [ConfigStore] knows about a tunnel without loading its configuration. Stores that keep
+ * no such information only fill in the name.
+ */
+class ConfigSummary(
+    val name: String,
+    val publicKey: Key? = null,
+    val endpoint: String? = null,
+    val peerCount: Int = 0
+)
@@ -0,0 +1,181 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import com.wireguard.android.R
+import com.wireguard.android.configStore.KeyProvider.Companion.TAG_SIZE
+import com.wireguard.android.configStore.KeyProvider.Companion.TRANSFORMATION
+import java.io.ByteArrayInputStream
+import java.io.File
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStream
+import java.nio.ByteBuffer
+import java.security.GeneralSecurityException
+import java.security.SecureRandom
+import javax.crypto.Cipher
+import javax.crypto.CipherOutputStream
+import javax.crypto.spec.GCMParameterSpec
+import me.msfjarvis.viscerion.config.BadConfigException
+import me.msfjarvis.viscerion.config.Config
+import me.msfjarvis.viscerion.config.ConfigReader
+import timber.log.Timber
+
+/**
+ * Configuration store that keeps each tunnel in its own file, encrypted with AES-GCM under the
+ * data key of a [KeyProvider].
+ *
+ * A file holds a short header, a random IV and the encrypted `wg-quick` text followed by the GCM
+ * tag; the header is authenticated along with the text. Configurations are encrypted as they are
+ * written out, without an intermediate plaintext copy, and decrypted from a single read of their
+ * file, so the only cost over [FileConfigStore] is the cipher itself once the data key has been
+ * unwrapped.
+ *
+ * As with [FileConfigStore], `getString` formats the error messages from their string resources,
+ * typically through [android.content.Context.getString]. `writer` must be the one that
+ * `keyProvider` writes the data key with, when the key file is kept in `filesDir`.
+ */
+
+class EncryptedConfigStore(
+    override val filesDir: File,
+    private val keyProvider: KeyProvider,
+    private val getString: (Int, Any) -> String,
+    override val writer: AtomicFileWriter
+) : FileBackedConfigStore {
+    private val random = SecureRandom()
+
+    @Throws(IOException::class, GeneralSecurityException::class)
+    override fun create(name: String, config: Config): Config {
+        Timber.d("Creating encrypted configuration for tunnel $name")
+        val file = fileFor(name)
+        if (!file.createNewFile()) {
+            throw IOException(getString(R.string.config_file_exists_error, file.name))
+        }
+        try {
+            write(file, config)
+        } catch (e: Exception) {
+            // Don't leave an empty configuration behind.
+            if (!file.delete()) {
+                Timber.w("Couldn't delete marker file ${file.name}")
+            }
+            throw e
+        }
+        return config
+    }
+
+    @Throws(IOException::class)
+    override fun delete(name: String) {
+        Timber.d("Deleting encrypted configuration for tunnel $name")
+        val file = fileFor(name)
+        if (!file.delete()) {
+            throw IOException(getString(R.string.config_delete_error, file.name))
+        }
+    }
+
+    override fun enumerate(): Set<String> {
+        return (filesDir.list() ?: emptyArray())
+            .filter { it.endsWith(ENCRYPTED_FILE_SUFFIX) }
+            .map { it.substring(0, it.length - ENCRYPTED_FILE_SUFFIX.length) }
+            .toSet()
+    }
+
+    @Throws(IOException::class, BadConfigException::class)
+    override fun load(name: String): Config {
+        return decrypt(name).use { stream -> Config.parse(stream) }
+    }
+
+    override fun loadAll(names: Collection<String>): Map<String, Config.ParseResult> {
+        return Config.parseAll(names.associateWith { name -> { decrypt(name) } })
+    }
+
+    @Throws(IOException::class)
+    override fun open(name: String): ConfigReader {
+        return ConfigReader(decrypt(name))
+    }
+
+    @Throws(IOException::class)
+    override fun rename(name: String, replacement: String) {
+        Timber.d("Renaming encrypted configuration for tunnel $name to $replacement")
+        val file = fileFor(name)
+        val replacementFile = fileFor(replacement)
+        if (!replacementFile.createNewFile()) {
+            throw IOException(getString(R.string.config_exists_error, replacement))
+        }
+        if (!file.renameTo(replacementFile)) {
+            if (!replacementFile.delete()) {
+                Timber.w("Couldn't delete marker file for new name $replacement")
+            }
+            throw IOException(getString(R.string.config_rename_error, file.name))
+        }
+    }
+
+    @Throws(IOException::class, GeneralSecurityException::class)
+    override fun save(name: String, config: Config): Config {
+        Timber.d("Saving encrypted configuration for tunnel $name")
+        val file = fileFor(name)
+        if (!file.isFile) {
+            throw FileNotFoundException(getString(R.string.config_not_found_error, file.name))
+        }
+        write(file, config)
+        return config
+    }
+
+    override fun fileFor(name: String): File {
+        return File(filesDir, name + ENCRYPTED_FILE_SUFFIX)
+    }
+
+    @Throws(IOException::class)
+    override fun decode(name: String, bytes: ByteArray): ByteArray {
+        val file = fileFor(name)
+        val header = ByteBuffer.wrap(bytes, 0, minOf(bytes.size, HEADER.size))
+        if (bytes.size < HEADER.size + IV_SIZE + TAG_SIZE / 8 || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw IOException(getString(R.string.config_decrypt_error, file.name))
+        }
+        try {
+            val cipher = Cipher.getInstance(TRANSFORMATION)
+            cipher.init(Cipher.DECRYPT_MODE, keyProvider.getKey(), GCMParameterSpec(TAG_SIZE, bytes, HEADER.size, IV_SIZE))
+            cipher.updateAAD(bytes, 0, HEADER.size)
+            val offset = HEADER.size + IV_SIZE
+            return cipher.doFinal(bytes, offset, bytes.size - offset)
+        } catch (e: GeneralSecurityException) {
+            throw IOException(getString(R.string.config_decrypt_error, file.name), e)
+        }
+    }
+
+    @Throws(IOException::class, GeneralSecurityException::class)
+    private fun write(file: File, config: Config) {
+        val iv = ByteArray(IV_SIZE).also { random.nextBytes(it) }
+        val cipher = Cipher.getInstance(TRANSFORMATION)
+        cipher.init(Cipher.ENCRYPT_MODE, keyProvider.getKey(), GCMParameterSpec(TAG_SIZE, iv))
+        cipher.updateAAD(HEADER)
+        writer.write(file) { stream ->
+            stream.write(HEADER)
+            stream.write(iv)
+            // The cipher stream is left open, as closing it would close the file before the
+            // writer gets to sync it; finishing the cipher by hand appends the tag instead.
+            config.writeWgQuick(CipherOutputStream(stream, cipher))
+            stream.write(cipher.doFinal())
+        }
+    }
+
+    /**
+     * Returns the decrypted contents of the configuration file for `name`. GCM cannot release
+     * any plaintext before the tag at the end has been checked, so there is nothing to gain from
+     * decrypting the file as a stream.
+     */
+    @Throws(IOException::class)
+    private fun decrypt(name: String): InputStream {
+        return ByteArrayInputStream(decode(name, fileFor(name).readBytes()))
+    }
+
+    companion object {
+        const val ENCRYPTED_FILE_SUFFIX = ".conf.enc"
+        private const val MAGIC = 0x57474543 // "WGEC"
+        private const val VERSION = 1
+        private const val IV_SIZE = 12
+        private val HEADER = ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION).array()
+    }
+}
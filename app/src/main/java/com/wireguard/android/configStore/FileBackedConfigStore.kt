@@ -0,0 +1,37 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.File
+import java.io.IOException
+
+/**
+ * [ConfigStore] that keeps each tunnel in its own file in [filesDir], written through [writer].
+ * Such stores can be wrapped in a [CatalogConfigStore].
+ */
+
+interface FileBackedConfigStore : ConfigStore {
+    /**
+     * The directory that holds the configuration files.
+     */
+    val filesDir: File
+
+    /**
+     * The writer for [filesDir]; anything else written to that directory must go through it too.
+     */
+    val writer: AtomicFileWriter
+
+    /**
+     * Returns the file that holds the configuration of the tunnel `name`.
+     */
+    fun fileFor(name: String): File
+
+    /**
+     * Returns the `wg-quick` text held in `bytes`, the contents of the file for the tunnel `name`.
+     */
+    @Throws(IOException::class)
+    fun decode(name: String, bytes: ByteArray): ByteArray
+}
@@ -10,52 +10,111 @@ import com.wireguard.android.R
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileNotFoundException
-import java.io.FileOutputStream
 import java.io.IOException
-import java.nio.charset.StandardCharsets
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java9.util.concurrent.CompletableFuture
+import java9.util.concurrent.CompletionException
 import javax.inject.Inject
 import me.msfjarvis.viscerion.config.BadConfigException
 import me.msfjarvis.viscerion.config.Config
+import me.msfjarvis.viscerion.config.ConfigReader
 import timber.log.Timber
 
 /**
  * Configuration store that uses a `wg-quick`-style file for each configured tunnel.
+ *
+ * `getString` formats the error messages from their string resources, with the file or tunnel
+ * name as the only argument.
  */
 
-class FileConfigStore @Inject constructor(private val context: Context) : ConfigStore {
+class FileConfigStore(
+    override val filesDir: File,
+    private val getString: (Int, Any) -> String,
+    override val writer: AtomicFileWriter = AtomicFileWriter(filesDir)
+) : FileBackedConfigStore {
+
+    @Inject constructor(context: Context) : this(context.filesDir, { id, arg -> context.getString(id, arg) })
 
     @Throws(IOException::class)
     override fun create(name: String, config: Config): Config {
         Timber.d("Creating configuration for tunnel $name")
         val file = fileFor(name)
         if (!file.createNewFile()) {
-            throw IOException(context.getString(R.string.config_file_exists_error, file.name))
+            throw IOException(getString(R.string.config_file_exists_error, file.name))
         }
-        FileOutputStream(
-            file,
-            false
-        ).use { stream -> stream.write(config.toWgQuickString().toByteArray(StandardCharsets.UTF_8)) }
+        writeNew(file) { writer.write(file) { stream -> config.writeWgQuick(stream) } }
         return config
     }
 
+    override fun createAll(configs: Map<String, Config>): Map<String, Exception?> {
+        Timber.d("Creating configurations for ${configs.size} tunnels")
+        val results = inParallel(configs.keys) { name ->
+            val file = fileFor(name)
+            if (!file.createNewFile()) {
+                throw IOException(getString(R.string.config_file_exists_error, file.name))
+            }
+            writeNew(file) { writer.replace(file) { stream -> configs.getValue(name).writeWgQuick(stream) } }
+        }
+        // One directory sync makes every file renamed into place above durable. The files are
+        // complete and in place even if it fails, so they are still reported as created.
+        try {
+            writer.sync()
+        } catch (e: IOException) {
+            Timber.w(e, "Unable to sync configurations for ${configs.size} tunnels")
+        }
+        return results
+    }
+
     @Throws(IOException::class)
     override fun delete(name: String) {
         Timber.d("Deleting configuration for tunnel $name")
         val file = fileFor(name)
         if (!file.delete()) {
-            throw IOException(context.getString(R.string.config_delete_error, file.name))
+            throw IOException(getString(R.string.config_delete_error, file.name))
+        }
+    }
+
+    override fun deleteAll(names: Collection<String>): Map<String, Exception?> {
+        Timber.d("Deleting configurations for ${names.size} tunnels")
+        return inParallel(names) { name ->
+            val file = fileFor(name)
+            if (!file.delete()) {
+                throw IOException(getString(R.string.config_delete_error, file.name))
+            }
         }
     }
 
     override fun enumerate(): Set<String> {
-        return context.fileList()
+        return (filesDir.list() ?: emptyArray())
             .filter { it.endsWith(CONFIGURATION_FILE_SUFFIX) }
             .map { it.substring(0, it.length - CONFIGURATION_FILE_SUFFIX.length) }
             .toSet()
     }
 
-    private fun fileFor(name: String): File {
-        return File(context.filesDir, "$name.conf")
+    /**
+     * Runs `write` to fill in the newly created `file`, and deletes the file again if that
+     * fails, so that a failed creation does not leave an empty configuration behind.
+     */
+    private inline fun writeNew(file: File, write: () -> Unit) {
+        try {
+            write()
+        } catch (e: Exception) {
+            if (!file.delete()) {
+                Timber.w("Couldn't delete marker file %s", file.name)
+            }
+            throw e
+        }
+    }
+
+    override fun fileFor(name: String): File {
+        return File(filesDir, name + CONFIGURATION_FILE_SUFFIX)
+    }
+
+    override fun decode(name: String, bytes: ByteArray): ByteArray {
+        return bytes
     }
 
     @Throws(IOException::class, BadConfigException::class)
@@ -63,19 +122,28 @@ class FileConfigStore @Inject constructor(private val context: Context) : Config
         FileInputStream(fileFor(name)).use { stream -> return Config.parse(stream) }
     }
 
+    override fun loadAll(names: Collection<String>): Map<String, Config.ParseResult> {
+        return Config.parseAll(names.associateWith { name -> { FileInputStream(fileFor(name)) } })
+    }
+
+    @Throws(IOException::class)
+    override fun open(name: String): ConfigReader {
+        return ConfigReader(FileInputStream(fileFor(name)))
+    }
+
     @Throws(IOException::class)
     override fun rename(name: String, replacement: String) {
         Timber.d("Renaming configuration for tunnel $name to $replacement")
         val file = fileFor(name)
         val replacementFile = fileFor(replacement)
         if (!replacementFile.createNewFile()) {
-            throw IOException(context.getString(R.string.config_exists_error, replacement))
+            throw IOException(getString(R.string.config_exists_error, replacement))
         }
         if (!file.renameTo(replacementFile)) {
             if (!replacementFile.delete()) {
                 Timber.w("Couldn't delete marker file for new name $replacement")
             }
-            throw IOException(context.getString(R.string.config_rename_error, file.name))
+            throw IOException(getString(R.string.config_rename_error, file.name))
         }
     }
 
@@ -84,16 +152,39 @@ class FileConfigStore @Inject constructor(private val context: Context) : Config
         Timber.d("Saving configuration for tunnel $name")
         val file = fileFor(name)
         if (!file.isFile) {
-            throw FileNotFoundException(context.getString(R.string.config_not_found_error, file.name))
+            throw FileNotFoundException(getString(R.string.config_not_found_error, file.name))
         }
-        FileOutputStream(
-            file,
-            false
-        ).use { stream -> stream.write(config.toWgQuickString().toByteArray(StandardCharsets.UTF_8)) }
+        writer.write(file) { stream -> config.writeWgQuick(stream) }
         return config
     }
 
     companion object {
         const val CONFIGURATION_FILE_SUFFIX = ".conf"
+
+        private const val PARALLEL_THREADS = 4
+        private const val KEEP_ALIVE_SECONDS = 30L
+
+        // A pool of its own rather than a LaneExecutor lane, as batches are run from the IO lane
+        // and would deadlock waiting for their own lane to free up.
+        private val executor = ThreadPoolExecutor(
+            PARALLEL_THREADS, PARALLEL_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, LinkedBlockingQueue(),
+            ThreadFactory { runnable -> Thread(runnable, "FileConfigStore").apply { isDaemon = true } }
+        ).apply { allowCoreThreadTimeOut(true) }
+
+        /**
+         * Runs `action` for every name on a small pool of threads, and returns what each of them
+         * threw.
+         */
+        private fun inParallel(names: Collection<String>, action: (String) -> Unit): Map<String, Exception?> {
+            val futures = names.associateWith { name -> CompletableFuture.runAsync(Runnable { action(name) }, executor) }
+            return futures.mapValues { (_, future) ->
+                try {
+                    future.join()
+                    null
+                } catch (e: CompletionException) {
+                    e.cause as? Exception ?: e
+                }
+            }
+        }
     }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.File
+import java.io.IOException
+import java.security.GeneralSecurityException
+import javax.crypto.Cipher
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+import javax.crypto.spec.GCMParameterSpec
+import javax.crypto.spec.SecretKeySpec
+
+/**
+ * Source of the data key that [EncryptedConfigStore] encrypts configurations with.
+ *
+ * The data key is an AES key generated on first use and kept in `keyFile`, wrapped with AES-GCM
+ * under the key returned by [wrappingKey]. It is unwrapped at most once per instance and then kept
+ * in memory, so that only the first configuration that is read or written pays for the round trip
+ * to wherever the wrapping key lives. `writer` must be the writer for the directory of `keyFile`,
+ * which is usually the [EncryptedConfigStore]'s own.
+ */
+
+abstract class KeyProvider(
+    private val keyFile: File,
+    private val writer: AtomicFileWriter
+) {
+    private var key: SecretKey? = null
+
+    /**
+     * Returns the key that the data key is wrapped with, creating it if needed.
+     */
+    @Throws(GeneralSecurityException::class, IOException::class)
+    protected abstract fun wrappingKey(): SecretKey
+
+    /**
+     * Returns the data key, unwrapping it from `keyFile` or creating it on first use.
+     */
+    @Synchronized
+    @Throws(GeneralSecurityException::class, IOException::class)
+    fun getKey(): SecretKey {
+        key?.let { return it }
+        return (if (keyFile.isFile) unwrap(keyFile.readBytes()) else generate()).also { key = it }
+    }
+
+    @Throws(GeneralSecurityException::class, IOException::class)
+    private fun generate(): SecretKey {
+        val key = KeyGenerator.getInstance(KEY_ALGORITHM).apply { init(KEY_SIZE) }.generateKey()
+        val cipher = Cipher.getInstance(TRANSFORMATION)
+        // Let the cipher pick the IV, as hardware-backed keys refuse caller-provided ones.
+        cipher.init(Cipher.ENCRYPT_MODE, wrappingKey())
+        val iv = cipher.iv
+        val wrapped = cipher.doFinal(key.encoded)
+        // Losing this file loses every configuration, so it is always synced.
+        writer.write(keyFile) { stream ->
+            stream.write(iv.size)
+            stream.write(iv)
+            stream.write(wrapped)
+        }
+        return key
+    }
+
+    @Throws(GeneralSecurityException::class, IOException::class)
+    private fun unwrap(bytes: ByteArray): SecretKey {
+        val ivSize = if (bytes.isNotEmpty()) bytes[0].toInt() else 0
+        if (ivSize <= 0 || bytes.size <= 1 + ivSize) {
+            throw IOException("Invalid key file ${keyFile.name}")
+        }
+        val cipher = Cipher.getInstance(TRANSFORMATION)
+        cipher.init(Cipher.DECRYPT_MODE, wrappingKey(), GCMParameterSpec(TAG_SIZE, bytes, 1, ivSize))
+        return SecretKeySpec(cipher.doFinal(bytes, 1 + ivSize, bytes.size - 1 - ivSize), KEY_ALGORITHM)
+    }
+
+    companion object {
+        const val KEY_ALGORITHM = "AES"
+        const val KEY_SIZE = 256
+        const val TAG_SIZE = 128
+        const val TRANSFORMATION = "AES/GCM/NoPadding"
+    }
+}
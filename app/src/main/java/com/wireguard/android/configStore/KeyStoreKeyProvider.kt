@@ -0,0 +1,44 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import android.security.keystore.KeyGenParameterSpec
+import android.security.keystore.KeyProperties
+import java.io.File
+import java.security.KeyStore
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+
+/**
+ * [KeyProvider] whose wrapping key lives in the Android keystore, backed by secure hardware where
+ * the device has it, and never leaves it.
+ *
+ * The keystore is not part of backups, so `keyFile` should not be either: a restored key file
+ * could not be unwrapped anyway.
+ */
+
+class KeyStoreKeyProvider(keyFile: File, writer: AtomicFileWriter) : KeyProvider(keyFile, writer) {
+    override fun wrappingKey(): SecretKey {
+        val keyStore = KeyStore.getInstance(KEY_STORE).apply { load(null) }
+        (keyStore.getKey(KEY_ALIAS, null) as? SecretKey)?.let { return it }
+        val spec = KeyGenParameterSpec.Builder(
+            KEY_ALIAS,
+            KeyProperties.PURPOSE_ENCRYPT or KeyProperties.PURPOSE_DECRYPT
+        )
+            .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+            .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+            .setKeySize(KEY_SIZE)
+            .build()
+        return KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEY_STORE)
+            .apply { init(spec) }
+            .generateKey()
+    }
+
+    companion object {
+        private const val KEY_STORE = "AndroidKeyStore"
+        private const val KEY_ALIAS = "config_store_wrapping_key"
+    }
+}
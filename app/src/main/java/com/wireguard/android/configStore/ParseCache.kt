@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.ByteArrayInputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.IOException
+import java.util.zip.CRC32
+import me.msfjarvis.viscerion.config.Config
+import me.msfjarvis.viscerion.crypto.Key
+import me.msfjarvis.viscerion.crypto.KeyFormatException
+import timber.log.Timber
+
+/**
+ * Persistent cache of parsed configurations, in the binary form written by [Config.writeBinary].
+ *
+ * Each entry is keyed by the size and CRC-32 of the configuration file it was parsed from, so a
+ * file is always read and hashed before its entry is used, but never parsed again while its
+ * contents stay the same. Reading an entry skips both the text parsing and the derivation of
+ * the public key, which dominates the cost of loading small configurations.
+ *
+ * Entries live in the app's cache directory, so they do not hold the private key. Instead, each
+ * entry records where the base64 private key sits in the file, and the key is decoded from the
+ * file contents that were just checked against the hash. Configurations whose private key does
+ * not appear verbatim in the file are not cached.
+ */
+class ParseCache(private val directory: File) {
+    private val writer = AtomicFileWriter(directory)
+
+    /**
+     * Returns the cached configuration for `name` if it was stored from the same contents as
+     * `bytes`, or null otherwise.
+     */
+    fun load(name: String, bytes: ByteArray): Config? {
+        val entry = entryFor(name)
+        if (!entry.isFile) {
+            return null
+        }
+        return try {
+            DataInputStream(ByteArrayInputStream(entry.readBytes())).use { input ->
+                if (input.readLong() != bytes.size.toLong() || input.readLong() != hash(bytes)) {
+                    return null
+                }
+                val keyOffset = input.readInt()
+                val keyLength = Key.Format.BASE64.length
+                if (keyOffset < 0 || keyOffset > bytes.size - keyLength) {
+                    throw IOException("Private key offset out of range")
+                }
+                val privateKey = Key.fromBase64(String(bytes, keyOffset, keyLength, Charsets.US_ASCII))
+                Config.readBinary(input, privateKey)
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Discarding cached configuration of %s", name)
+            remove(name)
+            null
+        } catch (e: KeyFormatException) {
+            Timber.w(e, "Discarding cached configuration of %s", name)
+            remove(name)
+            null
+        }
+    }
+
+    /**
+     * Stores `config`, parsed from `bytes`.
+     */
+    @Synchronized
+    fun store(name: String, bytes: ByteArray, config: Config) {
+        val keyOffset = indexOf(bytes, config.interfaze.keyPair.privateKey.toBase64().toByteArray(Charsets.US_ASCII))
+        if (keyOffset < 0) {
+            Timber.d("Not caching the configuration of %s, its private key isn't stored verbatim", name)
+            remove(name)
+            return
+        }
+        try {
+            if (!directory.isDirectory && !directory.mkdirs()) {
+                throw IOException("Unable to create ${directory.name}")
+            }
+            writer.replace(entryFor(name)) { stream ->
+                val out = DataOutputStream(stream)
+                out.writeLong(bytes.size.toLong())
+                out.writeLong(hash(bytes))
+                out.writeInt(keyOffset)
+                config.writeBinary(out)
+                out.flush()
+            }
+        } catch (e: IOException) {
+            Timber.w(e, "Unable to cache the configuration of %s", name)
+        }
+    }
+
+    @Synchronized
+    fun rename(name: String, replacement: String) {
+        val entry = entryFor(name)
+        if (entry.isFile && !entry.renameTo(entryFor(replacement))) {
+            entry.delete()
+        }
+    }
+
+    @Synchronized
+    fun remove(name: String) {
+        entryFor(name).delete()
+    }
+
+    private fun entryFor(name: String): File {
+        return File(directory, "$name$ENTRY_FILE_SUFFIX")
+    }
+
+    companion object {
+        private const val ENTRY_FILE_SUFFIX = ".bin"
+
+        fun hash(bytes: ByteArray): Long {
+            return CRC32().apply { update(bytes) }.value
+        }
+
+        private fun indexOf(bytes: ByteArray, target: ByteArray): Int {
+            outer@ for (i in 0..bytes.size - target.size) {
+                for (j in target.indices) {
+                    if (bytes[i + j] != target[j]) {
+                        continue@outer
+                    }
+                }
+                return i
+            }
+            return -1
+        }
+    }
+}
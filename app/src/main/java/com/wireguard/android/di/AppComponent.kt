@@ -7,7 +7,6 @@ package com.wireguard.android.di
 
 import android.content.Context
 import android.content.SharedPreferences
-import android.os.AsyncTask
 import android.os.Handler
 import android.os.Looper
 import androidx.preference.PreferenceManager
@@ -19,6 +18,7 @@ import com.wireguard.android.activity.SettingsActivity.SettingsFragment
 import com.wireguard.android.activity.TunnelToggleActivity
 import com.wireguard.android.backend.Backend
 import com.wireguard.android.backend.GoBackend
+import com.wireguard.android.configStore.CatalogConfigStore
 import com.wireguard.android.configStore.ConfigStore
 import com.wireguard.android.configStore.FileConfigStore
 import com.wireguard.android.di.factory.BackendFactory
@@ -38,6 +38,7 @@ import com.wireguard.android.services.QuickTileService
 import com.wireguard.android.services.TaskerIntegrationReceiver
 import com.wireguard.android.util.ApplicationPreferences
 import com.wireguard.android.util.BackendAsync
+import com.wireguard.android.util.LaneExecutor
 import com.wireguard.android.util.RootShell
 import com.wireguard.android.util.ToolsInstaller
 import com.wireguard.android.work.TunnelRestoreWorker
@@ -45,7 +46,6 @@ import dagger.BindsInstance
 import dagger.Component
 import dagger.Module
 import dagger.Provides
-import java.util.concurrent.Executor
 import javax.inject.Singleton
 
 @Singleton
@@ -100,7 +100,7 @@ interface AppComponent {
 object ApplicationModule {
     @get:Singleton
     @get:Provides
-    val executor: Executor = AsyncTask.SERIAL_EXECUTOR
+    val executor: LaneExecutor = LaneExecutor()
 
     @get:Singleton
     @get:Provides
@@ -112,7 +112,7 @@ object ApplicationModule {
 
     @Singleton
     @Provides
-    fun getConfigStore(context: Context): ConfigStore = FileConfigStore(context)
+    fun getConfigStore(context: Context): ConfigStore = CatalogConfigStore(context.cacheDir, FileConfigStore(context))
 
     @Singleton
     @Provides
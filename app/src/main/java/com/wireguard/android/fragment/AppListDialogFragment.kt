@@ -21,6 +21,7 @@ import com.wireguard.android.model.ApplicationData
 import com.wireguard.android.util.ApplicationPreferences
 import com.wireguard.android.util.AsyncWorker
 import com.wireguard.android.util.ErrorMessages
+import com.wireguard.android.util.LaneExecutor.Lane
 import com.wireguard.android.util.ObservableKeyedArrayList
 import java.util.Locale
 import javax.inject.Inject
@@ -73,7 +74,7 @@ class AppListDialogFragment : DialogFragment() {
 
     private fun loadData() {
         val activity = requireActivity()
-        asyncWorker.supplyAsync<List<ApplicationData>> {
+        asyncWorker.supplyAsync<List<ApplicationData>>(Lane.BACKGROUND) {
             val appData = ArrayList<ApplicationData>()
             val pm = activity.packageManager
             pm.getPackagesHoldingPermissions(
@@ -18,14 +18,13 @@ import com.wireguard.android.R
 import com.wireguard.android.databinding.TunnelDetailFragmentBinding
 import com.wireguard.android.databinding.TunnelDetailPeerBinding
 import com.wireguard.android.di.injector
+import com.wireguard.android.model.StatisticsMonitor
 import com.wireguard.android.model.Tunnel
-import com.wireguard.android.model.Tunnel.State
+import com.wireguard.android.model.Tunnel.Statistics
 import com.wireguard.android.ui.EdgeToEdge
 import com.wireguard.android.util.ApplicationPreferences
 import com.wireguard.android.util.isSystemDarkThemeEnabled
 import com.wireguard.android.util.resolveAttribute
-import java.util.Timer
-import java.util.TimerTask
 import javax.inject.Inject
 import me.msfjarvis.viscerion.crypto.Key
 
@@ -35,9 +34,9 @@ import me.msfjarvis.viscerion.crypto.Key
 
 class TunnelDetailFragment : BaseFragment() {
     private var binding: TunnelDetailFragmentBinding? = null
-    private var timer: Timer? = null
-    private var lastState: State? = State.TOGGLE
+    private var statisticsSubscription: StatisticsMonitor.Subscription? = null
     @Inject lateinit var prefs: ApplicationPreferences
+    @Inject lateinit var statisticsMonitor: StatisticsMonitor
 
     override fun onAttach(context: Context) {
         injector.inject(this)
@@ -56,20 +55,13 @@ class TunnelDetailFragment : BaseFragment() {
 
     override fun onStop() {
         super.onStop()
-        if (timer != null) {
-            timer!!.cancel()
-            timer = null
-        }
+        statisticsSubscription?.cancel()
+        statisticsSubscription = null
     }
 
     override fun onResume() {
         super.onResume()
-        timer = Timer()
-        timer!!.scheduleAtFixedRate(object : TimerTask() {
-            override fun run() {
-                updateStats()
-            }
-        }, 0, 1000)
+        subscribeToStatistics(binding?.tunnel)
         requireActivity().window?.apply {
             val ctx = requireContext()
             navigationBarColor = ctx.resolveAttribute(android.R.attr.navigationBarColor)
@@ -113,8 +105,9 @@ class TunnelDetailFragment : BaseFragment() {
         } else {
             newTunnel.configAsync.thenAccept { a -> binding?.config = a }
         }
-        lastState = State.TOGGLE
-        updateStats()
+        if (isResumed) {
+            subscribeToStatistics(newTunnel)
+        }
     }
 
     override fun onViewStateRestored(savedInstanceState: Bundle?) {
@@ -149,50 +142,32 @@ class TunnelDetailFragment : BaseFragment() {
         }
     }
 
-    private fun updateStats() {
-        if (binding == null || !isResumed) {
-            return
-        }
-
-        val tunnel = binding!!.tunnel ?: return
-
-        val state = tunnel.state
-        if (state != State.UP && lastState == state) {
-            return
-        }
+    private fun subscribeToStatistics(tunnel: Tunnel?) {
+        statisticsSubscription?.cancel()
+        statisticsSubscription = tunnel?.let { statisticsMonitor.subscribe(it) { stats -> updateStats(stats) } }
+    }
 
-        lastState = state
-        tunnel.statisticsAsync.whenComplete { statistics, throwable ->
-            if (throwable != null) {
-                for (i in 0 until binding!!.peersLayout.childCount) {
-                    val peer: TunnelDetailPeerBinding =
-                        DataBindingUtil.getBinding(binding!!.peersLayout.getChildAt(i))
-                            ?: continue
-                    peer.transferLabel.visibility = View.GONE
-                    peer.transferText.visibility = View.GONE
-                }
-                return@whenComplete
-            }
-            for (i in 0 until binding!!.peersLayout.childCount) {
-                val peer: TunnelDetailPeerBinding =
-                    DataBindingUtil.getBinding(binding!!.peersLayout.getChildAt(i))
-                        ?: continue
-                val publicKey: Key = peer.item!!.publicKey
-                val rx = statistics.peerRx(publicKey)
-                val tx = statistics.peerTx(publicKey)
-                if (rx == 0L && tx == 0L) {
-                    peer.transferLabel.visibility = View.GONE
-                    peer.transferText.visibility = View.GONE
-                    continue
-                }
-                peer.transferText.text = context!!.getString(
-                    R.string.transfer_rx_tx,
-                    formatBytes(rx),
-                    formatBytes(tx)
-                )
-                peer.transferLabel.visibility = View.VISIBLE
-                peer.transferText.visibility = View.VISIBLE
+    private fun updateStats(statistics: Statistics?) {
+        val binding = binding ?: return
+        for (i in 0 until binding.peersLayout.childCount) {
+            val peer: TunnelDetailPeerBinding =
+                DataBindingUtil.getBinding(binding.peersLayout.getChildAt(i))
+                    ?: continue
+            val publicKey: Key = peer.item!!.publicKey
+            val rx = statistics?.peerRx(publicKey) ?: 0
+            val tx = statistics?.peerTx(publicKey) ?: 0
+            if (rx == 0L && tx == 0L) {
+                peer.transferLabel.visibility = View.GONE
+                peer.transferText.visibility = View.GONE
+                continue
             }
+            peer.transferText.text = context!!.getString(
+                R.string.transfer_rx_tx,
+                formatBytes(rx),
+                formatBytes(tx)
+            )
+            peer.transferLabel.visibility = View.VISIBLE
+            peer.transferText.visibility = View.VISIBLE
         }
     }
 }
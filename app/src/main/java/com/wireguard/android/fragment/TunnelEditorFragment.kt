@@ -33,6 +33,7 @@ import com.wireguard.android.util.ErrorMessages
 import com.wireguard.android.util.isSystemDarkThemeEnabled
 import com.wireguard.android.viewmodel.ConfigProxy
 import javax.inject.Inject
+import me.msfjarvis.viscerion.config.AllowedIpsTable
 import me.msfjarvis.viscerion.config.Config
 import timber.log.Timber
 
@@ -70,6 +71,16 @@ class TunnelEditorFragment : BaseFragment(), AppExclusionListener {
         }
     }
 
+    private fun warnAboutOverlaps(config: Config) {
+        val overlaps = AllowedIpsTable.findOverlaps(config.peers)
+        if (overlaps.isEmpty()) {
+            return
+        }
+        val message = getString(R.string.config_overlap_warning, overlaps.joinToString(", "))
+        Timber.w(message)
+        Toast.makeText(context, message, Toast.LENGTH_LONG).show()
+    }
+
     override fun onPause() {
         super.onPause()
         onFinished(false)
@@ -167,6 +178,7 @@ class TunnelEditorFragment : BaseFragment(), AppExclusionListener {
                     binding?.let { Snackbar.make(it.mainContainer, error, Snackbar.LENGTH_LONG).show() }
                     return false
                 }
+                newConfig?.let { warnAboutOverlaps(it) }
 
                 when {
                     tunnel == null -> {
@@ -38,17 +38,15 @@ import com.wireguard.android.ui.EdgeToEdge
 import com.wireguard.android.util.ApplicationPreferences
 import com.wireguard.android.util.AsyncWorker
 import com.wireguard.android.util.ExceptionLoggers
-import com.wireguard.android.util.KotlinCompanions
+import com.wireguard.android.util.LaneExecutor.Lane
 import com.wireguard.android.widget.MultiselectableRelativeLayout
 import com.wireguard.android.widget.fab.FloatingActionButtonRecyclerViewScrollListener
-import java.io.BufferedReader
 import java.io.ByteArrayInputStream
-import java.io.InputStreamReader
+import java.io.InputStream
 import java.nio.charset.StandardCharsets
 import java.util.Locale
 import java.util.zip.ZipEntry
 import java.util.zip.ZipInputStream
-import java9.util.concurrent.CompletableFuture
 import javax.inject.Inject
 import me.msfjarvis.viscerion.config.Config
 import timber.log.Timber
@@ -83,9 +81,9 @@ class TunnelListFragment : BaseFragment(), SearchView.OnQueryTextListener, Barco
         }
         val contentResolver = activity.contentResolver
 
-        val futureTunnels = ArrayList<CompletableFuture<Tunnel>>()
+        val configs = LinkedHashMap<String, Config>()
         val throwables = ArrayList<Throwable>()
-        asyncWorker.supplyAsync {
+        asyncWorker.supplyAsync(Lane.IO) {
             val columns = arrayOf(OpenableColumns.DISPLAY_NAME)
             var name = ""
             contentResolver.query(uri, columns, null, null, null)?.use { cursor ->
@@ -110,8 +108,9 @@ class TunnelListFragment : BaseFragment(), SearchView.OnQueryTextListener, Barco
             }
 
             if (isZip) {
+                // Read the entries sequentially, then parse them all in parallel.
+                val sources = LinkedHashMap<String, () -> InputStream>()
                 ZipInputStream(contentResolver.openInputStream(uri)).use { zip ->
-                    val reader = BufferedReader(InputStreamReader(zip, StandardCharsets.UTF_8))
                     var entry: ZipEntry?
                     while (true) {
                         entry = zip.nextEntry ?: break
@@ -128,55 +127,41 @@ class TunnelListFragment : BaseFragment(), SearchView.OnQueryTextListener, Barco
                         } else {
                             continue
                         }
-                        val config: Config? = try {
-                            Config.parse(reader)
-                        } catch (e: Exception) {
-                            throwables.add(e)
-                            null
-                        }
-
-                        if (config != null) {
-                            futureTunnels.add(tunnelManager.create(name, config).toCompletableFuture())
+                        if (name in sources) {
+                            // Keep the first entry rather than silently replacing it.
+                            throwables.add(IllegalArgumentException(getString(R.string.config_exists_error, name)))
+                            continue
                         }
+                        val bytes = zip.readBytes()
+                        sources[name] = { ByteArrayInputStream(bytes) }
+                    }
+                }
+                Config.parseAll(sources).forEach { (tunnelName, result) ->
+                    val config = result.config
+                    if (config != null) {
+                        configs[tunnelName] = config
+                    } else {
+                        throwables.add(requireNotNull(result.error))
                     }
                 }
             } else {
-                futureTunnels.add(
-                    tunnelManager.create(
-                        name,
-                        Config.parse(contentResolver.openInputStream(uri))
-                    ).toCompletableFuture()
-                )
+                configs[name] = Config.parse(contentResolver.openInputStream(uri))
             }
 
-            if (futureTunnels.isEmpty()) {
+            if (configs.isEmpty()) {
                 if (throwables.size == 1) {
                     throw throwables[0]
                 } else {
                     require(throwables.isNotEmpty()) { "No configurations found" }
                 }
             }
-            CompletableFuture.allOf(*futureTunnels.toTypedArray())
-        }.whenComplete { future, exception ->
+            configs
+        }.thenCompose { tunnelManager.createAll(it) }.whenComplete { result, exception ->
             if (exception != null) {
                 onTunnelImportFinished(emptyList(), listOf(exception))
             } else {
-                future.whenComplete { _, _ ->
-                    val tunnels = ArrayList<Tunnel>(futureTunnels.size)
-                    for (futureTunnel in futureTunnels) {
-                        val tunnel: Tunnel? = try {
-                            futureTunnel.getNow(null)
-                        } catch (e: Exception) {
-                            throwables.add(e)
-                            null
-                        }
-
-                        if (tunnel != null) {
-                            tunnels.add(tunnel)
-                        }
-                    }
-                    onTunnelImportFinished(tunnels, throwables)
-                }
+                throwables.addAll(result.failures.values)
+                onTunnelImportFinished(result.tunnels, throwables)
             }
         }
     }
@@ -341,7 +326,7 @@ class TunnelListFragment : BaseFragment(), SearchView.OnQueryTextListener, Barco
             tunnelList.clear()
             if (!newText.isNullOrEmpty()) {
                 tunnelList.addAll(savedTunnelsList.filter {
-                    it.name.contains(newText, true)
+                    it.name.contains(newText, true) || it.endpoint?.contains(newText, true) == true
                 })
             } else {
                 tunnelList.addAll(savedTunnelsList)
@@ -455,12 +440,16 @@ class TunnelListFragment : BaseFragment(), SearchView.OnQueryTextListener, Barco
                         )
                         .setPositiveButton(android.R.string.ok) { _, _ ->
                             savedTunnelsList.removeAll(tunnelsToDelete)
-                            val futures = KotlinCompanions.streamForDeletion(tunnelsToDelete)
-                            CompletableFuture.allOf(*futures)
-                                .thenApply { futures.size }
-                                .whenComplete { count, throwable ->
-                                    onTunnelDeletionFinished(count, throwable)
+                            tunnelManager.deleteAll(tunnelsToDelete).whenComplete { result, throwable ->
+                                when {
+                                    throwable != null -> onTunnelDeletionFinished(tunnelsToDelete.size, throwable)
+                                    result.failures.isNotEmpty() -> onTunnelDeletionFinished(
+                                        result.failures.size,
+                                        result.failures.values.first()
+                                    )
+                                    else -> onTunnelDeletionFinished(result.tunnels.size, null)
                                 }
+                            }
                             binding?.createFab?.extend()
                             mode.finish()
                         }
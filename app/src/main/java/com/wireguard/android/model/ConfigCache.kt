@@ -0,0 +1,118 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.model
+
+import me.msfjarvis.viscerion.config.Config
+
+/**
+ * Memory-bounded cache of parsed configurations, evicting the least recently used ones first.
+ *
+ * Every configuration weighs one unit plus one per peer, so that a few huge configurations
+ * cannot crowd out the memory budget any more than many small ones. Pinned entries, such as
+ * the configurations of running tunnels, count towards the weight but are never evicted; pins
+ * are counted, so every [pin] must be matched by an [unpin].
+ */
+
+class ConfigCache<K : Any>(val maxWeight: Int = DEFAULT_MAX_WEIGHT) {
+    private val entries = LinkedHashMap<K, Config>(16, 0.75f, true)
+    private val pins = HashMap<K, Int>()
+
+    var weight = 0
+        @Synchronized get
+        private set
+    var hits = 0L
+        @Synchronized get
+        private set
+    var misses = 0L
+        @Synchronized get
+        private set
+    var evictions = 0L
+        @Synchronized get
+        private set
+
+    val size: Int
+        @Synchronized get() = entries.size
+
+    /**
+     * Returns the cached configuration for `key`, marking it as the most recently used one, or
+     * null if it has to be loaded again.
+     */
+    @Synchronized
+    operator fun get(key: K): Config? {
+        val config = entries[key]
+        if (config == null) {
+            ++misses
+        } else {
+            ++hits
+        }
+        return config
+    }
+
+    @Synchronized
+    operator fun set(key: K, config: Config) {
+        entries.put(key, config)?.let { weight -= weigh(it) }
+        weight += weigh(config)
+        trim()
+    }
+
+    @Synchronized
+    fun remove(key: K) {
+        entries.remove(key)?.let { weight -= weigh(it) }
+        pins.remove(key)
+    }
+
+    /**
+     * Keeps the configuration for `key` in memory, once cached, until [unpin] is called.
+     */
+    @Synchronized
+    fun pin(key: K) {
+        pins[key] = (pins[key] ?: 0) + 1
+    }
+
+    @Synchronized
+    fun unpin(key: K) {
+        val count = pins[key] ?: return
+        if (count > 1) {
+            pins[key] = count - 1
+        } else {
+            pins.remove(key)
+            trim()
+        }
+    }
+
+    override fun toString(): String {
+        return synchronized(this) {
+            "ConfigCache{size=${entries.size}, weight=$weight/$maxWeight, hits=$hits, misses=$misses, evictions=$evictions}"
+        }
+    }
+
+    private fun trim() {
+        if (weight <= maxWeight) {
+            return
+        }
+        val iterator = entries.entries.iterator()
+        while (weight > maxWeight && iterator.hasNext()) {
+            val entry = iterator.next()
+            if (entry.key in pins) {
+                continue
+            }
+            iterator.remove()
+            weight -= weigh(entry.value)
+            ++evictions
+        }
+    }
+
+    companion object {
+        /**
+         * Enough for a few hundred typical configurations.
+         */
+        const val DEFAULT_MAX_WEIGHT = 1024
+
+        private fun weigh(config: Config): Int {
+            return 1 + config.peers.size
+        }
+    }
+}
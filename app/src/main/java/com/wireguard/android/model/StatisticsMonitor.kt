@@ -0,0 +1,171 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.model
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.SystemClock
+import com.wireguard.android.backend.Backend
+import com.wireguard.android.model.Tunnel.Statistics
+import java9.util.concurrent.CompletableFuture
+import java9.util.concurrent.CompletionStage
+import javax.inject.Inject
+import javax.inject.Singleton
+import timber.log.Timber
+
+/**
+ * Samples the statistics of running tunnels on behalf of everything that displays them, and
+ * pushes every sample to the observers of that tunnel.
+ *
+ * A single loop samples all observed tunnels, at the shortest interval any observer asked
+ * for, and stops entirely while nothing is observed. Samples are taken on a dedicated thread
+ * rather than the [com.wireguard.android.util.AsyncWorker] executor, so polling never queues
+ * behind configuration I/O, and at most one query per tunnel is ever in flight. Apart from
+ * the sampling itself, everything happens on the main thread.
+ */
+
+@Singleton
+class StatisticsMonitor @Inject constructor(
+    private val backend: Backend,
+    private val handler: Handler
+) {
+    private val sampler: Handler by lazy {
+        val thread = HandlerThread("StatisticsMonitor")
+        thread.start()
+        Handler(thread.looper)
+    }
+    private val inFlight = HashMap<Tunnel, CompletableFuture<Statistics>>()
+    private val subscriptions = ArrayList<Subscription>()
+    private val tick = Runnable { onTick() }
+    private var nextTick = 0L
+
+    /**
+     * Starts delivering the statistics of `tunnel` to `observer` roughly every `interval`
+     * milliseconds while it is up, beginning immediately. The observer is called with null
+     * once whenever the tunnel stops running. Must be called on the main thread.
+     */
+    fun subscribe(
+        tunnel: Tunnel,
+        interval: Long = FOREGROUND_INTERVAL,
+        observer: (Statistics?) -> Unit
+    ): Subscription {
+        val subscription = Subscription(tunnel, interval, observer)
+        subscriptions.add(subscription)
+        sample(tunnel)
+        schedule()
+        return subscription
+    }
+
+    /**
+     * Samples the statistics of `tunnel` now, or joins the sample that is already being taken.
+     * Must be called on the main thread.
+     */
+    fun refresh(tunnel: Tunnel): CompletionStage<Statistics> {
+        inFlight[tunnel]?.let { return it }
+        val future = CompletableFuture<Statistics>()
+        inFlight[tunnel] = future
+        sampler.post {
+            val result = try {
+                backend.getStatistics(tunnel) ?: Statistics()
+            } catch (e: Exception) {
+                Timber.w(e, "Unable to sample the statistics of %s", tunnel.name)
+                null
+            }
+            handler.post { onSampled(tunnel, future, result) }
+        }
+        return future
+    }
+
+    private fun onSampled(tunnel: Tunnel, future: CompletableFuture<Statistics>, statistics: Statistics?) {
+        inFlight.remove(tunnel)
+        if (statistics == null) {
+            future.completeExceptionally(IllegalStateException("Unable to sample ${tunnel.name}"))
+            return
+        }
+        future.complete(statistics)
+        // The tunnel may have gone down while it was being sampled.
+        if (tunnel.state != Tunnel.State.UP) {
+            return
+        }
+        tunnel.onStatisticsChanged(statistics)
+        deliver(tunnel, statistics)
+    }
+
+    private fun deliver(tunnel: Tunnel, statistics: Statistics?) {
+        for (subscription in subscriptions.toList()) {
+            if (subscription.tunnel == tunnel) {
+                subscription.deliver(statistics)
+            }
+        }
+    }
+
+    private fun sample(tunnel: Tunnel) {
+        if (tunnel.state == Tunnel.State.UP) {
+            refresh(tunnel)
+        } else {
+            deliver(tunnel, null)
+        }
+    }
+
+    private fun onTick() {
+        nextTick = 0
+        subscriptions.mapTo(LinkedHashSet()) { it.tunnel }.forEach { sample(it) }
+        schedule()
+    }
+
+    /**
+     * Makes sure the next tick happens no later than the shortest interval any subscription
+     * asked for, or cancels it if there are no subscriptions left.
+     */
+    private fun schedule() {
+        val interval = subscriptions.map { it.interval }.min()
+        if (interval == null) {
+            handler.removeCallbacks(tick)
+            nextTick = 0
+            return
+        }
+        val at = SystemClock.uptimeMillis() + interval
+        if (nextTick != 0L && nextTick <= at) {
+            return
+        }
+        handler.removeCallbacks(tick)
+        handler.postAtTime(tick, at)
+        nextTick = at
+    }
+
+    inner class Subscription internal constructor(
+        val tunnel: Tunnel,
+        val interval: Long,
+        private val observer: (Statistics?) -> Unit
+    ) {
+        private var stopped = false
+
+        internal fun deliver(statistics: Statistics?) {
+            if (statistics == null && stopped) {
+                return
+            }
+            stopped = statistics == null
+            observer(statistics)
+        }
+
+        /**
+         * Stops delivering statistics to the observer, pausing the sampling loop if this was
+         * the last subscription.
+         */
+        fun cancel() {
+            if (subscriptions.remove(this)) {
+                schedule()
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * For statistics shown on screen.
+         */
+        const val FOREGROUND_INTERVAL = 1000L
+    }
+}
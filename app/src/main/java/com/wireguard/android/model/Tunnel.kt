@@ -15,6 +15,9 @@ import com.wireguard.android.BR
 import com.wireguard.android.BuildConfig
 import com.wireguard.android.util.ExceptionLoggers
 import com.wireguard.util.Keyed
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.nio.ByteBuffer
 import java.util.Locale
 import java.util.regex.Pattern
 import java9.util.concurrent.CompletableFuture
@@ -30,7 +33,6 @@ class Tunnel internal constructor(
     private val manager: TunnelManager,
     @Bindable
     var name: String,
-    private var config: Config?,
     @Bindable
     var state: State?
 ) : BaseObservable(), Keyed<String> {
@@ -39,49 +41,68 @@ class Tunnel internal constructor(
 
     private var statistics: Statistics? = null
 
+    /**
+     * The endpoint of the first peer, known from the tunnel catalog before the configuration
+     * has been loaded; null if there is none or it is not known yet.
+     */
+    @get:Bindable
+    var endpoint: String? = null
+        private set
+
+    // Parsed configurations live in the manager's cache, which may drop them at any time unless
+    // the tunnel is running.
+    private val config: Config?
+        get() = manager.configCache[this]
+
+    /**
+     * The statistics the backend samples into while the tunnel is up. They are kept across
+     * samples so that transfer rates and history can be computed.
+     */
+    internal val statisticsStore = Statistics()
+
     val configAsync: CompletionStage<Config>
-        get() = if (config == null) {
-            manager.getTunnelConfig(this)
-        } else {
-            CompletableFuture.completedFuture(config)
-        }
+        get() = config?.let { CompletableFuture.completedFuture(it) } ?: manager.getTunnelConfig(this)
 
     val stateAsync: CompletionStage<State>
         get() = manager.getTunnelState(this)
 
-    val statisticsAsync: CompletionStage<Statistics>
-        get() = if (statistics == null || statistics!!.isStale()) {
-            manager.getTunnelStatistics(this)
-        } else {
-            CompletableFuture.completedFuture(statistics)
-        }
-
     fun delete(): CompletionStage<Void> {
         return manager.delete(this)
     }
 
     @Bindable
     fun getConfig(): Config? {
+        val config = config
         if (config == null) {
             manager.getTunnelConfig(this).whenComplete(ExceptionLoggers.E)
         }
         return config
     }
 
+    /**
+     * Returns the latest statistics sampled by the [StatisticsMonitor], without sampling new
+     * ones; subscribe to the monitor to keep them up to date.
+     */
     @Bindable
     fun getStatistics(): Statistics? {
-        if (statistics == null || statistics!!.isStale()) {
-            manager.getTunnelStatistics(this).whenComplete(ExceptionLoggers.E)
-        }
         return statistics
     }
 
     fun onConfigChanged(config: Config): Config {
-        this.config = config
+        manager.configCache[this] = config
         notifyPropertyChanged(BR.config)
+        onEndpointChanged(config.peers.firstOrNull()?.endpoint?.toString())
         return config
     }
 
+    fun onEndpointChanged(endpoint: String?): String? {
+        if (endpoint != this.endpoint) {
+            this.endpoint = endpoint
+            notifyPropertyChanged(BR.endpoint)
+        }
+        return endpoint
+    }
+
     fun onNameChanged(name: String): String {
         this.name = name
         notifyPropertyChanged(BR.name)
@@ -91,6 +112,13 @@ class Tunnel internal constructor(
     fun onStateChanged(state: State?): State? {
         if (state != State.UP) {
             onStatisticsChanged(null)
+            statisticsStore.clear()
+        }
+        // The configuration of a running tunnel is needed to change or stop it.
+        if (state == State.UP && this.state != State.UP) {
+            manager.configCache.pin(this)
+        } else if (state != State.UP && this.state == State.UP) {
+            manager.configCache.unpin(this)
         }
         this.state = state
         notifyPropertyChanged(BR.state)
@@ -104,10 +132,12 @@ class Tunnel internal constructor(
     }
 
     fun setConfig(config: Config): CompletionStage<Config> {
-        return if (config != this.config) {
+        val current = this.config
+        // Config.equals() rejects most differing configurations by their fingerprints first.
+        return if (current == null || config != current) {
             manager.setTunnelConfig(this, config)
         } else {
-            CompletableFuture.completedFuture(this.config)
+            CompletableFuture.completedFuture(current)
         }
     }
 
@@ -127,6 +157,43 @@ class Tunnel internal constructor(
         }
     }
 
+    /**
+     * Suspending counterparts of the accessors above. Reads stop waiting when the caller is
+     * cancelled; changes that have reached the backend are always carried through.
+     */
+    suspend fun loadConfig(): Config {
+        return config ?: manager.loadTunnelConfig(this)
+    }
+
+    suspend fun loadState(): State {
+        return manager.loadTunnelState(this)
+    }
+
+    suspend fun loadStatistics(): Statistics {
+        return statistics?.takeUnless { it.isStale() } ?: manager.loadTunnelStatistics(this)
+    }
+
+    suspend fun updateConfig(config: Config): Config {
+        val current = this.config
+        return if (current == null || config != current) {
+            manager.applyTunnelConfig(this, config)
+        } else {
+            current
+        }
+    }
+
+    suspend fun rename(name: String): String {
+        return if (name != this.name) manager.renameTunnel(this, name) else name
+    }
+
+    suspend fun changeState(state: State): State {
+        return if (state != this.state) manager.changeTunnelState(this, state) else state
+    }
+
+    suspend fun remove() {
+        manager.deleteTunnel(this)
+    }
+
     fun createToggleIntent(): Intent {
         return Intent().apply {
             `package` = BuildConfig.APPLICATION_ID
@@ -155,53 +222,381 @@ class Tunnel internal constructor(
         }
     }
 
+    /**
+     * Transfer statistics of the peers of a running tunnel. Every peer is assigned a slot the
+     * first time it is seen, and its counters, latest handshake, endpoint and transfer rates are
+     * kept in parallel primitive arrays indexed by that slot. Each sample also records the rates
+     * of every peer into a fixed-size ring buffer, so that recent throughput can be graphed
+     * without querying the backend again.
+     *
+     * Backends feed a sample by calling [beginSample], then [add] for every peer, then
+     * [endSample]. Samples are taken on a background thread, so all methods are synchronized.
+     */
     class Statistics : BaseObservable() {
-        private var lastTouched = SystemClock.elapsedRealtime()
-        private val peerBytes = HashMap<Key, Pair<Long, Long>>()
+        private val slots = HashMap<Key, Int>()
+        private var keys = arrayOfNulls<Key>(INITIAL_CAPACITY)
+        // The raw public key of every slot, KEY_SIZE bytes each, and an open-addressing index of
+        // slot + 1 (0 for free) hashed on their first eight bytes, so that backends reading
+        // binary records find a known peer's slot without creating a Key for it.
+        private var keyBytes = ByteArray(INITIAL_CAPACITY * KEY_SIZE)
+        private var keyIndex = IntArray(INITIAL_CAPACITY * 2)
+        private var lastSeen = LongArray(INITIAL_CAPACITY)
+        private var rx = LongArray(INITIAL_CAPACITY)
+        private var tx = LongArray(INITIAL_CAPACITY)
+        private var rxRate = LongArray(INITIAL_CAPACITY)
+        private var txRate = LongArray(INITIAL_CAPACITY)
+        private var latestHandshake = LongArray(INITIAL_CAPACITY)
+        // Endpoints are stored as IPv6 addresses, with IPv4 ones mapped into ::ffff:0:0/96.
+        private var endpointHigh = LongArray(INITIAL_CAPACITY)
+        private var endpointLow = LongArray(INITIAL_CAPACITY)
+        // -1 if the peer has no endpoint.
+        private var endpointPort = IntArray(INITIAL_CAPACITY)
+        // Slot s owns the entries [s * HISTORY_SIZE, (s + 1) * HISTORY_SIZE).
+        private var rxHistory = LongArray(INITIAL_CAPACITY * HISTORY_SIZE)
+        private var txHistory = LongArray(INITIAL_CAPACITY * HISTORY_SIZE)
+        private var historyCount = 0
+        private var historyHead = 0
+        private var previousSampleTime = 0L
+        private var sample = 0L
+        private var sampleTime = SystemClock.elapsedRealtime()
+        private var size = 0
+
+        /**
+         * Starts a new sample taken at `now`, in the time base of
+         * [SystemClock.elapsedRealtime]. Peers that are not [add]ed to it are no longer
+         * reported. Returns false, without starting a sample, if `now` is not later than the
+         * time of the current sample, as when a backend serves two polls from the same data.
+         */
+        @Synchronized
+        fun beginSample(now: Long = SystemClock.elapsedRealtime()): Boolean {
+            if (sample != 0L && now <= sampleTime) {
+                return false
+            }
+            previousSampleTime = if (sample == 0L) 0 else sampleTime
+            sampleTime = now
+            sample++
+            return true
+        }
 
-        fun add(key: Key?, rx: Long, tx: Long) {
-            peerBytes[key!!] = Pair(rx, tx)
-            lastTouched = SystemClock.elapsedRealtime()
+        /**
+         * Records the counters of `key` in the current sample. `latestHandshake` is in
+         * milliseconds since the epoch, or 0 if there was none, and `endpointAddress` is the
+         * 4- or 16-byte address of the peer's current endpoint, if it has one.
+         */
+        @Synchronized
+        fun add(
+            key: Key,
+            rx: Long,
+            tx: Long,
+            latestHandshake: Long = 0,
+            endpointAddress: ByteArray? = null,
+            endpointPort: Int = 0
+        ) {
+            record(slots[key] ?: allocateSlot(key), rx, tx, latestHandshake, endpointAddress, endpointPort)
         }
 
+        /**
+         * Like [add], but with the key given as the [Key.Format.BINARY] bytes at `keyOffset` in
+         * `buffer`. A new [Key] is only created the first time a peer is seen.
+         */
+        @Synchronized
+        fun add(
+            buffer: ByteBuffer,
+            keyOffset: Int,
+            rx: Long,
+            tx: Long,
+            latestHandshake: Long,
+            endpointAddress: ByteArray?,
+            endpointPort: Int
+        ) {
+            var slot = findSlot(buffer, keyOffset)
+            if (slot < 0) {
+                val bytes = ByteArray(KEY_SIZE)
+                for (i in bytes.indices) {
+                    bytes[i] = buffer.get(keyOffset + i)
+                }
+                slot = allocateSlot(Key.fromBytes(bytes))
+            }
+            record(slot, rx, tx, latestHandshake, endpointAddress, endpointPort)
+        }
+
+        private fun record(
+            slot: Int,
+            rx: Long,
+            tx: Long,
+            latestHandshake: Long,
+            endpointAddress: ByteArray?,
+            endpointPort: Int
+        ) {
+            val elapsed = sampleTime - previousSampleTime
+            if (lastSeen[slot] == sample - 1 && previousSampleTime != 0L && elapsed > 0) {
+                // Counters that went backwards were reset, so there is no meaningful rate.
+                rxRate[slot] = maxOf(0L, rx - this.rx[slot]) * 1000 / elapsed
+                txRate[slot] = maxOf(0L, tx - this.tx[slot]) * 1000 / elapsed
+            } else {
+                rxRate[slot] = 0
+                txRate[slot] = 0
+            }
+            lastSeen[slot] = sample
+            this.rx[slot] = rx
+            this.tx[slot] = tx
+            this.latestHandshake[slot] = latestHandshake
+            when (endpointAddress?.size) {
+                4 -> {
+                    endpointHigh[slot] = 0
+                    endpointLow[slot] = 0xffffL shl 32 or (readLong(endpointAddress, 0, 4) and 0xffffffffL)
+                    this.endpointPort[slot] = endpointPort
+                }
+                16 -> {
+                    endpointHigh[slot] = readLong(endpointAddress, 0, 8)
+                    endpointLow[slot] = readLong(endpointAddress, 8, 8)
+                    this.endpointPort[slot] = endpointPort
+                }
+                else -> this.endpointPort[slot] = -1
+            }
+        }
+
+        /**
+         * Completes the current sample, appending the rates of every peer to its history.
+         */
+        @Synchronized
+        fun endSample() {
+            for (slot in 0 until size) {
+                val seen = lastSeen[slot] == sample
+                rxHistory[slot * HISTORY_SIZE + historyHead] = if (seen) rxRate[slot] else 0
+                txHistory[slot * HISTORY_SIZE + historyHead] = if (seen) txRate[slot] else 0
+            }
+            historyHead = (historyHead + 1) % HISTORY_SIZE
+            historyCount = minOf(historyCount + 1, HISTORY_SIZE)
+        }
+
+        /**
+         * Forgets every peer and all history, as when the tunnel goes down.
+         */
+        @Synchronized
+        fun clear() {
+            slots.clear()
+            keys.fill(null)
+            keyIndex.fill(0)
+            historyCount = 0
+            historyHead = 0
+            previousSampleTime = 0
+            sample = 0
+            size = 0
+        }
+
+        @Synchronized
         internal fun isStale(): Boolean {
-            return SystemClock.elapsedRealtime() - lastTouched > 900
+            return SystemClock.elapsedRealtime() - sampleTime > 900
         }
 
+        @Synchronized
         fun peers(): Array<Key>? {
-            return peerBytes.keys.toTypedArray()
+            val peers = ArrayList<Key>(size)
+            for (slot in 0 until size) {
+                if (lastSeen[slot] == sample) peers.add(keys[slot]!!)
+            }
+            return peers.toTypedArray()
         }
 
+        @Synchronized
         fun peerRx(peer: Key?): Long {
-            return if (!peerBytes.containsKey(peer)) {
-                0
-            } else {
-                peerBytes[peer]!!.first
-            }
+            return currentSlot(peer)?.let { rx[it] } ?: 0
         }
 
+        @Synchronized
         fun peerTx(peer: Key?): Long {
-            return if (!peerBytes.containsKey(peer)) {
-                0
+            return currentSlot(peer)?.let { tx[it] } ?: 0
+        }
+
+        /**
+         * Returns the rate at which `peer` received data during the last sample, in bytes per
+         * second.
+         */
+        @Synchronized
+        fun peerRxRate(peer: Key?): Long {
+            return currentSlot(peer)?.let { rxRate[it] } ?: 0
+        }
+
+        /**
+         * Returns the rate at which `peer` sent data during the last sample, in bytes per second.
+         */
+        @Synchronized
+        fun peerTxRate(peer: Key?): Long {
+            return currentSlot(peer)?.let { txRate[it] } ?: 0
+        }
+
+        /**
+         * Returns the time of the latest handshake with `peer` in milliseconds since the epoch,
+         * or 0 if there has not been one.
+         */
+        @Synchronized
+        fun peerLatestHandshake(peer: Key?): Long {
+            return currentSlot(peer)?.let { latestHandshake[it] } ?: 0
+        }
+
+        @Synchronized
+        fun peerEndpoint(peer: Key?): InetSocketAddress? {
+            val slot = currentSlot(peer) ?: return null
+            if (endpointPort[slot] < 0) {
+                return null
+            }
+            val high = endpointHigh[slot]
+            val low = endpointLow[slot]
+            val bytes = if (high == 0L && low ushr 32 == 0xffffL) {
+                ByteArray(4) { (low ushr (24 - it * 8)).toByte() }
             } else {
-                peerBytes[peer]!!.second
+                ByteArray(16) { ((if (it < 8) high else low) ushr (56 - it % 8 * 8)).toByte() }
             }
+            return InetSocketAddress(InetAddress.getByAddress(bytes), endpointPort[slot])
         }
 
+        /**
+         * Copies the received-bytes rates of the most recent samples of `peer` into `out`,
+         * oldest first, and returns how many were copied.
+         */
+        @Synchronized
+        fun peerRxHistory(peer: Key?, out: LongArray): Int {
+            return copyHistory(rxHistory, peer, out)
+        }
+
+        /**
+         * Copies the sent-bytes rates of the most recent samples of `peer` into `out`, oldest
+         * first, and returns how many were copied.
+         */
+        @Synchronized
+        fun peerTxHistory(peer: Key?, out: LongArray): Int {
+            return copyHistory(txHistory, peer, out)
+        }
+
+        @Synchronized
         fun totalRx(): Long {
-            var rx: Long = 0
-            for ((first) in peerBytes.values) {
-                rx += first
+            var total: Long = 0
+            for (slot in 0 until size) {
+                if (lastSeen[slot] == sample) total += rx[slot]
             }
-            return rx
+            return total
         }
 
+        @Synchronized
         fun totalTx(): Long {
-            var tx: Long = 0
-            for ((_, second) in peerBytes.values) {
-                tx += second
+            var total: Long = 0
+            for (slot in 0 until size) {
+                if (lastSeen[slot] == sample) total += tx[slot]
+            }
+            return total
+        }
+
+        private fun allocateSlot(key: Key): Int {
+            if (size == keys.size) {
+                val capacity = size * 2
+                keys = keys.copyOf(capacity)
+                keyBytes = keyBytes.copyOf(capacity * KEY_SIZE)
+                lastSeen = lastSeen.copyOf(capacity)
+                rx = rx.copyOf(capacity)
+                tx = tx.copyOf(capacity)
+                rxRate = rxRate.copyOf(capacity)
+                txRate = txRate.copyOf(capacity)
+                latestHandshake = latestHandshake.copyOf(capacity)
+                endpointHigh = endpointHigh.copyOf(capacity)
+                endpointLow = endpointLow.copyOf(capacity)
+                endpointPort = endpointPort.copyOf(capacity)
+                rxHistory = rxHistory.copyOf(capacity * HISTORY_SIZE)
+                txHistory = txHistory.copyOf(capacity * HISTORY_SIZE)
+            }
+            val slot = size++
+            keys[slot] = key
+            key.bytes.copyInto(keyBytes, slot * KEY_SIZE)
+            if (size * 2 > keyIndex.size) {
+                keyIndex = IntArray(keyIndex.size * 2)
+                for (s in 0 until size) {
+                    insertIndex(s)
+                }
+            } else {
+                insertIndex(slot)
+            }
+            lastSeen[slot] = 0
+            rx[slot] = 0
+            tx[slot] = 0
+            rxHistory.fill(0, slot * HISTORY_SIZE, (slot + 1) * HISTORY_SIZE)
+            txHistory.fill(0, slot * HISTORY_SIZE, (slot + 1) * HISTORY_SIZE)
+            slots[key] = slot
+            return slot
+        }
+
+        private fun findSlot(buffer: ByteBuffer, keyOffset: Int): Int {
+            val mask = keyIndex.size - 1
+            var prefix = 0L
+            for (j in 0 until Long.SIZE_BYTES) {
+                prefix = prefix shl 8 or (buffer.get(keyOffset + j).toLong() and 0xff)
+            }
+            var i = hash(prefix) and mask
+            while (true) {
+                val slot = keyIndex[i] - 1
+                if (slot < 0) {
+                    return -1
+                }
+                if (keyEquals(slot, buffer, keyOffset)) {
+                    return slot
+                }
+                i = (i + 1) and mask
+            }
+        }
+
+        private fun keyEquals(slot: Int, buffer: ByteBuffer, keyOffset: Int): Boolean {
+            val base = slot * KEY_SIZE
+            for (i in 0 until KEY_SIZE) {
+                if (keyBytes[base + i] != buffer.get(keyOffset + i)) {
+                    return false
+                }
+            }
+            return true
+        }
+
+        private fun insertIndex(slot: Int) {
+            val mask = keyIndex.size - 1
+            var i = hash(readLong(keyBytes, slot * KEY_SIZE, Long.SIZE_BYTES)) and mask
+            while (keyIndex[i] != 0) {
+                i = (i + 1) and mask
+            }
+            keyIndex[i] = slot + 1
+        }
+
+        private fun copyHistory(history: LongArray, peer: Key?, out: LongArray): Int {
+            val slot = currentSlot(peer) ?: return 0
+            val count = minOf(historyCount, out.size)
+            for (i in 0 until count) {
+                val index = (historyHead - count + i + HISTORY_SIZE) % HISTORY_SIZE
+                out[i] = history[slot * HISTORY_SIZE + index]
+            }
+            return count
+        }
+
+        private fun currentSlot(peer: Key?): Int? {
+            val slot = slots[peer ?: return null] ?: return null
+            return if (lastSeen[slot] == sample) slot else null
+        }
+
+        companion object {
+            /**
+             * The number of samples kept per peer; a minute at the usual polling interval.
+             */
+            const val HISTORY_SIZE = 60
+            private const val INITIAL_CAPACITY = 4
+            private val KEY_SIZE = Key.Format.BINARY.length
+
+            // Keys are random, so any eight of their bytes already hash well.
+            private fun hash(value: Long): Int {
+                return (value xor (value ushr 32)).toInt()
+            }
+
+            private fun readLong(bytes: ByteArray, offset: Int, length: Int): Long {
+                var value = 0L
+                for (i in offset until offset + length) {
+                    value = value shl 8 or (bytes[i].toLong() and 0xff)
+                }
+                return value
             }
-            return tx
         }
     }
 
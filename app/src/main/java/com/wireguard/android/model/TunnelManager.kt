@@ -24,14 +24,21 @@ import com.wireguard.android.providers.OneTapWidget
 import com.wireguard.android.util.ApplicationPreferences
 import com.wireguard.android.util.AsyncWorker
 import com.wireguard.android.util.ExceptionLoggers
-import com.wireguard.android.util.KotlinCompanions
+import com.wireguard.android.util.LaneExecutor.Lane
 import com.wireguard.android.util.ObservableSortedKeyedArrayList
 import com.wireguard.android.util.ObservableSortedKeyedList
+import com.wireguard.android.util.await
+import com.wireguard.android.util.future
 import java9.util.Comparators
 import java9.util.concurrent.CompletableFuture
 import java9.util.concurrent.CompletionStage
 import javax.inject.Inject
 import javax.inject.Singleton
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.withContext
 import me.msfjarvis.viscerion.config.Config
 import timber.log.Timber
 
@@ -41,17 +48,28 @@ class TunnelManager @Inject constructor(
     private val backend: Backend,
     private val context: Context,
     private val configStore: ConfigStore,
-    private val prefs: ApplicationPreferences
+    private val prefs: ApplicationPreferences,
+    private val statisticsMonitor: StatisticsMonitor
 ) : BaseObservable() {
 
+    /**
+     * The parsed configurations of tunnels, of which only those of running tunnels are kept
+     * in memory for sure.
+     */
+    val configCache = ConfigCache<Tunnel>()
     private val completableTunnels = CompletableFuture<ObservableSortedKeyedList<String, Tunnel>>()
+    // Tunnels and their observable properties are only touched on the main thread, which is
+    // where the futures returned by the CompletionStage API have always been completed.
+    private val scope = CoroutineScope(SupervisorJob() + Dispatchers.Main.immediate)
     private val tunnels = ObservableSortedKeyedArrayList<String, Tunnel>(COMPARATOR)
     private val delayedLoadRestoreTunnels = ArrayList<CompletableFuture<Void>>()
     private var haveLoaded: Boolean = false
 
     init {
-        asyncWorker.supplyAsync {
-            configStore.enumerate()
+        asyncWorker.supplyAsync(Lane.IO) {
+            // Stores that keep a catalog know the endpoints too, so the list can show them
+            // without any parsing.
+            configStore.summarize().associate { it.name to it.endpoint }
         }.thenAcceptBoth(asyncWorker.supplyAsync {
             backend.enumerate()
         }) { present, running ->
@@ -59,25 +77,93 @@ class TunnelManager @Inject constructor(
         }.whenComplete(ExceptionLoggers.E)
     }
 
-    private fun addToList(name: String, config: Config?, state: Tunnel.State): Tunnel {
-        val tunnel = Tunnel(this, name, config, state)
-        tunnels.add(tunnel)
+    /**
+     * Outcome of a batch operation: the tunnels it succeeded for, and why it failed for the rest,
+     * keyed by tunnel name.
+     */
+    class BatchResult internal constructor(val tunnels: List<Tunnel>, val failures: Map<String, Exception>)
+
+    private fun newTunnel(name: String, config: Config?, state: Tunnel.State): Tunnel {
+        val tunnel = Tunnel(this, name, state)
+        if (state == Tunnel.State.UP) {
+            configCache.pin(tunnel)
+        }
+        config?.let { tunnel.onConfigChanged(it) }
         return tunnel
     }
 
+    private fun addToList(name: String, config: Config?, state: Tunnel.State): Tunnel {
+        return newTunnel(name, config, state).also { tunnels.add(it) }
+    }
+
+    /**
+     * Returns why `name` cannot be given to a new tunnel, or null if it can.
+     */
+    private fun checkNewName(name: String): IllegalArgumentException? {
+        return when {
+            Tunnel.isNameInvalid(name) -> IllegalArgumentException(context.getString(R.string.tunnel_error_invalid_name))
+            tunnels.containsKey(name) -> IllegalArgumentException(context.getString(R.string.tunnel_error_already_exists, name))
+            else -> null
+        }
+    }
+
     fun create(name: String, config: Config?): CompletionStage<Tunnel> {
-        if (Tunnel.isNameInvalid(name)) {
-            return CompletableFuture.failedFuture(IllegalArgumentException(context.getString(R.string.tunnel_error_invalid_name)))
+        return scope.future { createTunnel(name, config) }
+    }
+
+    /**
+     * Suspending counterpart of [create].
+     */
+    suspend fun createTunnel(name: String, config: Config?): Tunnel = withContext(Dispatchers.Main.immediate) {
+        checkNewName(name)?.let { throw it }
+        val savedConfig = withContext(NonCancellable) {
+            asyncWorker.await(key = name) { config?.let { configStore.create(name, it) } }
         }
-        if (tunnels.containsKey(name)) {
-            val message = context.getString(R.string.tunnel_error_already_exists, name)
-            return CompletableFuture.failedFuture(IllegalArgumentException(message))
+        addToList(name, savedConfig, Tunnel.State.DOWN)
+    }
+
+    fun createAll(configs: Map<String, Config>): CompletionStage<BatchResult> {
+        return scope.future { createTunnels(configs) }
+    }
+
+    /**
+     * Suspending counterpart of [createAll]. The configurations are written to the store as one
+     * batch, and the new tunnels join the tunnel list together.
+     */
+    suspend fun createTunnels(configs: Map<String, Config>): BatchResult = withContext(Dispatchers.Main.immediate) {
+        val failures = LinkedHashMap<String, Exception>()
+        val valid = LinkedHashMap<String, Config>()
+        for ((name, config) in configs) {
+            val error = checkNewName(name)
+            if (error != null) {
+                failures[name] = error
+            } else {
+                valid[name] = config
+            }
         }
-        return asyncWorker.supplyAsync { config?.let { configStore.create(name, it) } }
-            .thenApply { savedConfig -> addToList(name, savedConfig, Tunnel.State.DOWN) }
+        val created = ArrayList<Tunnel>(valid.size)
+        if (valid.isNotEmpty()) {
+            val results = withContext(NonCancellable) {
+                asyncWorker.await(Lane.IO) { configStore.createAll(valid) }
+            }
+            for ((name, config) in valid) {
+                val error = results[name]
+                if (error != null) {
+                    failures[name] = error
+                } else {
+                    created.add(newTunnel(name, config, Tunnel.State.DOWN))
+                }
+            }
+            tunnels.addAll(created)
+        }
+        BatchResult(created, failures)
     }
 
     internal fun delete(tunnel: Tunnel): CompletionStage<Void> {
+        return scope.future { deleteTunnel(tunnel) }.thenApply { null }
+    }
+
+    internal suspend fun deleteTunnel(tunnel: Tunnel) = withContext(Dispatchers.Main.immediate) {
         val originalState = tunnel.state
         val wasLastUsed = tunnel == lastUsedTunnel
         // Make sure nothing touches the tunnel.
@@ -85,29 +171,97 @@ class TunnelManager @Inject constructor(
             setLastUsedTunnel(null)
         }
         tunnels.remove(tunnel)
-        return asyncWorker.runAsync {
-            if (originalState == Tunnel.State.UP) {
-                backend.setState(tunnel, Tunnel.State.DOWN)
-            }
-            try {
-                configStore.delete(tunnel.name)
-            } catch (e: Exception) {
-                if (originalState == Tunnel.State.UP) {
-                    backend.setState(tunnel, Tunnel.State.UP)
+        try {
+            withContext(NonCancellable) {
+                asyncWorker.await(key = tunnel.name) {
+                    if (originalState == Tunnel.State.UP) {
+                        backend.setState(tunnel, Tunnel.State.DOWN)
+                    }
+                    try {
+                        configStore.delete(tunnel.name)
+                    } catch (e: Exception) {
+                        if (originalState == Tunnel.State.UP) {
+                            backend.setState(tunnel, Tunnel.State.UP)
+                        }
+                        // Re-throw the exception to fail the deletion.
+                        throw e
+                    }
                 }
-                // Re-throw the exception to fail the completion.
-                throw e
-            }
-        }.whenComplete { _, e ->
-            if (e == null) {
-                return@whenComplete
             }
+        } catch (e: Throwable) {
             // Failure, put the tunnel back.
             tunnels.add(tunnel)
             if (wasLastUsed) {
                 setLastUsedTunnel(tunnel)
             }
+            throw e
+        }
+        configCache.remove(tunnel)
+    }
+
+    fun deleteAll(toDelete: Collection<Tunnel>): CompletionStage<BatchResult> {
+        return scope.future { deleteTunnels(toDelete) }
+    }
+
+    /**
+     * Suspending counterpart of [deleteAll]. Running tunnels are brought down first, the
+     * configurations are deleted from the store as one batch, and the tunnels that could not be
+     * deleted are put back into the tunnel list together.
+     */
+    suspend fun deleteTunnels(toDelete: Collection<Tunnel>): BatchResult = withContext(Dispatchers.Main.immediate) {
+        val batch = toDelete.filter { tunnels[it.name] == it }
+        val wasUp = batch.filter { it.state == Tunnel.State.UP }
+        val lastUsed = lastUsedTunnel
+        val wasLastUsed = lastUsed != null && lastUsed in batch
+        // Make sure nothing touches the tunnels.
+        if (wasLastUsed) {
+            setLastUsedTunnel(null)
+        }
+        tunnels.removeAll(batch)
+        val failures = LinkedHashMap<String, Exception>()
+        withContext(NonCancellable) {
+            if (wasUp.isNotEmpty()) {
+                asyncWorker.await(keys = wasUp.map { it.name }) {
+                    for (tunnel in wasUp) {
+                        try {
+                            backend.setState(tunnel, Tunnel.State.DOWN)
+                        } catch (e: Exception) {
+                            failures[tunnel.name] = e
+                        }
+                    }
+                }
+            }
+            val names = batch.map { it.name }.filter { it !in failures }
+            val undeleted = HashSet<String>()
+            if (names.isNotEmpty()) {
+                asyncWorker.await(Lane.IO) { configStore.deleteAll(names) }.forEach { (name, e) ->
+                    if (e != null) {
+                        failures[name] = e
+                        undeleted.add(name)
+                    }
+                }
+            }
+            val toBringBack = wasUp.filter { it.name in undeleted }
+            if (toBringBack.isNotEmpty()) {
+                asyncWorker.await(keys = toBringBack.map { it.name }) {
+                    for (tunnel in toBringBack) {
+                        try {
+                            backend.setState(tunnel, Tunnel.State.UP)
+                        } catch (e: Exception) {
+                            Timber.w(e, "Unable to bring %s back up", tunnel.name)
+                        }
+                    }
+                }
+            }
+        }
+        val (failed, deleted) = batch.partition { it.name in failures }
+        // Failure, put the tunnels back.
+        tunnels.addAll(failed)
+        if (wasLastUsed && lastUsed in failed) {
+            setLastUsedTunnel(lastUsed)
         }
+        deleted.forEach { configCache.remove(it) }
+        BatchResult(deleted, failures)
     }
 
     @Bindable
@@ -125,17 +279,23 @@ class TunnelManager @Inject constructor(
     }
 
     internal fun getTunnelConfig(tunnel: Tunnel): CompletionStage<Config> {
-        return asyncWorker.supplyAsync { configStore.load(tunnel.name) }
-            .thenApply(tunnel::onConfigChanged)
+        return scope.future { loadTunnelConfig(tunnel) }
+    }
+
+    internal suspend fun loadTunnelConfig(tunnel: Tunnel): Config = withContext(Dispatchers.Main.immediate) {
+        tunnel.onConfigChanged(asyncWorker.await(key = tunnel.name) { configStore.load(tunnel.name) })
     }
 
     fun getTunnels(): CompletableFuture<ObservableSortedKeyedList<String, Tunnel>> {
         return completableTunnels
     }
 
-    private fun onTunnelsLoaded(present: Iterable<String>, running: Collection<String>) {
-        for (name in present)
-            addToList(name, null, if (running.contains(name)) Tunnel.State.UP else Tunnel.State.DOWN)
+    private fun onTunnelsLoaded(present: Map<String, String?>, running: Collection<String>) {
+        tunnels.addAll(present.map { (name, endpoint) ->
+            newTunnel(name, null, if (running.contains(name)) Tunnel.State.UP else Tunnel.State.DOWN).apply {
+                onEndpointChanged(endpoint)
+            }
+        })
         val lastUsedName = prefs.lastUsedTunnel
         if (lastUsedName.isNotEmpty()) {
             setLastUsedTunnel(tunnels[lastUsedName])
@@ -187,8 +347,62 @@ class TunnelManager @Inject constructor(
                 return f
             }
         }
-        val previouslyRunning = prefs.runningTunnels
-        return KotlinCompanions.streamForStateChange(tunnels, previouslyRunning, this)
+        return scope.future {
+            val failure = restoreTunnels(prefs.runningTunnels).values.firstOrNull { it != null }
+            if (failure != null) {
+                throw failure
+            }
+        }.thenApply { null }
+    }
+
+    /**
+     * Brings the tunnels named in `names` back up as one batch, and returns the outcome for each
+     * of them: null if it is up, or else why it could not be brought up.
+     *
+     * All configurations are parsed in parallel first, so that broken ones are reported without
+     * ever reaching the backend. The rest are handed to [Backend.restore] together, last used
+     * tunnel first, which lets the kernel backend start them all in one root shell and the
+     * userspace backend pick the one it can run.
+     */
+    suspend fun restoreTunnels(names: Set<String>): Map<String, Exception?> = withContext(Dispatchers.Main.immediate) {
+        val toRestore = tunnels.filter { it.name in names }
+            .sortedByDescending { it == lastUsedTunnel }
+        val results = LinkedHashMap<String, Exception?>()
+        if (toRestore.isEmpty()) {
+            return@withContext results
+        }
+        val parsed = asyncWorker.await(Lane.IO) { configStore.loadAll(toRestore.map { it.name }) }
+        val valid = ArrayList<Tunnel>()
+        for (tunnel in toRestore) {
+            val result = parsed[tunnel.name]
+            val config = result?.config
+            if (config != null) {
+                configCache.pin(tunnel)
+                tunnel.onConfigChanged(config)
+                valid.add(tunnel)
+            } else {
+                results[tunnel.name] = result?.error ?: IllegalStateException("No configuration for ${tunnel.name}")
+            }
+        }
+        if (valid.isNotEmpty()) {
+            withContext(NonCancellable) {
+                try {
+                    val keys = valid.map { it.name }
+                    val (restored, running) = asyncWorker.await(keys = keys) {
+                        Pair(backend.restore(valid), backend.enumerate())
+                    }
+                    for (tunnel in valid) {
+                        results[tunnel.name] = restored[tunnel]
+                        tunnel.onStateChanged(Tunnel.State.of(tunnel.name in running))
+                    }
+                    onStatesChanged()
+                } finally {
+                    valid.forEach { configCache.unpin(it) }
+                }
+            }
+        }
+        results.forEach { (name, e) -> e?.let { Timber.w(it, "Unable to restore %s", name) } }
+        results
     }
 
     fun saveState() {
@@ -209,20 +423,25 @@ class TunnelManager @Inject constructor(
     }
 
     internal fun setTunnelConfig(tunnel: Tunnel, config: Config): CompletionStage<Config> {
-        return asyncWorker.supplyAsync {
-            val appliedConfig = backend.applyConfig(tunnel, config)
-            configStore.save(tunnel.name, appliedConfig)
-        }.thenApply(tunnel::onConfigChanged)
+        return scope.future { applyTunnelConfig(tunnel, config) }
     }
 
-    internal fun setTunnelName(tunnel: Tunnel, name: String): CompletionStage<String> {
-        if (Tunnel.isNameInvalid(name)) {
-            return CompletableFuture.failedFuture(IllegalArgumentException(context.getString(R.string.tunnel_error_invalid_name)))
-        }
-        if (tunnels.containsKey(name)) {
-            val message = context.getString(R.string.tunnel_error_already_exists, name)
-            return CompletableFuture.failedFuture(IllegalArgumentException(message))
+    internal suspend fun applyTunnelConfig(tunnel: Tunnel, config: Config): Config = withContext(Dispatchers.Main.immediate) {
+        val savedConfig = withContext(NonCancellable) {
+            asyncWorker.await(key = tunnel.name) {
+                val appliedConfig = backend.applyConfig(tunnel, config)
+                configStore.save(tunnel.name, appliedConfig)
+            }
         }
+        tunnel.onConfigChanged(savedConfig)
+    }
+
+    internal fun setTunnelName(tunnel: Tunnel, name: String): CompletionStage<String> {
+        return scope.future { renameTunnel(tunnel, name) }
+    }
+
+    internal suspend fun renameTunnel(tunnel: Tunnel, name: String): String = withContext(Dispatchers.Main.immediate) {
+        checkNewName(name)?.let { throw it }
         val originalState = tunnel.state
         val wasLastUsed = tunnel == lastUsedTunnel
         // Make sure nothing touches the tunnel.
@@ -230,21 +449,25 @@ class TunnelManager @Inject constructor(
             setLastUsedTunnel(null)
         }
         tunnels.remove(tunnel)
-        return asyncWorker.supplyAsync {
-            if (originalState == Tunnel.State.UP) {
-                backend.setState(tunnel, Tunnel.State.DOWN)
-            }
-            configStore.rename(tunnel.name, name)
-            val newName = tunnel.onNameChanged(name)
-            if (originalState == Tunnel.State.UP) {
-                backend.setState(tunnel, Tunnel.State.UP)
+        try {
+            withContext(NonCancellable) {
+                asyncWorker.await(key = tunnel.name) {
+                    if (originalState == Tunnel.State.UP) {
+                        backend.setState(tunnel, Tunnel.State.DOWN)
+                    }
+                    configStore.rename(tunnel.name, name)
+                    val newName = tunnel.onNameChanged(name)
+                    if (originalState == Tunnel.State.UP) {
+                        backend.setState(tunnel, Tunnel.State.UP)
+                    }
+                    newName
+                }
             }
-            newName
-        }.whenComplete { _, e ->
+        } catch (e: Throwable) {
             // On failure, we don't know what state the tunnel might be in. Fix that.
-            if (e != null) {
-                getTunnelState(tunnel)
-            }
+            getTunnelState(tunnel)
+            throw e
+        } finally {
             // Add the tunnel back to the manager, under whatever name it thinks it has.
             tunnels.add(tunnel)
             if (wasLastUsed) {
@@ -254,48 +477,61 @@ class TunnelManager @Inject constructor(
     }
 
     fun setTunnelState(tunnel: Tunnel, state: Tunnel.State): CompletionStage<Tunnel.State> {
-        // Ensure the configuration is loaded before trying to use it.
-        return tunnel.configAsync.thenCompose {
-            asyncWorker.supplyAsync {
-                backend.setState(
-                    tunnel,
-                    state
-                )
-            }
-        }.whenComplete { newState, e ->
+        return scope.future { changeTunnelState(tunnel, state) }
+    }
+
+    /**
+     * Suspending counterpart of [setTunnelState]. Once the backend has been asked to change the
+     * state, the change completes even if the caller is cancelled.
+     */
+    suspend fun changeTunnelState(tunnel: Tunnel, state: Tunnel.State): Tunnel.State = withContext(Dispatchers.Main.immediate) {
+        var newState: Tunnel.State? = null
+        // Keep the configuration around until the backend is done with it.
+        configCache.pin(tunnel)
+        try {
+            // Ensure the configuration is loaded before trying to use it.
+            tunnel.loadConfig()
+            withContext(NonCancellable) {
+                asyncWorker.await(key = tunnel.name) { backend.setState(tunnel, state) }
+            }.also { newState = it }
+        } finally {
             // Ensure onStateChanged is always called (failure or not), and with the correct state.
-            tunnel.onStateChanged(
-                if (e == null) {
-                    newState
-                } else {
-                    tunnel.state
-                }
-            )
-            if (e == null && newState == Tunnel.State.UP) {
+            tunnel.onStateChanged(newState ?: tunnel.state)
+            configCache.unpin(tunnel)
+            if (newState == Tunnel.State.UP) {
                 setLastUsedTunnel(tunnel)
             }
-            saveState()
-            context.contentResolver.notifyChange(
-                Uri.parse("content://${BuildConfig.APPLICATION_ID}/vpn"),
-                null
-            )
-            context.sendBroadcast(Intent(context, OneTapWidget::class.java).apply {
-                val ids = AppWidgetManager.getInstance(context)
-                    .getAppWidgetIds(ComponentName(context, OneTapWidget::class.java))
-                putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, ids)
-                action = AppWidgetManager.ACTION_APPWIDGET_UPDATE
-            })
+            onStatesChanged()
         }
     }
 
+    /**
+     * Persists the set of running tunnels and lets the content provider and widget know.
+     */
+    private fun onStatesChanged() {
+        saveState()
+        context.contentResolver.notifyChange(
+            Uri.parse("content://${BuildConfig.APPLICATION_ID}/vpn"),
+            null
+        )
+        context.sendBroadcast(Intent(context, OneTapWidget::class.java).apply {
+            val ids = AppWidgetManager.getInstance(context)
+                .getAppWidgetIds(ComponentName(context, OneTapWidget::class.java))
+            putExtra(AppWidgetManager.EXTRA_APPWIDGET_IDS, ids)
+            action = AppWidgetManager.ACTION_APPWIDGET_UPDATE
+        })
+    }
+
     internal fun getTunnelState(tunnel: Tunnel): CompletionStage<Tunnel.State> {
-        return asyncWorker.supplyAsync { backend.getState(tunnel) }
-            .thenApply(tunnel::onStateChanged)
+        return scope.future { loadTunnelState(tunnel) }
+    }
+
+    internal suspend fun loadTunnelState(tunnel: Tunnel): Tunnel.State = withContext(Dispatchers.Main.immediate) {
+        asyncWorker.await(key = tunnel.name) { backend.getState(tunnel) }.also { tunnel.onStateChanged(it) }
     }
 
-    fun getTunnelStatistics(tunnel: Tunnel): CompletionStage<Statistics> {
-        return asyncWorker.supplyAsync { backend.getStatistics(tunnel) }
-            .thenApply(tunnel::onStatisticsChanged)
+    internal suspend fun loadTunnelStatistics(tunnel: Tunnel): Statistics = withContext(Dispatchers.Main.immediate) {
+        statisticsMonitor.refresh(tunnel).await()
     }
 
     class IntentReceiver : BroadcastReceiver() {
@@ -11,6 +11,7 @@ import androidx.preference.Preference
 import com.wireguard.android.R
 import com.wireguard.android.di.injector
 import com.wireguard.android.util.AsyncWorker
+import com.wireguard.android.util.LaneExecutor.Lane
 import com.wireguard.android.util.ToolsInstaller
 import javax.inject.Inject
 import timber.log.Timber
@@ -36,7 +37,7 @@ class ToolsInstallerPreference(context: Context, attrs: AttributeSet) : Preferen
     override fun onAttached() {
         injector.inject(this)
         super.onAttached()
-        asyncWorker.supplyAsync {
+        asyncWorker.supplyAsync(Lane.BACKGROUND) {
             toolsInstaller.areInstalled()
         }.whenComplete(::onCheckResult)
     }
@@ -16,6 +16,7 @@ import com.wireguard.android.R
 import com.wireguard.android.di.injector
 import com.wireguard.android.util.AsyncWorker
 import com.wireguard.android.util.BackendAsync
+import com.wireguard.android.util.LaneExecutor.Lane
 import java.util.Locale
 import javax.inject.Inject
 
@@ -33,7 +34,7 @@ class VersionPreference(context: Context, attrs: AttributeSet) : Preference(cont
                     R.string.version_summary_checking,
                     backend.getTypePrettyName().toLowerCase(Locale.ROOT)
                 )
-            asyncWorker.supplyAsync {
+            asyncWorker.supplyAsync(Lane.BACKGROUND) {
                 backend.getVersion()
             }.whenComplete { version, exception ->
                 versionSummary = if (exception == null) {
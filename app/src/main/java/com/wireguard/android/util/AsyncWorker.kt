@@ -6,22 +6,27 @@
 package com.wireguard.android.util
 
 import android.os.Handler
-import java.util.concurrent.Executor
+import com.wireguard.android.util.LaneExecutor.Lane
+import java.util.concurrent.RejectedExecutionException
 import java9.util.concurrent.CompletableFuture
 import java9.util.concurrent.CompletionStage
 import javax.inject.Inject
 import javax.inject.Singleton
+import kotlin.coroutines.resumeWithException
+import kotlinx.coroutines.suspendCancellableCoroutine
 
 /**
  * Helper class for running asynchronous tasks and ensuring they are completed on the main thread.
+ * Tasks run in the [Lane.CONTROL] lane unless told otherwise; see [LaneExecutor] for the
+ * ordering each lane guarantees.
  */
 
 @Singleton
-class AsyncWorker @Inject constructor(private val executor: Executor, private val handler: Handler) {
+class AsyncWorker @Inject constructor(private val executor: LaneExecutor, private val handler: Handler) {
 
-    fun runAsync(run: () -> Unit): CompletionStage<Void> {
+    fun runAsync(lane: Lane = Lane.CONTROL, key: String? = null, run: () -> Unit): CompletionStage<Void> {
         val future = CompletableFuture<Void>()
-        executor.execute {
+        execute(lane, key, future) {
             try {
                 run()
                 handler.post { future.complete(null) }
@@ -32,9 +37,9 @@ class AsyncWorker @Inject constructor(private val executor: Executor, private va
         return future
     }
 
-    fun <T> supplyAsync(get: () -> T?): CompletionStage<T> {
+    fun <T> supplyAsync(lane: Lane = Lane.CONTROL, key: String? = null, get: () -> T?): CompletionStage<T> {
         val future = CompletableFuture<T>()
-        executor.execute {
+        execute(lane, key, future) {
             try {
                 val result = get()
                 handler.post { future.complete(result) }
@@ -44,4 +49,44 @@ class AsyncWorker @Inject constructor(private val executor: Executor, private va
         }
         return future
     }
+
+    /**
+     * Runs `get` in `lane` and suspends until it completes. The caller resumes in its own
+     * context straight from the worker thread, so several steps chained in one coroutine do not
+     * bounce through the main thread in between. If the caller is cancelled before `get` has
+     * started, it is never run.
+     */
+    suspend fun <T> await(lane: Lane = Lane.CONTROL, key: String? = null, get: () -> T): T {
+        return await(get) { executor.execute(lane, key, it) }
+    }
+
+    /**
+     * Like [await], but serializes `get` against every one of `keys` at once, for work that
+     * touches several tunnels in a single call.
+     */
+    suspend fun <T> await(lane: Lane = Lane.CONTROL, keys: Collection<String>, get: () -> T): T {
+        return await(get) { executor.execute(lane, keys, it) }
+    }
+
+    private suspend fun <T> await(get: () -> T, submit: (Runnable) -> Unit): T {
+        return suspendCancellableCoroutine { continuation ->
+            try {
+                submit(Runnable {
+                    if (continuation.isActive) {
+                        continuation.resumeWith(runCatching(get))
+                    }
+                })
+            } catch (e: RejectedExecutionException) {
+                continuation.resumeWithException(e)
+            }
+        }
+    }
+
+    private fun execute(lane: Lane, key: String?, future: CompletableFuture<*>, task: () -> Unit) {
+        try {
+            executor.execute(lane, key, Runnable(task))
+        } catch (e: RejectedExecutionException) {
+            future.completeExceptionally(e)
+        }
+    }
 }
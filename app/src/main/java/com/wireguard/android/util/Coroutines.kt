@@ -0,0 +1,66 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.util
+
+import java.util.concurrent.CancellationException
+import java.util.concurrent.ExecutionException
+import java9.util.concurrent.CompletableFuture
+import java9.util.concurrent.CompletionException
+import java9.util.concurrent.CompletionStage
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.suspendCancellableCoroutine
+
+/**
+ * Runs `block` in a new coroutine and returns a future of its result. Cancelling the future
+ * cancels the coroutine, and cancelling the coroutine cancels the future.
+ */
+fun <T> CoroutineScope.future(block: suspend CoroutineScope.() -> T): CompletionStage<T> {
+    val future = CompletableFuture<T>()
+    val job = launch {
+        try {
+            future.complete(block())
+        } catch (e: CancellationException) {
+            future.cancel(false)
+        } catch (t: Throwable) {
+            future.completeExceptionally(t)
+        }
+    }
+    future.whenComplete { _, _ ->
+        if (future.isCancelled) {
+            job.cancel()
+        }
+    }
+    return future
+}
+
+/**
+ * Suspends until the stage completes, without blocking a thread, and returns its result or
+ * throws the exception it failed with. Cancelling the caller only stops it from waiting; the
+ * stage itself is left alone, as other callers may be waiting for it too.
+ */
+suspend fun <T> CompletionStage<T>.await(): T {
+    val future = toCompletableFuture()
+    if (future.isDone) {
+        try {
+            return future.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+    return suspendCancellableCoroutine { continuation ->
+        whenComplete { value, error ->
+            when (error) {
+                null -> continuation.resume(value)
+                is CompletionException -> continuation.resumeWithException(error.cause ?: error)
+                is CancellationException -> continuation.cancel(error)
+                else -> continuation.resumeWithException(error)
+            }
+        }
+    }
+}
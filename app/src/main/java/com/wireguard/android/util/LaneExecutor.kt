@@ -0,0 +1,235 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.util
+
+import java.util.ArrayDeque
+import java.util.concurrent.Executor
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicIntegerArray
+
+/**
+ * Executor that runs background work in separate lanes, so that a slow root shell command for
+ * one tunnel does not hold up unrelated file reads or UI prefetching.
+ *
+ * Tasks in the [Lane.CONTROL] lane are serialized per key, typically a tunnel name, and run in
+ * submission order for that key; tasks with different keys run in parallel, and a task may hold
+ * several keys at once. [Lane.IO] tasks run in parallel without any ordering, and
+ * [Lane.BACKGROUND] tasks run one at a time on a low-priority thread. Every lane holds at most
+ * `capacity` pending tasks; beyond that, [execute] throws [RejectedExecutionException].
+ */
+
+class LaneExecutor(
+    private val capacity: Int = DEFAULT_CAPACITY,
+    ioThreads: Int = DEFAULT_IO_THREADS
+) : Executor {
+    enum class Lane {
+        CONTROL,
+        IO,
+        BACKGROUND
+    }
+
+    private val control = pool("control", CONTROL_THREADS, Thread.NORM_PRIORITY)
+    private val io = pool("io", ioThreads, Thread.NORM_PRIORITY)
+    private val background = pool("background", 1, Thread.MIN_PRIORITY)
+    private val depth = AtomicIntegerArray(Lane.values().size)
+    private val peakDepth = AtomicIntegerArray(Lane.values().size)
+    // The tasks waiting for the task of the same key that is currently running.
+    private val serialQueues = HashMap<String, ArrayDeque<SerialEntry>>()
+
+    /**
+     * Runs `command` in the [Lane.CONTROL] lane, serialized with every other task submitted
+     * this way, matching the behaviour of a single serial executor.
+     */
+    override fun execute(command: Runnable) {
+        execute(Lane.CONTROL, null, command)
+    }
+
+    /**
+     * Runs `command` in `lane`. In the [Lane.CONTROL] lane, `key` selects the queue the task
+     * is serialized in; a null key has a queue of its own. It is ignored in the other lanes.
+     */
+    fun execute(lane: Lane, key: String?, command: Runnable) {
+        reserve(lane)
+        val task = Runnable {
+            try {
+                command.run()
+            } finally {
+                depth.decrementAndGet(lane.ordinal)
+            }
+        }
+        try {
+            when (lane) {
+                Lane.CONTROL -> executeSerial(key ?: "", SerialEntry.Task(task))
+                Lane.IO -> io.execute(task)
+                Lane.BACKGROUND -> background.execute(task)
+            }
+        } catch (e: RejectedExecutionException) {
+            depth.decrementAndGet(lane.ordinal)
+            throw e
+        }
+    }
+
+    /**
+     * Runs `command` in `lane`. In the [Lane.CONTROL] lane, the task is serialized in the queue
+     * of every one of `keys` at once: it starts only when it has reached the head of all of
+     * them, and none of them moves on until it has finished. Tasks for several keys are queued
+     * atomically, so that two of them always meet in the same order and cannot deadlock.
+     */
+    fun execute(lane: Lane, keys: Collection<String>, command: Runnable) {
+        if (lane != Lane.CONTROL || keys.size <= 1) {
+            execute(lane, keys.firstOrNull(), command)
+            return
+        }
+        reserve(lane)
+        val gate = SerialEntry.Gate(keys.toSet(), Runnable {
+            try {
+                command.run()
+            } finally {
+                depth.decrementAndGet(lane.ordinal)
+            }
+        })
+        val ready = ArrayList<String>()
+        synchronized(serialQueues) {
+            for (key in gate.keys) {
+                val queue = serialQueues[key]
+                if (queue != null) {
+                    queue.add(gate)
+                } else {
+                    serialQueues[key] = ArrayDeque()
+                    ready.add(key)
+                }
+            }
+        }
+        ready.forEach { key -> control.execute { runSerial(key, gate) } }
+    }
+
+    /**
+     * Returns the number of tasks in `lane` that are waiting or running.
+     */
+    fun queueDepth(lane: Lane): Int {
+        return depth.get(lane.ordinal)
+    }
+
+    /**
+     * Returns the highest value [queueDepth] has reached for `lane`.
+     */
+    fun peakQueueDepth(lane: Lane): Int {
+        return peakDepth.get(lane.ordinal)
+    }
+
+    override fun toString(): String {
+        return Lane.values().joinToString(prefix = "LaneExecutor{", postfix = "}") { lane ->
+            "$lane=${queueDepth(lane)}/${peakQueueDepth(lane)}"
+        }
+    }
+
+    private fun reserve(lane: Lane) {
+        while (true) {
+            val current = depth.get(lane.ordinal)
+            if (current >= capacity) {
+                throw RejectedExecutionException("$lane lane is full ($capacity tasks)")
+            }
+            if (depth.compareAndSet(lane.ordinal, current, current + 1)) {
+                break
+            }
+        }
+        while (true) {
+            val peak = peakDepth.get(lane.ordinal)
+            val current = depth.get(lane.ordinal)
+            if (current <= peak || peakDepth.compareAndSet(lane.ordinal, peak, current)) {
+                break
+            }
+        }
+    }
+
+    private fun executeSerial(key: String, entry: SerialEntry.Task) {
+        synchronized(serialQueues) {
+            val queue = serialQueues[key]
+            if (queue != null) {
+                queue.add(entry)
+                return
+            }
+            serialQueues[key] = ArrayDeque()
+        }
+        control.execute { runSerial(key, entry) }
+    }
+
+    private fun runSerial(key: String, entry: SerialEntry) {
+        when (entry) {
+            is SerialEntry.Task -> try {
+                entry.command.run()
+            } finally {
+                advance(key)
+            }
+            // The queue of this key stays blocked until the gate has reached all of its keys.
+            is SerialEntry.Gate -> if (entry.arrive()) {
+                try {
+                    entry.command.run()
+                } finally {
+                    entry.keys.forEach { advance(it) }
+                }
+            }
+        }
+    }
+
+    private fun advance(key: String) {
+        val next = synchronized(serialQueues) {
+            val queue = serialQueues.getValue(key)
+            queue.poll().also { if (it == null) serialQueues.remove(key) }
+        }
+        if (next != null) {
+            control.execute { runSerial(key, next) }
+        }
+    }
+
+    /**
+     * An entry in the queue of a key in the [Lane.CONTROL] lane.
+     */
+    private sealed class SerialEntry {
+        /**
+         * A task queued under a single key, which runs once it reaches the head of the queue.
+         */
+        class Task(val command: Runnable) : SerialEntry()
+
+        /**
+         * A task queued under several keys, which runs once it has reached the head of every
+         * queue.
+         */
+        class Gate(val keys: Set<String>, val command: Runnable) : SerialEntry() {
+            private val pending = AtomicInteger(keys.size)
+
+            fun arrive(): Boolean {
+                return pending.decrementAndGet() == 0
+            }
+        }
+    }
+
+    companion object {
+        private const val CONTROL_THREADS = 4
+        private const val DEFAULT_CAPACITY = 256
+        private const val DEFAULT_IO_THREADS = 4
+        private const val KEEP_ALIVE_SECONDS = 30L
+
+        // The queues of the pools themselves are unbounded, as the lanes enforce the capacity.
+        private fun pool(name: String, threads: Int, priority: Int): ThreadPoolExecutor {
+            val count = AtomicInteger()
+            val factory = ThreadFactory { runnable ->
+                Thread(runnable, "LaneExecutor-$name-${count.incrementAndGet()}").apply {
+                    this.priority = priority
+                    isDaemon = true
+                }
+            }
+            return ThreadPoolExecutor(
+                threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, LinkedBlockingQueue(), factory
+            ).apply { allowCoreThreadTimeOut(true) }
+        }
+    }
+}
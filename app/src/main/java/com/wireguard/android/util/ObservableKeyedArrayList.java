@@ -9,9 +9,13 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.databinding.ObservableArrayList;
 import com.wireguard.util.Keyed;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
 import java.util.ListIterator;
 import java.util.Objects;
+import java.util.Set;
 
 /**
  * ArrayList that allows looking up elements by some key property. As the key property must always
@@ -47,6 +51,35 @@ public class ObservableKeyedArrayList<K, E extends Keyed<? extends K>>
         return super.addAll(index, elements);
     }
 
+    /**
+     * Removes all of the given elements, notifying listeners at most twice no matter how many
+     * there are. {@link ObservableArrayList} does not notify its listeners of bulk removals at all.
+     */
+    @Override
+    public boolean removeAll(@NonNull final Collection<?> elements) {
+        final Set<?> toRemove = new HashSet<>(elements);
+        final List<E> survivors = new ArrayList<>(size());
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < size(); ++i) {
+            final E e = get(i);
+            if (toRemove.contains(e)) {
+                if (first < 0) first = i;
+                last = i;
+            } else {
+                survivors.add(e);
+            }
+        }
+        if (first < 0) return false;
+        if (survivors.size() == size() - (last - first + 1)) {
+            removeRange(first, last + 1);
+        } else {
+            removeRange(first, size());
+            super.addAll(first, survivors.subList(first, survivors.size()));
+        }
+        return true;
+    }
+
     @Override
     public boolean containsKey(final K key) {
         return indexOfKey(key) >= 0;
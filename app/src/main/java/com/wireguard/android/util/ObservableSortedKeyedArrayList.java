@@ -8,9 +8,11 @@ package com.wireguard.android.util;
 import androidx.annotation.NonNull;
 import com.wireguard.util.Keyed;
 import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.Spliterator;
@@ -52,11 +54,48 @@ public class ObservableSortedKeyedArrayList<K, E extends Keyed<? extends K>>
         super.add(index, element);
     }
 
+    /**
+     * Adds all of the elements, notifying listeners at most twice no matter how many there are:
+     * once for removing the tail of the list from where the first new element goes, and once for
+     * inserting the merged tail back. Either all of the elements are added or none of them are.
+     */
     @Override
     public boolean addAll(@NonNull final Collection<? extends E> elements) {
-        boolean didChange = false;
-        for (final E e : elements) if (add(e)) didChange = true;
-        return didChange;
+        if (elements.contains(null))
+            throw new NullPointerException("Trying to add a collection with null element(s)");
+        final List<E> sorted = new ArrayList<>(elements);
+        Collections.sort(sorted, (a, b) -> comparator.compare(a.getKey(), b.getKey()));
+        final List<E> toAdd = new ArrayList<>(sorted.size());
+        for (final E e : sorted) {
+            final E previous = toAdd.isEmpty() ? null : toAdd.get(toAdd.size() - 1);
+            if (previous != null && comparator.compare(previous.getKey(), e.getKey()) == 0) {
+                if (previous == e) continue;
+                throw new IllegalArgumentException("Element with same key already exists in list");
+            }
+            final int insertionPoint = getInsertionPoint(e);
+            if (insertionPoint < 0) {
+                // Skipping insertion is non-destructive if the new and existing objects are the same.
+                if (e == get(-insertionPoint - 1)) continue;
+                throw new IllegalArgumentException("Element with same key already exists in list");
+            }
+            toAdd.add(e);
+        }
+        if (toAdd.isEmpty()) return false;
+        final int start = getInsertionPoint(toAdd.get(0));
+        if (start == size()) return super.addAll(start, toAdd);
+        final List<E> tail = new ArrayList<>(subList(start, size()));
+        final List<E> merged = new ArrayList<>(tail.size() + toAdd.size());
+        int i = 0;
+        int j = 0;
+        while (i < tail.size() || j < toAdd.size()) {
+            if (j == toAdd.size() || (i < tail.size()
+                    && comparator.compare(tail.get(i).getKey(), toAdd.get(j).getKey()) < 0))
+                merged.add(tail.get(i++));
+            else
+                merged.add(toAdd.get(j++));
+        }
+        removeRange(start, size());
+        return super.addAll(start, merged);
     }
 
     @Override
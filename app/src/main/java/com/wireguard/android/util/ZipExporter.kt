@@ -7,54 +7,48 @@ package com.wireguard.android.util
 
 import android.content.ContentResolver
 import android.net.Uri
+import com.wireguard.android.configStore.ConfigStore
 import com.wireguard.android.model.Tunnel
+import com.wireguard.android.util.LaneExecutor.Lane
 import java.io.FileOutputStream
+import java.io.OutputStreamWriter
 import java.nio.charset.StandardCharsets
 import java.util.zip.ZipEntry
 import java.util.zip.ZipOutputStream
-import java9.util.concurrent.CompletableFuture
-import me.msfjarvis.viscerion.config.Config
 
 object ZipExporter {
     fun exportZip(
         asyncWorker: AsyncWorker,
+        configStore: ConfigStore,
         contentResolver: ContentResolver,
         fileUri: Uri,
         tunnels: List<Tunnel>,
         onExportCompleteCallback: (throwable: Throwable?) -> Unit
     ) {
-        val futureConfigs = ArrayList<CompletableFuture<Config>>(tunnels.size)
-        tunnels.forEach { futureConfigs.add(it.configAsync.toCompletableFuture()) }
-        if (futureConfigs.isEmpty()) {
+        if (tunnels.isEmpty()) {
             onExportCompleteCallback(IllegalArgumentException("No tunnels exist"))
             return
         }
-        CompletableFuture.allOf(*futureConfigs.toTypedArray())
-            .whenComplete { _, exception ->
-                asyncWorker.runAsync {
-                    if (exception != null) {
-                        throw exception
-                    }
-                    try {
-                        contentResolver.openFileDescriptor(fileUri, "w")?.use { pfd ->
-                            ZipOutputStream(FileOutputStream(pfd.fileDescriptor)).use { zip ->
-                                for (i in futureConfigs.indices) {
-                                    zip.putNextEntry(ZipEntry("${tunnels[i].name}.conf"))
-                                    zip.write(
-                                        futureConfigs[i].getNow(null).toWgQuickString().toByteArray(
-                                            StandardCharsets.UTF_8
-                                        )
-                                    )
-                                }
-                                zip.closeEntry()
-                            }
+        val names = tunnels.map { it.name }
+        asyncWorker.runAsync(Lane.IO) {
+            contentResolver.openFileDescriptor(fileUri, "w")?.use { pfd ->
+                ZipOutputStream(FileOutputStream(pfd.fileDescriptor)).use { zip ->
+                    val writer = OutputStreamWriter(zip, StandardCharsets.UTF_8)
+                    for (name in names) {
+                        zip.putNextEntry(ZipEntry("$name.conf"))
+                        // Copy the peers across one at a time, so that hub configurations with
+                        // thousands of peers are never loaded whole.
+                        configStore.open(name).use { reader ->
+                            reader.readInterface().writeWgQuick(writer.append("[Interface]\n"))
+                            reader.forEachPeer { peer -> peer.writeWgQuick(writer.append("\n[Peer]\n")) }
                         }
-                    } catch (e: Exception) {
-                        throw e
+                        writer.flush()
+                        zip.closeEntry()
                     }
-                }.whenComplete { _, throwable ->
-                    onExportCompleteCallback(throwable)
                 }
             }
+        }.whenComplete { _, throwable ->
+            onExportCompleteCallback(throwable)
+        }
     }
 }
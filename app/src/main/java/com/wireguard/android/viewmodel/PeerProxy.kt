@@ -16,6 +16,8 @@ import java.lang.ref.WeakReference
 import java.util.LinkedHashSet
 import me.msfjarvis.viscerion.config.Attribute
 import me.msfjarvis.viscerion.config.BadConfigException
+import me.msfjarvis.viscerion.config.InetNetwork
+import me.msfjarvis.viscerion.config.InetNetworkSet
 import me.msfjarvis.viscerion.config.Peer
 
 class PeerProxy : BaseObservable, Parcelable {
@@ -370,16 +372,14 @@ class PeerProxy : BaseObservable, Parcelable {
     companion object {
         @JvmField
         val CREATOR: Parcelable.Creator<PeerProxy> = PeerProxyCreator()
+        private val IPV4_WILDCARD = setOf("0.0.0.0/0")
+        // Private (RFC 1918) ranges, plus multicast and the reserved range above it.
+        private val IPV4_PRIVATE_NETWORKS = listOf("10.0.0.0/8", "172.16.0.0/12", "192.168.0.0/16", "224.0.0.0/3")
         private val IPV4_PUBLIC_NETWORKS = LinkedHashSet(
-            listOf(
-                "0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4", "32.0.0.0/3",
-                "64.0.0.0/2", "128.0.0.0/3", "160.0.0.0/5", "168.0.0.0/6", "172.0.0.0/12",
-                "172.32.0.0/11", "172.64.0.0/10", "172.128.0.0/9", "173.0.0.0/8", "174.0.0.0/7",
-                "176.0.0.0/4", "192.0.0.0/9", "192.128.0.0/11", "192.160.0.0/13", "192.169.0.0/16",
-                "192.170.0.0/15", "192.172.0.0/14", "192.176.0.0/12", "192.192.0.0/10",
-                "193.0.0.0/8", "194.0.0.0/7", "196.0.0.0/6", "200.0.0.0/5", "208.0.0.0/4"
-            )
+            InetNetworkSet.of(IPV4_WILDCARD.map { InetNetwork.parse(it) })
+                .subtract(InetNetworkSet.of(IPV4_PRIVATE_NETWORKS.map { InetNetwork.parse(it) }))
+                .toNetworks()
+                .map { it.toString() }
         )
-        private val IPV4_WILDCARD = setOf("0.0.0.0/0")
     }
 }
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AtomicFileWriterTest {
+    private val tempDir: File = Files.createTempDirectory("viscerion").toFile()
+    private val syncs = AtomicInteger()
+
+    @After
+    fun `remove temp folder`() {
+        tempDir.deleteRecursively()
+    }
+
+    @Test
+    fun `failed writes leave the old contents in place`() {
+        val writer = AtomicFileWriter(tempDir) { syncs.incrementAndGet() }
+        val file = File(tempDir, "test.conf")
+        writer.write(file) { it.write("old".toByteArray()) }
+        assertThrows(IOException::class.java) {
+            writer.write(file) {
+                it.write("new".toByteArray())
+                throw IOException("disk full")
+            }
+        }
+        assertEquals("old", file.readText())
+        assertEquals("only the target file must remain", listOf("test.conf"), tempDir.list()!!.toList())
+        assertEquals(1, syncs.get())
+    }
+
+    @Test
+    fun `concurrent writes share directory syncs`() {
+        val inSync = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val writer = AtomicFileWriter(tempDir) {
+            if (syncs.incrementAndGet() == 1) {
+                inSync.countDown()
+                release.await()
+            }
+        }
+        val pool = Executors.newFixedThreadPool(WRITES)
+        // Hold the first sync until every other write has been renamed and is waiting to sync.
+        pool.execute { writer.write(File(tempDir, "first.conf")) { it.write(1) } }
+        assertTrue(inSync.await(5, TimeUnit.SECONDS))
+        val renamed = CountDownLatch(WRITES - 1)
+        repeat(WRITES - 1) { i ->
+            pool.execute {
+                val file = File(tempDir, "test-$i.conf")
+                writer.replace(file) { it.write(i) }
+                renamed.countDown()
+                writer.sync()
+            }
+        }
+        assertTrue(renamed.await(5, TimeUnit.SECONDS))
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+        while (writer.waitingWriters < WRITES - 1 && System.nanoTime() < deadline) {
+            Thread.sleep(1)
+        }
+        assertEquals("every other writer must wait for the running sync", WRITES - 1, writer.waitingWriters)
+        release.countDown()
+        pool.shutdown()
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS))
+        assertEquals(WRITES, tempDir.list()!!.size)
+        assertTrue("expected at most two syncs, got ${syncs.get()}", syncs.get() <= 2)
+    }
+
+    @Test
+    fun `stale temporary files are removed`() {
+        File(tempDir, "test.conf").writeText("old")
+        File(tempDir, ".test.conf${AtomicFileWriter.TEMPORARY_FILE_SUFFIX}").writeText("ne")
+        AtomicFileWriter(tempDir) { syncs.incrementAndGet() }
+        assertEquals(listOf("test.conf"), tempDir.list()!!.toList())
+    }
+
+    companion object {
+        private const val WRITES = 16
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.File
+import java.nio.file.Files
+import javax.crypto.KeyGenerator
+import me.msfjarvis.viscerion.config.Config
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+class CatalogConfigStoreTest {
+    private val config: Config by lazy { Config.parse(javaClass.classLoader!!.getResourceAsStream("working.conf")) }
+    private lateinit var tempDir: File
+    private lateinit var configStore: CatalogConfigStore
+
+    @Before
+    fun `create config store`() {
+        tempDir = Files.createTempDirectory("viscerion").toFile()
+        configStore = CatalogConfigStore(File(tempDir, "cache"), fileConfigStore())
+    }
+
+    @After
+    fun `remove config store`() {
+        tempDir.deleteRecursively()
+    }
+
+    @Test
+    fun `catalog describes configs and survives reopening`() {
+        configStore.create("test-1", config)
+        configStore.create("test-2", config)
+        val reopened = CatalogConfigStore(File(tempDir, "cache"), fileConfigStore())
+        val entries = reopened.summarize().associateBy { it.name }
+        assertEquals(setOf("test-1", "test-2"), entries.keys)
+        val entry = entries.getValue("test-1")
+        assertEquals(config.interfaze.keyPair.publicKey, entry.publicKey)
+        assertEquals(config.peers[0].endpoint.toString(), entry.endpoint)
+        assertEquals(1, entry.peerCount)
+    }
+
+    @Test
+    fun `catalog describes encrypted configs`() {
+        val writer = AtomicFileWriter(tempDir) {}
+        val wrappingKey = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+        val keyProvider = SoftwareKeyProvider(File(tempDir, "config.key"), writer, wrappingKey)
+        val encrypted = EncryptedConfigStore(tempDir, keyProvider, { id, arg -> "$id:$arg" }, writer)
+        val configStore = CatalogConfigStore(File(tempDir, "cache"), encrypted)
+        configStore.create("test-1", config)
+        encrypted.create("test-2", config)
+        val entries = configStore.summarize().associateBy { it.name }
+        assertEquals(setOf("test-1", "test-2"), entries.keys)
+        assertEquals(config.interfaze.keyPair.publicKey, entries.getValue("test-2").publicKey)
+        assertEquals(config, configStore.load("test-1"))
+        assertEquals(config, configStore.loadAll(listOf("test-2")).getValue("test-2").get())
+    }
+
+    @Test
+    fun `catalog follows changes made behind its back`() {
+        configStore.create("test-1", config)
+        configStore.create("test-2", config)
+        File(tempDir, "test-1.conf").delete()
+        val file = File(tempDir, "test-3.conf")
+        file.writeText(config.toWgQuickString().substringBefore("[Peer]"))
+        assertEquals(setOf("test-2", "test-3"), configStore.enumerate())
+        assertEquals(0, configStore.summarize().first { it.name == "test-3" }.peerCount)
+    }
+
+    @Test
+    fun `parse cache entries do not hold the private key`() {
+        configStore.create("test-1", config)
+        val entry = File(tempDir, "cache/${CatalogConfigStore.PARSE_CACHE_DIRECTORY_NAME}/test-1.bin")
+        assertTrue(entry.isFile)
+        val cached = String(entry.readBytes(), Charsets.ISO_8859_1)
+        val privateKey = config.interfaze.keyPair.privateKey
+        assertFalse(cached.contains(privateKey.toBase64()))
+        assertFalse(cached.contains(String(privateKey.bytes, Charsets.ISO_8859_1)))
+        assertEquals(config, CatalogConfigStore(File(tempDir, "cache"), fileConfigStore()).load("test-1"))
+        assertEquals(config, configStore.loadAll(listOf("test-1")).getValue("test-1").get())
+    }
+
+    @Test
+    fun `rewrites that keep the size and modification time are parsed again`() {
+        configStore.create("test-1", config)
+        val file = File(tempDir, "test-1.conf")
+        val lastModified = file.lastModified()
+        val text = file.readText()
+        val withoutPeers = text.substringBefore("[Peer]")
+        file.writeText(withoutPeers + "#".repeat(text.length - withoutPeers.length))
+        file.setLastModified(lastModified)
+        assertEquals(0, configStore.load("test-1").peers.size)
+        assertEquals(0, configStore.loadAll(listOf("test-1")).getValue("test-1").get().peers.size)
+    }
+
+    @Test
+    fun `changed configs are parsed again`() {
+        configStore.create("test-1", config)
+        val file = File(tempDir, "test-1.conf")
+        val text = file.readText()
+        file.setLastModified(file.lastModified() - 10_000)
+        assertEquals("touched files still hit the cache", config, configStore.load("test-1"))
+        file.writeText(text.substringBefore("[Peer]"))
+        file.setLastModified(file.lastModified() + 10_000)
+        assertEquals(0, configStore.load("test-1").peers.size)
+        assertEquals(0, configStore.loadAll(listOf("test-1")).getValue("test-1").get().peers.size)
+    }
+
+    @Test
+    fun `batches report each tunnel on its own`() {
+        configStore.create("test-1", config)
+        val created = configStore.createAll(mapOf("test-1" to config, "test-2" to config, "test-3" to config))
+        assertNotNull("existing tunnels must not be overwritten", created["test-1"])
+        assertNull(created["test-2"])
+        assertEquals(setOf("test-1", "test-2", "test-3"), configStore.summarize().map { it.name }.toSet())
+        val deleted = configStore.deleteAll(listOf("test-2", "test-4"))
+        assertNull(deleted["test-2"])
+        assertNotNull(deleted["test-4"])
+        val reopened = CatalogConfigStore(File(tempDir, "cache"), fileConfigStore())
+        assertEquals(setOf("test-1", "test-3"), reopened.summarize().map { it.name }.toSet())
+    }
+
+    @Test
+    fun `unparseable configs are still listed`() {
+        configStore.create("test-1", config)
+        File(tempDir, "test-2.conf").writeText("[Interface]\nPrivateKey = broken\n")
+        val entries = configStore.summarize().associateBy { it.name }
+        assertEquals(setOf("test-1", "test-2"), entries.keys)
+        assertNull(entries.getValue("test-2").publicKey)
+        assertEquals(config.interfaze.keyPair.publicKey, entries.getValue("test-1").publicKey)
+    }
+
+    @Test
+    fun `catalog follows renames`() {
+        configStore.create("test-1", config)
+        configStore.rename("test-1", "test-2")
+        assertEquals(setOf("test-2"), configStore.enumerate())
+        assertTrue(configStore.summarize().single().publicKey == config.interfaze.keyPair.publicKey)
+    }
+
+    private fun fileConfigStore(): FileConfigStore {
+        return FileConfigStore(tempDir, { id, arg -> "$id:$arg" }, AtomicFileWriter(tempDir) {})
+    }
+}
@@ -72,6 +72,29 @@ class ConfigStoreTest {
         validateConfig(loadedConfig)
     }
 
+    @Test
+    fun `config can be streamed`() {
+        configStore.create("test-1", config)
+        configStore.open("test-1").use { reader ->
+            assertTrue(
+                "streamed interface must match the saved one",
+                reader.readInterface().toWgQuickString() == config.interfaze.toWgQuickString()
+            )
+            assertTrue("streamed peer must match the saved one", reader.readPeer() == config.peers[0])
+            assertTrue("test config has exactly one peer", reader.readPeer() == null)
+        }
+    }
+
+    @Test
+    fun `configs can be loaded in bulk`() {
+        configStore.create("test-1", config)
+        configStore.create("test-2", config)
+        val results = configStore.loadAll(listOf("test-1", "test-2", "test-3"))
+        validateConfig(results.getValue("test-1").get())
+        validateConfig(results.getValue("test-2").get())
+        assertTrue("missing config must fail to load", results.getValue("test-3").error is IOException)
+    }
+
     private fun validateConfig(configuration: Config) {
         assertNotNull("Valid configs cannot not be null after parsing", configuration)
         assertTrue(
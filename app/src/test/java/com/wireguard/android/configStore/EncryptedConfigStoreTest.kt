@@ -0,0 +1,86 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import javax.crypto.KeyGenerator
+import javax.crypto.SecretKey
+import me.msfjarvis.viscerion.config.Config
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+
+class EncryptedConfigStoreTest {
+    private val config: Config by lazy { Config.parse(javaClass.classLoader!!.getResourceAsStream("working.conf")) }
+    private val wrappingKey: SecretKey = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+    private lateinit var tempDir: File
+    private lateinit var keyProvider: SoftwareKeyProvider
+    private lateinit var configStore: EncryptedConfigStore
+
+    @Before
+    fun `create config store`() {
+        tempDir = Files.createTempDirectory("viscerion").toFile()
+        configStore = open()
+    }
+
+    @After
+    fun `remove config store`() {
+        tempDir.deleteRecursively()
+    }
+
+    private fun open(wrappingKey: SecretKey = this.wrappingKey): EncryptedConfigStore {
+        val writer = AtomicFileWriter(tempDir) {}
+        keyProvider = SoftwareKeyProvider(File(tempDir, "config.key"), writer, wrappingKey)
+        return EncryptedConfigStore(tempDir, keyProvider, { id, arg -> "$id:$arg" }, writer)
+    }
+
+    @Test
+    fun `configs round trip without storing the private key in plaintext`() {
+        configStore.create("test", config)
+        configStore.save("test", config)
+        assertEquals(config, configStore.load("test"))
+        assertEquals(config, configStore.loadAll(listOf("test")).getValue("test").config)
+        val bytes = File(tempDir, "test${EncryptedConfigStore.ENCRYPTED_FILE_SUFFIX}").readBytes()
+        assertFalse(String(bytes, Charsets.ISO_8859_1).contains(config.interfaze.keyPair.privateKey.toBase64()))
+        assertEquals("the data key must only be unwrapped once", 1, keyProvider.unwraps.get())
+        assertEquals(config, open().load("test"))
+        assertEquals(setOf("test"), configStore.enumerate())
+    }
+
+    @Test
+    fun `failed writes do not leave empty configs behind`() {
+        File(tempDir, ".test${EncryptedConfigStore.ENCRYPTED_FILE_SUFFIX}${AtomicFileWriter.TEMPORARY_FILE_SUFFIX}")
+            .resolve("blocker").apply {
+                parentFile!!.mkdir()
+                createNewFile()
+            }
+        assertThrows(IOException::class.java) { configStore.create("test", config) }
+        assertTrue(configStore.enumerate().isEmpty())
+    }
+
+    @Test
+    fun `tampered configs are rejected`() {
+        configStore.create("test", config)
+        val file = File(tempDir, "test${EncryptedConfigStore.ENCRYPTED_FILE_SUFFIX}")
+        val bytes = file.readBytes()
+        bytes[bytes.size / 2] = (bytes[bytes.size / 2].toInt() xor 1).toByte()
+        file.writeBytes(bytes)
+        assertThrows(IOException::class.java) { configStore.load("test") }
+    }
+
+    @Test
+    fun `configs cannot be read with another wrapping key`() {
+        configStore.create("test", config)
+        val otherKey = KeyGenerator.getInstance("AES").apply { init(256) }.generateKey()
+        assertThrows(IOException::class.java) { open(otherKey).load("test") }
+    }
+}
@@ -10,8 +10,8 @@ import java.io.FileInputStream
 import java.io.FileNotFoundException
 import java.io.FileOutputStream
 import java.io.IOException
-import java.nio.charset.StandardCharsets
 import me.msfjarvis.viscerion.config.Config
+import me.msfjarvis.viscerion.config.ConfigReader
 
 class FakeConfigStore(private val filesDir: File) : ConfigStore {
 
@@ -20,10 +20,7 @@ class FakeConfigStore(private val filesDir: File) : ConfigStore {
         if (!file.createNewFile()) {
             throw IOException("${file.name} already exists!")
         }
-        FileOutputStream(
-            file,
-            false
-        ).use { stream -> stream.write(config.toWgQuickString().toByteArray(StandardCharsets.UTF_8)) }
+        FileOutputStream(file, false).use { stream -> config.writeWgQuick(stream) }
         return config
     }
 
@@ -36,8 +33,8 @@ class FakeConfigStore(private val filesDir: File) : ConfigStore {
 
     override fun enumerate(): Set<String> {
         return (filesDir.list() ?: emptyArray())
-            .filter { it.endsWith("conf") }
-            .map { it.substring(0, it.length - "conf".length) }
+            .filter { it.endsWith(".conf") }
+            .map { it.substring(0, it.length - ".conf".length) }
             .toSet()
     }
 
@@ -45,6 +42,14 @@ class FakeConfigStore(private val filesDir: File) : ConfigStore {
         FileInputStream(fileFor(name)).use { stream -> return Config.parse(stream) }
     }
 
+    override fun loadAll(names: Collection<String>): Map<String, Config.ParseResult> {
+        return Config.parseAll(names.associateWith { name -> { FileInputStream(fileFor(name)) } })
+    }
+
+    override fun open(name: String): ConfigReader {
+        return ConfigReader(FileInputStream(fileFor(name)))
+    }
+
     override fun rename(name: String, replacement: String) {
         val file = fileFor(name)
         val replacementFile = fileFor(replacement)
@@ -64,10 +69,7 @@ class FakeConfigStore(private val filesDir: File) : ConfigStore {
         if (!file.isFile) {
             throw FileNotFoundException("Configuration file \"${file.name}\" not found ")
         }
-        FileOutputStream(
-            file,
-            false
-        ).use { stream -> stream.write(config.toWgQuickString().toByteArray(StandardCharsets.UTF_8)) }
+        FileOutputStream(file, false).use { stream -> config.writeWgQuick(stream) }
         return config
     }
 
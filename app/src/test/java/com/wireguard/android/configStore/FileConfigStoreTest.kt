@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.File
+import java.io.IOException
+import java.nio.file.Files
+import me.msfjarvis.viscerion.config.Config
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class FileConfigStoreTest {
+    private val tempDir: File = Files.createTempDirectory("viscerion").toFile()
+    private val configStore = FileConfigStore(tempDir, { id, arg -> "$id:$arg" }, AtomicFileWriter(tempDir) {})
+    private val config: Config by lazy {
+        javaClass.classLoader!!.getResourceAsStream("working.conf").use { Config.parse(it) }
+    }
+
+    @After
+    fun `remove temp folder`() {
+        tempDir.deleteRecursively()
+    }
+
+    @Test
+    fun `batch creation reports existing configs and creates the rest`() {
+        configStore.create("test-0", config)
+        val results = configStore.createAll(List(TUNNELS) { "test-$it" }.associateWith { config })
+        assertTrue("existing config must not be overwritten", results.getValue("test-0") is IOException)
+        (1 until TUNNELS).forEach { assertNull("test-$it", results.getValue("test-$it")) }
+        assertEquals(List(TUNNELS) { "test-$it" }.toSet(), configStore.enumerate())
+        assertEquals(config, configStore.load("test-${TUNNELS - 1}"))
+        assertEquals("only the configs must remain", TUNNELS, tempDir.list()!!.size)
+    }
+
+    @Test
+    fun `batch creation reports configs as created when the directory sync fails`() {
+        val configStore = FileConfigStore(tempDir, { id, arg -> "$id:$arg" }, AtomicFileWriter(tempDir) {
+            throw IOException("sync failed")
+        })
+        val results = configStore.createAll(List(TUNNELS) { "test-$it" }.associateWith { config })
+        (0 until TUNNELS).forEach { assertNull("test-$it", results.getValue("test-$it")) }
+        assertEquals(List(TUNNELS) { "test-$it" }.toSet(), configStore.enumerate())
+        assertEquals(config, configStore.load("test-0"))
+    }
+
+    @Test
+    fun `batch deletion reports missing configs and deletes the rest`() {
+        configStore.createAll(List(TUNNELS) { "test-$it" }.associateWith { config })
+        val results = configStore.deleteAll(List(TUNNELS) { "test-$it" } + "missing")
+        val error = results.getValue("missing")
+        assertTrue("missing config must fail to delete", error is IOException)
+        assertTrue("error must name the file", error!!.message!!.endsWith(":missing.conf"))
+        (0 until TUNNELS).forEach { assertNull("test-$it", results.getValue("test-$it")) }
+        assertTrue(configStore.enumerate().isEmpty())
+    }
+
+    @Test
+    fun `failed writes do not leave empty configs behind`() {
+        blockTemporaryFile("test-0.conf")
+        assertThrows(IOException::class.java) { configStore.create("test-0", config) }
+        assertTrue(configStore.enumerate().isEmpty())
+        blockTemporaryFile("test-1.conf")
+        val results = configStore.createAll(listOf("test-1", "test-2").associateWith { config })
+        assertTrue(results.getValue("test-1") is IOException)
+        assertNull(results.getValue("test-2"))
+        assertEquals(setOf("test-2"), configStore.enumerate())
+    }
+
+    /** Makes writing `fileName` fail by putting a non-empty directory where its temporary file goes. */
+    private fun blockTemporaryFile(fileName: String) {
+        File(tempDir, ".$fileName${AtomicFileWriter.TEMPORARY_FILE_SUFFIX}").resolve("blocker").apply {
+            parentFile!!.mkdir()
+            createNewFile()
+        }
+    }
+
+    companion object {
+        private const val TUNNELS = 50
+    }
+}
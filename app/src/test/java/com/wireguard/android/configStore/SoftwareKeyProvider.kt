@@ -0,0 +1,23 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.configStore
+
+import java.io.File
+import java.util.concurrent.atomic.AtomicInteger
+import javax.crypto.SecretKey
+
+/**
+ * [KeyProvider] with a plain software wrapping key, standing in for the Android keystore.
+ */
+class SoftwareKeyProvider(keyFile: File, writer: AtomicFileWriter, private val wrappingKey: SecretKey) :
+    KeyProvider(keyFile, writer) {
+    val unwraps = AtomicInteger()
+
+    override fun wrappingKey(): SecretKey {
+        unwraps.incrementAndGet()
+        return wrappingKey
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.model
+
+import me.msfjarvis.viscerion.config.Config
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+
+class ConfigCacheTest {
+    // The test configuration has one peer, so it weighs two units.
+    private val config: Config by lazy { Config.parse(javaClass.classLoader!!.getResourceAsStream("working.conf")) }
+    private val cache = ConfigCache<String>(maxWeight = 4)
+
+    @Test
+    fun `least recently used configs are evicted first`() {
+        cache["a"] = config
+        cache["b"] = config
+        assertNotNull(cache["a"])
+        cache["c"] = config
+        assertNull("b was used least recently", cache["b"])
+        assertNotNull(cache["a"])
+        assertNotNull(cache["c"])
+        assertEquals(1, cache.evictions)
+        assertEquals(4, cache.weight)
+    }
+
+    @Test
+    fun `pinned configs are not evicted until unpinned`() {
+        cache.pin("a")
+        cache["a"] = config
+        cache["b"] = config
+        cache["c"] = config
+        assertNotNull(cache["a"])
+        assertNull(cache["b"])
+        cache.pin("c")
+        cache.pin("c")
+        cache.unpin("c")
+        cache["d"] = config
+        assertNull("everything else is pinned", cache["d"])
+        cache.unpin("c")
+        cache["e"] = config
+        assertNull("c is no longer pinned", cache["c"])
+        assertNotNull(cache["e"])
+        assertEquals(4, cache.weight)
+    }
+
+    @Test
+    fun `hits and misses are counted`() {
+        cache["a"] = config
+        cache["a"]
+        cache["b"]
+        cache.remove("a")
+        cache["a"]
+        assertEquals(1, cache.hits)
+        assertEquals(2, cache.misses)
+        assertEquals(0, cache.size)
+    }
+}
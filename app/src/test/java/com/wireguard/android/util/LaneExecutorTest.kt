@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package com.wireguard.android.util
+
+import com.wireguard.android.util.LaneExecutor.Lane
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.TimeUnit
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertThrows
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class LaneExecutorTest {
+    private val executor = LaneExecutor()
+
+    @Test
+    fun `tasks with the same key run in submission order`() {
+        val order = Collections.synchronizedList(ArrayList<Int>())
+        val done = CountDownLatch(TASKS)
+        repeat(TASKS) { i ->
+            executor.execute(Lane.CONTROL, "wg0") {
+                order.add(i)
+                done.countDown()
+            }
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertEquals(List(TASKS) { it }, order)
+    }
+
+    @Test
+    fun `a blocked key does not hold up other keys or lanes`() {
+        val release = CountDownLatch(1)
+        val done = CountDownLatch(2)
+        executor.execute(Lane.CONTROL, "wg0") { release.await() }
+        executor.execute(Lane.CONTROL, "wg1") { done.countDown() }
+        executor.execute(Lane.IO, null) { done.countDown() }
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        // The wg1 task counts down before it leaves the lane, so wait for its depth to drop.
+        assertEquals(1, awaitQueueDepth(Lane.CONTROL, 1))
+        release.countDown()
+    }
+
+    @Test
+    fun `a task holding several keys waits for and blocks each of them`() {
+        val order = Collections.synchronizedList(ArrayList<String>())
+        val release = CountDownLatch(1)
+        val unrelated = CountDownLatch(1)
+        val done = CountDownLatch(3)
+        executor.execute(Lane.CONTROL, "wg0") {
+            release.await()
+            order.add("wg0")
+            done.countDown()
+        }
+        executor.execute(Lane.CONTROL, listOf("wg0", "wg1")) {
+            order.add("both")
+            done.countDown()
+        }
+        executor.execute(Lane.CONTROL, "wg1") {
+            order.add("wg1")
+            done.countDown()
+        }
+        executor.execute(Lane.CONTROL, "wg2") {
+            order.add("wg2")
+            unrelated.countDown()
+        }
+        assertTrue(unrelated.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf("wg2"), order.toList())
+        release.countDown()
+        assertTrue(done.await(5, TimeUnit.SECONDS))
+        assertEquals(listOf("wg2", "wg0", "both", "wg1"), order)
+    }
+
+    @Test
+    fun `full lanes reject new tasks`() {
+        val bounded = LaneExecutor(capacity = 2)
+        val release = CountDownLatch(1)
+        repeat(2) { bounded.execute(Lane.BACKGROUND, null) { release.await() } }
+        assertThrows(RejectedExecutionException::class.java) {
+            bounded.execute(Lane.BACKGROUND, null) {}
+        }
+        assertEquals(2, bounded.peakQueueDepth(Lane.BACKGROUND))
+        release.countDown()
+    }
+
+    private fun awaitQueueDepth(lane: Lane, expected: Int): Int {
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+        while (executor.queueDepth(lane) != expected && System.nanoTime() < deadline) {
+            Thread.sleep(1)
+        }
+        return executor.queueDepth(lane)
+    }
+
+    companion object {
+        private const val TASKS = 100
+    }
+}
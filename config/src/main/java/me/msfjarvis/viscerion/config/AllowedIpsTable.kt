@@ -0,0 +1,286 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.net.InetAddress
+
+/**
+ * A table mapping [InetNetwork]s to values (usually the [Peer] that owns them), stored as a
+ * path-compressed binary prefix trie per address family, much like WireGuard's own allowed IPs
+ * table. Lookups, insertions and removals take time proportional to the prefix length rather
+ * than to the number of entries.
+ *
+ *
+ * Instances of this class are not thread-safe.
+ */
+class AllowedIpsTable<T : Any> {
+    private var ipv4Root: Node<T>? = null
+    private var ipv6Root: Node<T>? = null
+
+    /**
+     * Returns the number of networks in the table.
+     */
+    var size = 0
+        private set
+
+    /**
+     * Returns the minimal list of networks that covers exactly the same addresses as all of the
+     * networks in the table: networks contained in another one are dropped, and adjacent
+     * networks that together form a larger prefix are merged.
+     */
+    fun aggregate(): List<InetNetwork> {
+        val result = ArrayList<InetNetwork>()
+        ipv4Root?.let { result.addAll(aggregate(it, true)) }
+        ipv6Root?.let { result.addAll(aggregate(it, false)) }
+        return result
+    }
+
+    /**
+     * Returns the value stored for exactly `network`, or null if there is none.
+     */
+    operator fun get(network: InetNetwork): T? {
+        var node = root(network.isIpv4)
+        val prefix = network.toPrefix()
+        while (node != null && node.mask <= prefix.mask) {
+            if (InetNetwork.commonPrefixLength(node.high, node.low, prefix.high, prefix.low, node.mask) < node.mask) {
+                return null
+            }
+            if (node.mask == prefix.mask) {
+                return node.value
+            }
+            node = node.child(InetNetwork.bit(prefix.high, prefix.low, node.mask))
+        }
+        return null
+    }
+
+    /**
+     * Performs a longest-prefix match for `address`.
+     *
+     * @return the value of the most specific network containing `address`, or null if none does
+     */
+    fun lookup(address: InetAddress): T? {
+        val host = InetNetwork.of(address, -1)
+        var node = root(host.isIpv4)
+        var best: T? = null
+        while (node != null) {
+            if (InetNetwork.commonPrefixLength(node.high, node.low, host.high, host.low, node.mask) < node.mask) {
+                break
+            }
+            node.value?.let { best = it }
+            if (node.mask == host.mask) {
+                break
+            }
+            node = node.child(InetNetwork.bit(host.high, host.low, node.mask))
+        }
+        return best
+    }
+
+    /**
+     * Returns every network in the table that overlaps `network`, that is, every network that
+     * either contains it or is contained in it, together with its value.
+     */
+    fun overlapping(network: InetNetwork): List<Pair<InetNetwork, T>> {
+        val result = ArrayList<Pair<InetNetwork, T>>()
+        val prefix = network.toPrefix()
+        var node = root(network.isIpv4)
+        while (node != null) {
+            val common = InetNetwork.commonPrefixLength(node.high, node.low, prefix.high, prefix.low, minOf(node.mask, prefix.mask))
+            if (common < minOf(node.mask, prefix.mask)) {
+                break
+            }
+            if (node.mask >= prefix.mask) {
+                // Everything below this node lies within the queried network.
+                collect(node, result)
+                break
+            }
+            node.entry()?.let { result.add(it) }
+            node = node.child(InetNetwork.bit(prefix.high, prefix.low, node.mask))
+        }
+        return result
+    }
+
+    /**
+     * Associates `value` with `network`, replacing the value of an identical prefix.
+     *
+     * @return the value previously associated with the same prefix, or null
+     */
+    fun put(network: InetNetwork, value: T): T? {
+        var previous: T? = null
+        setRoot(network.isIpv4, insert(root(network.isIpv4), network, value) { previous = it })
+        if (previous == null) {
+            size++
+        }
+        return previous
+    }
+
+    /**
+     * Removes the entry for exactly `network`.
+     *
+     * @return the value that was associated with the prefix, or null if there was none
+     */
+    fun remove(network: InetNetwork): T? {
+        var removed: T? = null
+        setRoot(network.isIpv4, remove(root(network.isIpv4), network.toPrefix()) { removed = it })
+        if (removed != null) {
+            size--
+        }
+        return removed
+    }
+
+    private fun aggregate(node: Node<T>, isIpv4: Boolean): List<InetNetwork> {
+        if (node.value != null) {
+            return listOf(InetNetwork.of(node.high, node.low, node.mask, isIpv4))
+        }
+        val zero = node.zero?.let { aggregate(it, isIpv4) } ?: emptyList()
+        val one = node.one?.let { aggregate(it, isIpv4) } ?: emptyList()
+        // Two halves of the same prefix collapse into that prefix.
+        val halfMask = node.mask + 1
+        if (zero.size == 1 && one.size == 1 && zero[0].mask == halfMask && one[0].mask == halfMask) {
+            return listOf(InetNetwork.of(node.high, node.low, node.mask, isIpv4))
+        }
+        return zero + one
+    }
+
+    private fun collect(node: Node<T>, result: MutableList<Pair<InetNetwork, T>>) {
+        node.entry()?.let { result.add(it) }
+        node.zero?.let { collect(it, result) }
+        node.one?.let { collect(it, result) }
+    }
+
+    private fun insert(node: Node<T>?, network: InetNetwork, value: T, replaced: (T) -> Unit): Node<T> {
+        val prefix = network.toPrefix()
+        if (node == null) {
+            return Node(prefix.high, prefix.low, prefix.mask, network, value)
+        }
+        val common = InetNetwork.commonPrefixLength(node.high, node.low, prefix.high, prefix.low, minOf(node.mask, prefix.mask))
+        if (common == node.mask && common == prefix.mask) {
+            node.value?.let(replaced)
+            node.network = network
+            node.value = value
+            return node
+        }
+        if (common == node.mask) {
+            val bit = InetNetwork.bit(prefix.high, prefix.low, node.mask)
+            node.setChild(bit, insert(node.child(bit), network, value, replaced))
+            return node
+        }
+        val inserted = if (common == prefix.mask) {
+            Node(prefix.high, prefix.low, prefix.mask, network, value)
+        } else {
+            // Neither prefix contains the other, so join them under a new intermediate node.
+            val leaf = Node(prefix.high, prefix.low, prefix.mask, network, value)
+            Node<T>(
+                prefix.high and InetNetwork.highMask(common),
+                prefix.low and InetNetwork.lowMask(common),
+                common, null, null
+            ).also { it.setChild(InetNetwork.bit(prefix.high, prefix.low, common), leaf) }
+        }
+        inserted.setChild(InetNetwork.bit(node.high, node.low, common), node)
+        return inserted
+    }
+
+    private fun remove(node: Node<T>?, prefix: InetNetwork, removed: (T) -> Unit): Node<T>? {
+        if (node == null || node.mask > prefix.mask ||
+            InetNetwork.commonPrefixLength(node.high, node.low, prefix.high, prefix.low, node.mask) < node.mask
+        ) {
+            return node
+        }
+        if (node.mask < prefix.mask) {
+            val bit = InetNetwork.bit(prefix.high, prefix.low, node.mask)
+            node.setChild(bit, remove(node.child(bit), prefix, removed))
+        } else {
+            node.value?.let(removed)
+            node.network = null
+            node.value = null
+        }
+        // Drop intermediate nodes that no longer join two subtrees.
+        if (node.value == null) {
+            val zero = node.zero
+            val one = node.one
+            if (zero == null || one == null) {
+                return zero ?: one
+            }
+        }
+        return node
+    }
+
+    private fun root(isIpv4: Boolean): Node<T>? {
+        return if (isIpv4) ipv4Root else ipv6Root
+    }
+
+    private fun setRoot(isIpv4: Boolean, root: Node<T>?) {
+        if (isIpv4) {
+            ipv4Root = root
+        } else {
+            ipv6Root = root
+        }
+    }
+
+    private class Node<T : Any>(
+        val high: Long,
+        val low: Long,
+        val mask: Int,
+        var network: InetNetwork?,
+        var value: T?
+    ) {
+        var zero: Node<T>? = null
+        var one: Node<T>? = null
+
+        fun child(bit: Int): Node<T>? {
+            return if (bit == 0) zero else one
+        }
+
+        fun entry(): Pair<InetNetwork, T>? {
+            val network = network ?: return null
+            val value = value ?: return null
+            return Pair(network, value)
+        }
+
+        fun setChild(bit: Int, child: Node<T>?) {
+            if (bit == 0) {
+                zero = child
+            } else {
+                one = child
+            }
+        }
+    }
+
+    companion object {
+        /**
+         * Builds a table of every allowed IP of `peers`, mapped to the peer that owns it. As in
+         * WireGuard itself, a network listed by several peers belongs to the last of them.
+         */
+        fun fromPeers(peers: Iterable<Peer>): AllowedIpsTable<Peer> {
+            val table = AllowedIpsTable<Peer>()
+            for (peer in peers) {
+                for (allowedIp in peer.allowedIps) {
+                    table.put(allowedIp, peer)
+                }
+            }
+            return table
+        }
+
+        /**
+         * Returns the allowed IPs of `peers` that overlap an allowed IP of an earlier peer. Traffic
+         * for the overlapping part is only ever routed to one of them, which is rarely intended.
+         */
+        fun findOverlaps(peers: Iterable<Peer>): List<InetNetwork> {
+            val table = AllowedIpsTable<Peer>()
+            val overlaps = ArrayList<InetNetwork>()
+            for (peer in peers) {
+                for (allowedIp in peer.allowedIps) {
+                    if (table.overlapping(allowedIp).any { it.second !== peer }) {
+                        overlaps.add(allowedIp)
+                    }
+                }
+                for (allowedIp in peer.allowedIps) {
+                    table.put(allowedIp, peer)
+                }
+            }
+            return overlaps
+        }
+    }
+}
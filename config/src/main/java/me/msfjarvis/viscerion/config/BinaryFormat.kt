@@ -0,0 +1,79 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.io.DataInput
+import java.io.DataOutput
+import java.net.InetAddress
+import me.msfjarvis.viscerion.crypto.Key
+
+/**
+ * Building blocks of the compact binary form written by [Config.writeBinary].
+ */
+internal object BinaryFormat {
+    fun writeKey(out: DataOutput, key: Key) {
+        out.write(key.bytes)
+    }
+
+    fun readKey(input: DataInput): Key {
+        val bytes = ByteArray(Key.Format.BINARY.length)
+        input.readFully(bytes)
+        return Key.fromBytes(bytes)
+    }
+
+    fun writeOptionalInt(out: DataOutput, value: Int?) {
+        out.writeBoolean(value != null)
+        if (value != null) {
+            out.writeInt(value)
+        }
+    }
+
+    fun readOptionalInt(input: DataInput): Int? {
+        return if (input.readBoolean()) input.readInt() else null
+    }
+
+    fun writeNetworks(out: DataOutput, networks: Collection<InetNetwork>) {
+        out.writeInt(networks.size)
+        for (network in networks) {
+            out.writeLong(network.high)
+            out.writeLong(network.low)
+            out.writeByte(network.mask)
+            out.writeBoolean(network.isIpv4)
+        }
+    }
+
+    fun readNetworks(input: DataInput): List<InetNetwork> {
+        return List(input.readInt()) {
+            InetNetwork.of(input.readLong(), input.readLong(), input.readUnsignedByte(), input.readBoolean())
+        }
+    }
+
+    fun writeAddresses(out: DataOutput, addresses: Collection<InetAddress>) {
+        out.writeInt(addresses.size)
+        for (address in addresses) {
+            val bytes = address.address
+            out.writeByte(bytes.size)
+            out.write(bytes)
+        }
+    }
+
+    fun readAddresses(input: DataInput): List<InetAddress> {
+        return List(input.readInt()) {
+            val bytes = ByteArray(input.readUnsignedByte())
+            input.readFully(bytes)
+            InetAddress.getByAddress(bytes)
+        }
+    }
+
+    fun writeStrings(out: DataOutput, strings: Collection<String>) {
+        out.writeInt(strings.size)
+        strings.forEach { out.writeUTF(it) }
+    }
+
+    fun readStrings(input: DataInput): List<String> {
+        return List(input.readInt()) { input.readUTF() }
+    }
+}
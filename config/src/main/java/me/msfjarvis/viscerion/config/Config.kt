@@ -6,14 +6,23 @@
 package me.msfjarvis.viscerion.config
 
 import java.io.BufferedReader
+import java.io.DataInput
+import java.io.DataOutput
 import java.io.IOException
 import java.io.InputStream
 import java.io.InputStreamReader
+import java.io.OutputStream
+import java.io.OutputStreamWriter
+import java.nio.charset.StandardCharsets
 import java.util.Collections
 import java.util.LinkedHashSet
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveAction
 import me.msfjarvis.viscerion.config.BadConfigException.Location
 import me.msfjarvis.viscerion.config.BadConfigException.Reason
 import me.msfjarvis.viscerion.config.BadConfigException.Section
+import me.msfjarvis.viscerion.crypto.Key
+import me.msfjarvis.viscerion.crypto.KeyFormatException
 
 /**
  * Represents the contents of a wg-quick configuration file, made up of one or more "Interface"
@@ -42,15 +51,36 @@ class Config private constructor(builder: Builder) {
         peers = Collections.unmodifiableList(ArrayList(builder.peers))
     }
 
+    private val hash: Int = 31 * interfaze.hashCode() + peers.hashCode()
+    private val peersFingerprint: Long = run {
+        var fingerprint = Fingerprint.add(Fingerprint.SEED, peers.size)
+        for (peer in peers) {
+            fingerprint = Fingerprint.add(fingerprint, peer.fingerprint)
+        }
+        fingerprint
+    }
+
+    /**
+     * Returns a 64-bit digest of the contents of the configuration, which is computed when the
+     * configuration is built. Equal configurations always have the same fingerprint, and different
+     * ones almost certainly do not, so comparing fingerprints is a constant-time way to detect
+     * changes. Use [equals] where an exact answer is required.
+     */
+    val fingerprint: Long
+        get() = Fingerprint.add(interfaze.fingerprint, peersFingerprint)
+
     override fun equals(other: Any?): Boolean {
-        if (other !is Config) {
+        if (other === this) {
+            return true
+        }
+        if (other !is Config || hash != other.hash || peersFingerprint != other.peersFingerprint) {
             return false
         }
         return interfaze == other.interfaze && peers == other.peers
     }
 
     override fun hashCode(): Int {
-        return 31 * interfaze.hashCode() + peers.hashCode()
+        return hash
     }
 
     /**
@@ -70,12 +100,7 @@ class Config private constructor(builder: Builder) {
      * @return the `Config` represented as one [Interface] and zero or more [Peer] sections
      */
     fun toWgQuickString(): String {
-        val sb = StringBuilder()
-        sb.append("[Interface]\n").append(interfaze.toWgQuickString())
-        for (peer in peers) {
-            sb.append("\n[Peer]\n").append(peer.toWgQuickString())
-        }
-        return sb.toString()
+        return writeWgQuick(StringBuilder()).toString()
     }
 
     /**
@@ -84,13 +109,93 @@ class Config private constructor(builder: Builder) {
      * @return the `Config` represented as a series of "key=value" lines
      */
     fun toWgUserspaceString(): String {
-        val sb = StringBuilder()
-        sb.append(interfaze.toWgUserspaceString())
-        sb.append("replace_peers=true\n")
+        return writeWgUserspace(StringBuilder()).toString()
+    }
+
+    /**
+     * Writes the `Config` to `out` in the format used by [toWgQuickString]. Every section is
+     * appended directly, so no intermediate strings are built for the interface or the peers.
+     *
+     * @return `out`
+     */
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgQuick(out: A): A {
+        interfaze.writeWgQuick(out.append("[Interface]\n"))
         for (peer in peers) {
-            sb.append(peer.toWgUserspaceString())
+            peer.writeWgQuick(out.append("\n[Peer]\n"))
+        }
+        return out
+    }
+
+    /**
+     * Encodes the `Config` as UTF-8 in the format used by [toWgQuickString] and writes it to
+     * `stream` as it is being serialized. The stream is flushed but not closed.
+     */
+    @Throws(IOException::class)
+    fun writeWgQuick(stream: OutputStream) {
+        val writer = OutputStreamWriter(stream, StandardCharsets.UTF_8)
+        writeWgQuick(writer)
+        writer.flush()
+    }
+
+    /**
+     * Writes the `Config` to `out` in the format used by [writeWgQuick], but without the
+     * interface attributes that only `wg-quick` understands (addresses, DNS servers, excluded
+     * applications and MTU), so that the result can be passed to `wg setconf` or `wg syncconf`.
+     *
+     * @return `out`
+     */
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgStripped(out: A): A {
+        interfaze.writeWgStripped(out.append("[Interface]\n"))
+        for (peer in peers) {
+            peer.writeWgQuick(out.append("\n[Peer]\n"))
+        }
+        return out
+    }
+
+    /**
+     * Encodes the `Config` as UTF-8 in the format used by [writeWgStripped] and writes it to
+     * `stream`. The stream is flushed but not closed.
+     */
+    @Throws(IOException::class)
+    fun writeWgStripped(stream: OutputStream) {
+        val writer = OutputStreamWriter(stream, StandardCharsets.UTF_8)
+        writeWgStripped(writer)
+        writer.flush()
+    }
+
+    /**
+     * Writes the `Config` to `out` in the format used by [toWgUserspaceString]. Every section
+     * is appended directly, so no intermediate strings are built for the interface or the peers.
+     *
+     * @return `out`
+     */
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgUserspace(out: A): A {
+        interfaze.writeWgUserspace(out)
+        out.append("replace_peers=true\n")
+        for (peer in peers) {
+            peer.writeWgUserspace(out)
+        }
+        return out
+    }
+
+    /**
+     * Writes the `Config` in a compact binary form that [readBinary] turns back into an equal
+     * `Config` without any text parsing or key derivation. The form is meant for caches only:
+     * it may change between versions, in which case [readBinary] rejects older data. The private
+     * key is left out, so that the form can be kept somewhere less protected than the
+     * configuration itself; it has to be passed back to [readBinary].
+     */
+    @Throws(IOException::class)
+    fun writeBinary(out: DataOutput) {
+        out.writeInt(BINARY_VERSION)
+        interfaze.writeBinary(out)
+        out.writeInt(peers.size)
+        for (peer in peers) {
+            peer.writeBinary(out)
         }
-        return sb.toString()
     }
 
     class Builder {
@@ -99,7 +204,7 @@ class Config private constructor(builder: Builder) {
         // No default; must be provided before building.
         var interfaze: Interface? = null
 
-        private fun addPeer(peer: Peer): Builder {
+        fun addPeer(peer: Peer): Builder {
             peers.add(peer)
             return this
         }
@@ -130,7 +235,99 @@ class Config private constructor(builder: Builder) {
         }
     }
 
+    /**
+     * The outcome of parsing a single configuration with [parseAll]: either the parsed [config],
+     * or the [error] (usually a [BadConfigException] or an [IOException]) that prevented it.
+     */
+    class ParseResult(val config: Config?, val error: Exception?) {
+        /**
+         * Returns the parsed configuration, or throws the error that prevented parsing it.
+         */
+        @Throws(Exception::class)
+        fun get(): Config {
+            return config ?: throw requireNotNull(error)
+        }
+    }
+
+    /**
+     * Parses a contiguous slice of the sources given to [parseAll], splitting it in halves until
+     * each task handles a single configuration.
+     */
+    private class ParseAllTask(
+        private val names: Array<String>,
+        private val sources: Map<String, () -> InputStream>,
+        private val results: Array<ParseResult?>,
+        private val from: Int,
+        private val to: Int
+    ) : RecursiveAction() {
+        override fun compute() {
+            if (to - from > 1) {
+                val middle = (from + to) ushr 1
+                invokeAll(
+                    ParseAllTask(names, sources, results, from, middle),
+                    ParseAllTask(names, sources, results, middle, to)
+                )
+                return
+            }
+            for (i in from until to) {
+                results[i] = try {
+                    ParseResult(sources.getValue(names[i]).invoke().use { parse(it) }, null)
+                } catch (e: Exception) {
+                    ParseResult(null, e)
+                }
+            }
+        }
+    }
+
     companion object {
+        private const val BINARY_VERSION = 2
+        private val parseAllPool by lazy { ForkJoinPool() }
+
+        /**
+         * Reads a `Config` written by [writeBinary], with the private key it was written without.
+         *
+         * @throws IOException if the data is truncated, malformed or of another version
+         */
+        @Throws(IOException::class)
+        fun readBinary(input: DataInput, privateKey: Key): Config {
+            if (input.readInt() != BINARY_VERSION) {
+                throw IOException("Unsupported binary configuration version")
+            }
+            try {
+                val builder = Builder().setInterface(Interface.readBinary(input, privateKey))
+                repeat(input.readInt()) { builder.addPeer(Peer.readBinary(input)) }
+                return builder.build()
+            } catch (e: BadConfigException) {
+                throw IOException("Malformed binary configuration", e)
+            } catch (e: KeyFormatException) {
+                throw IOException("Malformed binary configuration", e)
+            } catch (e: ParseException) {
+                throw IOException("Malformed binary configuration", e)
+            }
+        }
+
+        /**
+         * Parses many configurations in parallel, using every available core. Each source is
+         * opened, parsed and closed on a worker thread, so suppliers must be thread-safe. A
+         * configuration that fails to open or parse does not affect the others.
+         *
+         * @param sources suppliers of UTF-8 streams of WireGuard configurations, keyed by name
+         * @param pool the pool to parse on; a shared pool sized to the number of cores by default
+         * @return the outcome for each name, in the iteration order of `sources`
+         */
+        fun parseAll(
+            sources: Map<String, () -> InputStream>,
+            pool: ForkJoinPool = parseAllPool
+        ): Map<String, ParseResult> {
+            val names = sources.keys.toTypedArray()
+            val results = arrayOfNulls<ParseResult>(names.size)
+            if (names.isNotEmpty()) {
+                pool.invoke(ParseAllTask(names, sources, results, 0, names.size))
+            }
+            val parsed = LinkedHashMap<String, ParseResult>(names.size)
+            names.forEachIndexed { i, name -> parsed[name] = requireNotNull(results[i]) }
+            return parsed
+        }
 
         /**
          * Parses an series of "Interface" and "Peer" sections into a `Config`. Throws
@@ -143,7 +340,7 @@ class Config private constructor(builder: Builder) {
         @Throws(IOException::class, BadConfigException::class)
         fun parse(stream: InputStream?): Config {
             requireNotNull(stream)
-            return parse(BufferedReader(InputStreamReader(stream)))
+            return parse(ConfigTokenizer(InputStreamReader(stream)))
         }
 
         /**
@@ -156,63 +353,111 @@ class Config private constructor(builder: Builder) {
          */
         @Throws(IOException::class, BadConfigException::class)
         fun parse(reader: BufferedReader): Config {
+            return parse(ConfigTokenizer(reader))
+        }
+
+        /**
+         * Parses an series of "Interface" and "Peer" sections into a `Config`. Throws
+         * [BadConfigException] if the input is not well-formed or contains data that cannot
+         * be parsed.
+         *
+         *
+         * The input is consumed in a single pass without splitting it into lines. Errors are
+         * reported in the same order as they would be by parsing each section separately: peers
+         * are validated as they are read, while errors in the (combined) interface section are
+         * only raised once the whole input has been seen.
+         *
+         * @param input text that is interpreted as a WireGuard configuration
+         * @return a `Config` instance representing the supplied configuration
+         */
+        @Throws(BadConfigException::class)
+        fun parse(input: CharSequence): Config {
+            return parse(ConfigTokenizer(input))
+        }
+
+        @Throws(IOException::class, BadConfigException::class)
+        private fun parse(tokenizer: ConfigTokenizer): Config {
             val builder = Builder()
-            val interfaceLines = ArrayList<String>()
-            val peerLines = ArrayList<String>()
+            val interfaceBuilder = Interface.Builder()
+            var interfaceError: BadConfigException? = null
+            var peerBuilder: Peer.Builder? = null
             var inInterfaceSection = false
-            var inPeerSection = false
-            var line: String?
             while (true) {
-                line = reader.readLine() ?: break
-                val commentIndex = line.indexOf('#')
-                if (commentIndex != -1) {
-                    line = line.substring(0, commentIndex)
-                }
-                line = line.trim { it <= ' ' }
-                if (line.isEmpty()) {
-                    continue
+                val token = tokenizer.next()
+                if (token == ConfigTokenizer.Token.EOF) {
+                    break
                 }
-                when {
-                    line.startsWith("[") -> {
-                        // Consume all [Peer] lines read so far.
-                        if (inPeerSection) {
-                            builder.parsePeer(peerLines)
-                            peerLines.clear()
+                when (token) {
+                    ConfigTokenizer.Token.INTERFACE, ConfigTokenizer.Token.PEER,
+                    ConfigTokenizer.Token.UNKNOWN_SECTION -> {
+                        // Finish the [Peer] read so far.
+                        peerBuilder?.let { builder.addPeer(it.build()) }
+                        peerBuilder = null
+                        inInterfaceSection = false
+                        when (token) {
+                            ConfigTokenizer.Token.INTERFACE -> inInterfaceSection = true
+                            ConfigTokenizer.Token.PEER -> peerBuilder = Peer.Builder()
+                            else -> throw BadConfigException(
+                                Section.CONFIG, Location.TOP_LEVEL,
+                                Reason.UNKNOWN_SECTION, tokenizer.line()
+                            )
                         }
+                    }
+                    else -> {
+                        val currentPeer = peerBuilder
                         when {
-                            "[Interface]".equals(line, ignoreCase = true) -> {
-                                inInterfaceSection = true
-                                inPeerSection = false
+                            inInterfaceSection -> if (interfaceError == null) {
+                                try {
+                                    parseInterfaceAttribute(interfaceBuilder, tokenizer, token)
+                                } catch (e: BadConfigException) {
+                                    interfaceError = e
+                                }
                             }
-                            "[Peer]".equals(line, ignoreCase = true) -> {
-                                inInterfaceSection = false
-                                inPeerSection = true
+                            currentPeer != null -> {
+                                if (token == ConfigTokenizer.Token.INVALID) {
+                                    throw BadConfigException(
+                                        Section.PEER, Location.TOP_LEVEL,
+                                        Reason.SYNTAX_ERROR, tokenizer.line()
+                                    )
+                                }
+                                currentPeer.parseAttribute(tokenizer)
                             }
                             else -> throw BadConfigException(
                                 Section.CONFIG, Location.TOP_LEVEL,
-                                Reason.UNKNOWN_SECTION, line
+                                Reason.UNKNOWN_SECTION, tokenizer.line()
                             )
                         }
                     }
-                    inInterfaceSection -> interfaceLines.add(line)
-                    inPeerSection -> peerLines.add(line)
-                    else -> throw BadConfigException(
-                        Section.CONFIG, Location.TOP_LEVEL,
-                        Reason.UNKNOWN_SECTION, line
-                    )
                 }
             }
-            if (inPeerSection) {
-                builder.parsePeer(peerLines)
+            val lastPeer = peerBuilder
+            if (lastPeer != null) {
+                builder.addPeer(lastPeer.build())
             } else if (!inInterfaceSection) {
                 throw BadConfigException(
                     Section.CONFIG, Location.TOP_LEVEL,
                     Reason.MISSING_SECTION, null
                 )
             }
-            // Combine all [Interface] sections in the file.
-            builder.parseInterface(interfaceLines)
+            // All [Interface] sections in the file have been combined into one builder.
+            interfaceError?.let { throw it }
+            builder.setInterface(interfaceBuilder.build())
             return builder.build()
         }
+
+        @Throws(BadConfigException::class)
+        private fun parseInterfaceAttribute(
+            interfaceBuilder: Interface.Builder,
+            tokenizer: ConfigTokenizer,
+            token: ConfigTokenizer.Token
+        ) {
+            if (token == ConfigTokenizer.Token.INVALID) {
+                throw BadConfigException(
+                    Section.INTERFACE, Location.TOP_LEVEL,
+                    Reason.SYNTAX_ERROR, tokenizer.line()
+                )
+            }
+            interfaceBuilder.parseAttribute(tokenizer)
+        }
     }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.io.IOException
+import me.msfjarvis.viscerion.crypto.Key
+
+/**
+ * The difference between two [Config]s, from which the incremental userspace API commands that
+ * turn a device running the old configuration into one running the new configuration can be
+ * generated. Peers are matched by public key.
+ *
+ *
+ * Instances of this class are immutable.
+ */
+class ConfigDiff private constructor(val from: Config, val to: Config) {
+    /**
+     * Returns the peers that are only present in the new configuration.
+     */
+    val addedPeers: List<Peer>
+    /**
+     * Returns the peers whose settings differ between the two configurations, as pairs of the old
+     * and the new version of each peer.
+     */
+    val modifiedPeers: List<Pair<Peer, Peer>>
+    /**
+     * Returns the peers that are only present in the old configuration.
+     */
+    val removedPeers: List<Peer>
+
+    init {
+        val oldPeers = LinkedHashMap<Key, Peer>()
+        from.peers.forEach { oldPeers[it.publicKey] = it }
+        val added = ArrayList<Peer>()
+        val modified = ArrayList<Pair<Peer, Peer>>()
+        for (peer in to.peers) {
+            val old = oldPeers.remove(peer.publicKey)
+            when {
+                old == null -> added.add(peer)
+                old != peer -> modified.add(Pair(old, peer))
+            }
+        }
+        addedPeers = added
+        modifiedPeers = modified
+        removedPeers = ArrayList(oldPeers.values)
+    }
+
+    /**
+     * Checks whether the userspace interface settings (the private key and listen port) differ.
+     */
+    val isInterfaceChanged: Boolean
+        get() = from.interfaze.keyPair != to.interfaze.keyPair || from.interfaze.listenPort != to.interfaze.listenPort
+
+    /**
+     * Checks whether the two configurations are equivalent as far as the userspace API is
+     * concerned, so that no commands need to be sent at all.
+     */
+    val isEmpty: Boolean
+        get() = !isInterfaceChanged && addedPeers.isEmpty() && modifiedPeers.isEmpty() && removedPeers.isEmpty()
+
+    /**
+     * Checks whether the settings of the tunnel itself, which cannot be changed through the
+     * userspace API, differ: addresses, DNS servers, MTU, excluded applications or the set of
+     * addresses routed into the tunnel (the union of all peers' allowed IPs).
+     */
+    val isTunnelChanged: Boolean
+        get() {
+            val old = from.interfaze
+            val new = to.interfaze
+            return old.addresses != new.addresses || old.dnsServers != new.dnsServers || old.mtu != new.mtu ||
+                old.excludedApplications.toSet() != new.excludedApplications.toSet() ||
+                routes(from) != routes(to)
+        }
+
+    /**
+     * Serializes the difference as userspace API commands. Unlike [Config.toWgUserspaceString],
+     * the result does not replace the whole peer list: removed peers are removed, modified peers
+     * are updated in place, and only the settings that changed are sent for them. A peer whose
+     * endpoint was removed is the exception, as it has to be removed and added again.
+     *
+     * @return the difference represented as a series of "key=value" lines
+     */
+    fun toWgUserspaceString(): String {
+        return writeWgUserspace(StringBuilder()).toString()
+    }
+
+    /**
+     * Writes the difference to `out` in the format used by [toWgUserspaceString].
+     *
+     * @return `out`
+     */
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgUserspace(out: A): A {
+        val old = from.interfaze
+        val new = to.interfaze
+        if (old.keyPair != new.keyPair) {
+            out.append("private_key=").append(new.keyPair.privateKey.toHex()).append('\n')
+        }
+        if (old.listenPort != new.listenPort) {
+            // A port of zero asks for a random one, as if none had been configured.
+            out.append("listen_port=").append((new.listenPort ?: 0).toString()).append('\n')
+        }
+        for (peer in removedPeers) {
+            out.append("public_key=").append(peer.publicKey.toHex()).append('\n')
+            out.append("remove=true\n")
+        }
+        for ((oldPeer, newPeer) in modifiedPeers) {
+            if (oldPeer.endpoint != null && newPeer.endpoint == null) {
+                // The userspace API cannot clear an endpoint, so the peer is removed and re-added.
+                out.append("public_key=").append(oldPeer.publicKey.toHex()).append('\n')
+                out.append("remove=true\n")
+                newPeer.writeWgUserspace(out)
+            } else {
+                writePeerUpdate(out, oldPeer, newPeer)
+            }
+        }
+        for (peer in addedPeers) {
+            peer.writeWgUserspace(out)
+        }
+        return out
+    }
+
+    private fun <A : Appendable> writePeerUpdate(out: A, old: Peer, new: Peer) {
+        out.append("public_key=").append(new.publicKey.toHex()).append('\n')
+        out.append("update_only=true\n")
+        if (old.allowedIps != new.allowedIps) {
+            out.append("replace_allowed_ips=true\n")
+            for (allowedIp in new.allowedIps) {
+                out.append("allowed_ip=").append(allowedIp.toString()).append('\n')
+            }
+        }
+        if (old.endpoint != new.endpoint) {
+            new.endpoint?.getResolved()?.let { ep -> out.append("endpoint=").append(ep.toString()).append('\n') }
+        }
+        if (old.persistentKeepalive != new.persistentKeepalive) {
+            out.append("persistent_keepalive_interval=").append((new.persistentKeepalive ?: 0).toString()).append('\n')
+        }
+        if (old.preSharedKey != new.preSharedKey) {
+            // An all-zero key disables the preshared key.
+            out.append("preshared_key=").append((new.preSharedKey ?: ZERO_KEY).toHex()).append('\n')
+        }
+    }
+
+    companion object {
+        private val ZERO_KEY = Key.fromBytes(ByteArray(Key.Format.BINARY.length))
+
+        /**
+         * Computes the difference between the configuration a device is running and the one it
+         * should be running.
+         */
+        fun between(from: Config, to: Config): ConfigDiff {
+            return ConfigDiff(from, to)
+        }
+
+        private fun routes(config: Config): InetNetworkSet {
+            return InetNetworkSet.of(config.peers.flatMap { it.allowedIps })
+        }
+    }
+}
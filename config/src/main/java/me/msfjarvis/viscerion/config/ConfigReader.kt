@@ -0,0 +1,132 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.io.Closeable
+import java.io.IOException
+import java.io.InputStream
+import java.io.InputStreamReader
+import java.io.Reader
+import me.msfjarvis.viscerion.config.BadConfigException.Location
+import me.msfjarvis.viscerion.config.BadConfigException.Reason
+import me.msfjarvis.viscerion.config.BadConfigException.Section
+
+/**
+ * Pull-style reader for `wg-quick` configuration files that yields the [Interface] and then each
+ * [Peer] in turn, instead of materializing a whole [Config]. Only the peer currently being read
+ * is held in memory, which keeps memory usage flat for configurations with thousands of peers.
+ *
+ *
+ * Unlike [Config.parse], all "Interface" sections must precede the first "Peer" section; an
+ * "Interface" section found after a peer is reported as an unknown section.
+ */
+class ConfigReader(private val reader: Reader) : Closeable {
+    private val tokenizer = ConfigTokenizer(reader)
+    private var interfaze: Interface? = null
+    // Whether the tokenizer is positioned on a [Peer] header that has not been read yet.
+    private var peerPending = false
+
+    constructor(stream: InputStream) : this(InputStreamReader(stream))
+
+    override fun close() {
+        reader.close()
+    }
+
+    /**
+     * Reads each remaining peer and passes it to `action`, without retaining any of them.
+     */
+    @Throws(IOException::class, BadConfigException::class)
+    fun forEachPeer(action: (Peer) -> Unit) {
+        while (true) {
+            action(readPeer() ?: return)
+        }
+    }
+
+    /**
+     * Returns the interface of the configuration, reading it first if necessary. Throws
+     * [BadConfigException] if the interface is not well-formed.
+     *
+     * @return the combined [Interface] from all of the leading "Interface" sections
+     */
+    @Throws(IOException::class, BadConfigException::class)
+    fun readInterface(): Interface {
+        interfaze?.let { return it }
+        val builder = Interface.Builder()
+        var inInterfaceSection = false
+        loop@ while (true) {
+            when (tokenizer.next()) {
+                ConfigTokenizer.Token.EOF -> break@loop
+                ConfigTokenizer.Token.INTERFACE -> inInterfaceSection = true
+                ConfigTokenizer.Token.PEER -> {
+                    peerPending = true
+                    break@loop
+                }
+                ConfigTokenizer.Token.INVALID -> throw BadConfigException(
+                    if (inInterfaceSection) Section.INTERFACE else Section.CONFIG,
+                    Location.TOP_LEVEL,
+                    if (inInterfaceSection) Reason.SYNTAX_ERROR else Reason.UNKNOWN_SECTION,
+                    tokenizer.line()
+                )
+                ConfigTokenizer.Token.ATTRIBUTE -> if (inInterfaceSection) {
+                    builder.parseAttribute(tokenizer)
+                } else {
+                    throw unknownSection()
+                }
+                ConfigTokenizer.Token.UNKNOWN_SECTION -> throw unknownSection()
+            }
+        }
+        if (!inInterfaceSection && !peerPending) {
+            throw BadConfigException(
+                Section.CONFIG, Location.TOP_LEVEL,
+                Reason.MISSING_SECTION, null
+            )
+        }
+        return builder.build().also { interfaze = it }
+    }
+
+    /**
+     * Reads the next peer of the configuration, reading the interface first if that has not
+     * happened yet. Throws [BadConfigException] if the peer is not well-formed.
+     *
+     * @return the next [Peer], or null if there are no more peers
+     */
+    @Throws(IOException::class, BadConfigException::class)
+    fun readPeer(): Peer? {
+        readInterface()
+        if (!peerPending) {
+            return null
+        }
+        peerPending = false
+        val builder = Peer.Builder()
+        loop@ while (true) {
+            when (tokenizer.next()) {
+                ConfigTokenizer.Token.EOF -> break@loop
+                ConfigTokenizer.Token.PEER -> {
+                    peerPending = true
+                    break@loop
+                }
+                ConfigTokenizer.Token.INVALID -> throw BadConfigException(
+                    Section.PEER, Location.TOP_LEVEL,
+                    Reason.SYNTAX_ERROR, tokenizer.line()
+                )
+                ConfigTokenizer.Token.ATTRIBUTE -> builder.parseAttribute(tokenizer)
+                ConfigTokenizer.Token.INTERFACE, ConfigTokenizer.Token.UNKNOWN_SECTION -> {
+                    // Report problems with the peer itself before the misplaced section.
+                    builder.build()
+                    throw unknownSection()
+                }
+            }
+        }
+        return builder.build()
+    }
+
+    private fun unknownSection(): BadConfigException {
+        return BadConfigException(
+            Section.CONFIG, Location.TOP_LEVEL,
+            Reason.UNKNOWN_SECTION, tokenizer.line()
+        )
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.io.IOException
+import java.io.Reader
+import java.nio.CharBuffer
+
+/**
+ * Single-pass, character-level tokenizer for `wg-quick` configuration files.
+ *
+ *
+ * The tokenizer walks the input exactly once and never copies a line. It either works on an
+ * in-memory [CharSequence] or streams from a [Reader] through a small, reusable window. Each call
+ * to [next] classifies the next non-blank, non-comment line and records the offsets of the
+ * interesting parts of it, which callers can then compare against or materialize on demand. Lines are
+ * interpreted exactly like the original line-based parser did: everything after a `#` is a
+ * comment, surrounding characters up to and including space are ignored, and attributes follow
+ * the `key = value` grammar of [Attribute].
+ */
+internal class ConfigTokenizer private constructor(
+    private var input: CharSequence,
+    private val reader: Reader?
+) {
+    private var buffer = CharArray(if (reader == null) 0 else READ_BUFFER_SIZE)
+    private var exhausted = reader == null
+    private var position = 0
+
+    constructor(input: CharSequence) : this(input, null)
+
+    /**
+     * Creates a tokenizer that pulls its input from `reader` through a fixed window, so that
+     * arbitrarily large inputs can be tokenized while only holding the current line in memory.
+     */
+    constructor(reader: Reader) : this("", reader)
+
+    var lineStart = 0
+        private set
+    var lineEnd = 0
+        private set
+    var keyStart = 0
+        private set
+    var keyEnd = 0
+        private set
+    var valueStart = 0
+        private set
+    var valueEnd = 0
+        private set
+
+    /**
+     * Advances to the next meaningful line of the input.
+     *
+     * @return the kind of line that was found, or [Token.EOF] if the input is exhausted
+     */
+    @Throws(IOException::class)
+    fun next(): Token {
+        while (true) {
+            val length = input.length
+            if (position >= length) {
+                if (fill()) {
+                    continue
+                }
+                return Token.EOF
+            }
+            var end = position
+            var commentIndex = -1
+            while (end < length) {
+                val c = input[end]
+                if (c == '\n' || c == '\r') {
+                    break
+                }
+                if (c == '#' && commentIndex == -1) {
+                    commentIndex = end
+                }
+                end++
+            }
+            // The line might continue past the current window, so read more and start over.
+            if (end == length && fill()) {
+                continue
+            }
+            var start = position
+            position = end + 1
+            if (commentIndex != -1) {
+                end = commentIndex
+            }
+            while (start < end && input[start] <= ' ') {
+                start++
+            }
+            while (end > start && input[end - 1] <= ' ') {
+                end--
+            }
+            if (start == end) {
+                continue
+            }
+            lineStart = start
+            lineEnd = end
+            if (input[start] == '[') {
+                return when {
+                    regionEquals(start, end, "[Interface]") -> Token.INTERFACE
+                    regionEquals(start, end, "[Peer]") -> Token.PEER
+                    else -> Token.UNKNOWN_SECTION
+                }
+            }
+            return if (tokenizeAttribute()) Token.ATTRIBUTE else Token.INVALID
+        }
+    }
+
+    /**
+     * Checks whether the key of the current attribute is `name`, ignoring case.
+     */
+    fun keyEquals(name: String): Boolean {
+        return regionEquals(keyStart, keyEnd, name)
+    }
+
+    fun key(): String {
+        return input.subSequence(keyStart, keyEnd).toString()
+    }
+
+    fun line(): String {
+        return input.subSequence(lineStart, lineEnd).toString()
+    }
+
+    fun value(): String {
+        return input.subSequence(valueStart, valueEnd).toString()
+    }
+
+    /**
+     * Returns a view of the current attribute's value without copying the underlying characters.
+     */
+    fun valueSequence(): CharSequence {
+        return CharBuffer.wrap(input, valueStart, valueEnd)
+    }
+
+    /**
+     * Moves the unconsumed part of the window to its start and reads more input behind it.
+     *
+     * @return false if there is no more input to read
+     */
+    @Throws(IOException::class)
+    private fun fill(): Boolean {
+        if (exhausted) {
+            return false
+        }
+        val remaining = input.length - position
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, remaining)
+        } else if (remaining == buffer.size) {
+            buffer = buffer.copyOf(buffer.size * 2)
+        }
+        position = 0
+        var length = remaining
+        val read = requireNotNull(reader).read(buffer, length, buffer.size - length)
+        if (read < 0) {
+            exhausted = true
+        } else {
+            length += read
+        }
+        input = CharBuffer.wrap(buffer, 0, length)
+        return true
+    }
+
+    private fun regionEquals(start: Int, end: Int, other: String): Boolean {
+        if (end - start != other.length) {
+            return false
+        }
+        for (i in other.indices) {
+            val a = input[start + i]
+            val b = other[i]
+            if (a == b) {
+                continue
+            }
+            // Mirror String.equals(ignoreCase = true), which the line-based parser relied upon.
+            val upperA = a.toUpperCase()
+            val upperB = b.toUpperCase()
+            if (upperA != upperB && upperA.toLowerCase() != upperB.toLowerCase()) {
+                return false
+            }
+        }
+        return true
+    }
+
+    // Hand-written equivalent of Attribute's (\w+)\s*=\s*([^\s#][^#]*) applied to a trimmed line.
+    private fun tokenizeAttribute(): Boolean {
+        var i = lineStart
+        while (i < lineEnd && isWordCharacter(input[i])) {
+            i++
+        }
+        if (i == lineStart) {
+            return false
+        }
+        keyStart = lineStart
+        keyEnd = i
+        while (i < lineEnd && isWhitespace(input[i])) {
+            i++
+        }
+        if (i == lineEnd || input[i] != '=') {
+            return false
+        }
+        i++
+        while (i < lineEnd && isWhitespace(input[i])) {
+            i++
+        }
+        if (i == lineEnd) {
+            return false
+        }
+        valueStart = i
+        valueEnd = lineEnd
+        return true
+    }
+
+    enum class Token {
+        ATTRIBUTE,
+        EOF,
+        INTERFACE,
+        INVALID,
+        PEER,
+        UNKNOWN_SECTION
+    }
+
+    companion object {
+        private const val READ_BUFFER_SIZE = 8192
+
+        fun isWhitespace(c: Char): Boolean {
+            return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\u000C' || c == '\r'
+        }
+
+        private fun isWordCharacter(c: Char): Boolean {
+            return c in 'a'..'z' || c in 'A'..'Z' || c in '0'..'9' || c == '_'
+        }
+    }
+}
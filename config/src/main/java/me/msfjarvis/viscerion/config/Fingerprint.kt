@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.net.InetAddress
+import me.msfjarvis.viscerion.crypto.Key
+
+/**
+ * Helpers for computing 64-bit content fingerprints of configuration values. Equal values always
+ * have equal fingerprints, while different values collide with negligible probability. These are
+ * not cryptographic digests and must not be relied upon to resist deliberate collisions.
+ */
+internal object Fingerprint {
+    private const val MULTIPLIER = -0x61c8864680b583ebL
+    private const val NULL = 0x5bd1e9955bd1e995L
+    const val SEED = 0x243f6a8885a308d3L
+
+    /**
+     * Folds `value` into `fingerprint`. The result depends on the order in which values are added.
+     */
+    fun add(fingerprint: Long, value: Long): Long {
+        return (fingerprint xor mix(value)) * MULTIPLIER
+    }
+
+    fun add(fingerprint: Long, value: Int?): Long {
+        return add(fingerprint, value?.toLong() ?: NULL)
+    }
+
+    fun add(fingerprint: Long, value: String?): Long {
+        if (value == null) {
+            return add(fingerprint, NULL)
+        }
+        var result = add(fingerprint, value.length.toLong())
+        for (c in value) {
+            result = add(result, c.toLong())
+        }
+        return result
+    }
+
+    fun add(fingerprint: Long, key: Key?): Long {
+        return add(fingerprint, key?.let { of(it.bytes) } ?: NULL)
+    }
+
+    /**
+     * Returns a fingerprint of `values` that does not depend on their order, for use with sets.
+     */
+    fun <T> addUnordered(fingerprint: Long, values: Collection<T>, of: (T) -> Long): Long {
+        var sum = 0L
+        for (value in values) {
+            sum += mix(of(value))
+        }
+        return add(add(fingerprint, values.size.toLong()), sum)
+    }
+
+    fun of(address: InetAddress): Long {
+        return of(address.address)
+    }
+
+    fun of(bytes: ByteArray): Long {
+        var result = add(SEED, bytes.size.toLong())
+        for (b in bytes) {
+            result = add(result, b.toLong())
+        }
+        return result
+    }
+
+    fun of(endpoint: InetEndpoint): Long {
+        return add(add(SEED, endpoint.host), endpoint.port)
+    }
+
+    fun of(network: InetNetwork): Long {
+        return add(add(add(SEED, network.high), network.low), if (network.isIpv4) network.mask else -network.mask - 1)
+    }
+
+    /**
+     * The finalizer of MurmurHash3, which spreads every input bit over the whole output.
+     */
+    private fun mix(value: Long): Long {
+        var z = value
+        z = (z xor (z ushr 33)) * -0xae502812aa7333L
+        z = (z xor (z ushr 33)) * -0x3b314601e57a13adL
+        return z xor (z ushr 33)
+    }
+}
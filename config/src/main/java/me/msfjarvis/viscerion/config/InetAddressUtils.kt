@@ -5,66 +5,239 @@
  */
 package me.msfjarvis.viscerion.config
 
-import android.net.InetAddresses
-import android.os.Build
-import java.lang.reflect.Method
 import java.net.Inet4Address
 import java.net.Inet6Address
 import java.net.InetAddress
+import java.net.NetworkInterface
+import java.net.SocketException
 import java.net.UnknownHostException
-import java.util.regex.Pattern
 
 /**
  * Utility methods for creating instances of [InetAddress].
  */
 object InetAddressUtils {
-    private var PARSER_METHOD: Method? = null
-    private val WONT_TOUCH_RESOLVER: Pattern = Pattern.compile("^(((([0-9A-Fa-f]{1,4}:){7}([0-9A-Fa-f]{1,4}|:))|(([0-9A-Fa-f]{1,4}:){6}(:[0-9A-Fa-f]{1,4}|((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3})|:))|(([0-9A-Fa-f]{1,4}:){5}(((:[0-9A-Fa-f]{1,4}){1,2})|:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3})|:))|(([0-9A-Fa-f]{1,4}:){4}(((:[0-9A-Fa-f]{1,4}){1,3})|((:[0-9A-Fa-f]{1,4})?:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:){3}(((:[0-9A-Fa-f]{1,4}){1,4})|((:[0-9A-Fa-f]{1,4}){0,2}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:){2}(((:[0-9A-Fa-f]{1,4}){1,5})|((:[0-9A-Fa-f]{1,4}){0,3}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(([0-9A-Fa-f]{1,4}:)(((:[0-9A-Fa-f]{1,4}){1,6})|((:[0-9A-Fa-f]{1,4}){0,4}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:))|(:(((:[0-9A-Fa-f]{1,4}){1,7})|((:[0-9A-Fa-f]{1,4}){0,5}:((25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)(\\.(25[0-5]|2[0-4]\\d|1\\d\\d|[1-9]?\\d)){3}))|:)))(%.+)?)|((?:(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?)\\.){3}(?:25[0-5]|2[0-4][0-9]|[01]?[0-9][0-9]?))$")
-
-    init {
-        var m: Method? = null
-        try {
-            m = InetAddress::class.java.getMethod("parseNumericAddress", String::class.java)
-        } catch (_: Exception) {
-        }
-        PARSER_METHOD = m
-    }
+    private const val IPV4_BYTES = 4
+    private const val IPV6_BYTES = 16
 
     /**
-     * Parses a numeric IPv4 or IPv6 address without performing any DNS lookups.
+     * Parses a numeric IPv4 or IPv6 address without performing any DNS lookups. IPv6 addresses
+     * may be enclosed in brackets, embed a dotted-quad IPv4 address in their last 32 bits, and
+     * carry a zone ID (either a numeric scope or an interface name) after a `%`. When
+     * [Interner.isEnabled] is set, identical input yields a shared instance.
      *
      * @param address a string representing the IP address
      * @return an instance of [Inet4Address] or [Inet6Address], as appropriate
      */
     @Throws(ParseException::class)
     fun parse(address: String): InetAddress {
-        if (address.isEmpty()) {
-            throw ParseException(InetAddress::class.java, address, "Empty address")
+        return Interner.intern(Interner.addresses, address) { parseUncached(address) }
+    }
+
+    /**
+     * Parses a numeric address like [parse] does, but returns its raw bytes instead of an
+     * [InetAddress]. The zone ID, if any, is validated syntactically and then discarded, and
+     * IPv4-mapped IPv6 addresses are returned as IPv4 addresses.
+     *
+     * @return 4 bytes for an IPv4 address or 16 bytes for an IPv6 address
+     */
+    @Throws(ParseException::class)
+    internal fun parseBytes(address: String): ByteArray {
+        val bytes = parseLiteral(address)
+        if (isIpv4Mapped(bytes)) {
+            return bytes.copyOfRange(IPV6_BYTES - IPV4_BYTES, IPV6_BYTES)
         }
+        return bytes
+    }
+
+    @Throws(ParseException::class)
+    private fun parseUncached(address: String): InetAddress {
+        val bytes = parseLiteral(address)
+        val percent = address.indexOf('%')
         try {
-            return when {
-                Build.VERSION.SDK_INT >= 29 -> InetAddresses.parseNumericAddress(address)
-                PARSER_METHOD != null -> PARSER_METHOD?.invoke(null, address) as InetAddress
-                else -> throw NoSuchMethodException("parseNumericAddress")
+            if (percent < 0) {
+                // Like the platform parser, this returns an Inet4Address for IPv4-mapped addresses.
+                return InetAddress.getByAddress(bytes)
             }
-        } catch (e: IllegalArgumentException) {
+            val zone = address.substring(percent + 1, if (address[0] == '[') address.length - 1 else address.length)
+            return if (zone.all { it in '0'..'9' } && zone.length < 10) {
+                Inet6Address.getByAddress(null, bytes, zone.toInt())
+            } else {
+                val networkInterface = NetworkInterface.getByName(zone)
+                    ?: throw ParseException(InetAddress::class.java, address, "Unknown zone ID")
+                Inet6Address.getByAddress(null, bytes, networkInterface)
+            }
+        } catch (e: UnknownHostException) {
+            throw ParseException(InetAddress::class.java, address, e)
+        } catch (e: SocketException) {
             throw ParseException(InetAddress::class.java, address, e)
-        } catch (e: Exception) {
-            val cause = e.cause
-            // Re-throw parsing exceptions with the original type, as callers might try to catch
-            // them. On the other hand, callers cannot be expected to handle reflection failures.
-            if (cause is IllegalArgumentException) {
-                throw ParseException(InetAddress::class.java, address, cause)
+        }
+    }
+
+    /**
+     * Parses `address` into 4 or 16 bytes, stripping brackets and checking that a zone ID is
+     * only attached to a non-empty IPv6 address.
+     */
+    @Throws(ParseException::class)
+    private fun parseLiteral(address: String): ByteArray {
+        if (address.isEmpty()) {
+            throw ParseException(InetAddress::class.java, address, "Empty address")
+        }
+        var start = 0
+        var end = address.length
+        if (address[0] == '[' && address[end - 1] == ']') {
+            start++
+            end--
+        }
+        val percent = address.indexOf('%', start)
+        val literalEnd = if (percent in 0 until end) percent else end
+        val bytes = when {
+            percent in 0 until end && percent + 1 == end -> null
+            address.indexOf(':', start) in start until literalEnd -> parseIpv6(address, start, literalEnd)
+            // Only IPv6 addresses may be bracketed or carry a zone ID.
+            start == 0 && literalEnd == end -> parseIpv4(address, start, end)
+            else -> null
+        }
+        return bytes ?: throw ParseException(InetAddress::class.java, address, "Not an IP address")
+    }
+
+    /**
+     * Parses a dotted-quad IPv4 address. Leading zeros are rejected, as they could be mistaken
+     * for octal notation.
+     */
+    private fun parseIpv4(s: String, start: Int, end: Int): ByteArray? {
+        val bytes = ByteArray(IPV4_BYTES)
+        return if (parseIpv4(s, start, end, bytes, 0)) bytes else null
+    }
+
+    private fun parseIpv4(s: String, start: Int, end: Int, out: ByteArray, offset: Int): Boolean {
+        var octets = 0
+        var value = -1
+        var i = start
+        while (i <= end) {
+            val c = if (i < end) s[i] else '.'
+            when {
+                c in '0'..'9' -> {
+                    value = when (value) {
+                        -1 -> c - '0'
+                        // A second digit after a leading zero.
+                        0 -> return false
+                        else -> value * 10 + (c - '0')
+                    }
+                    if (value > 255) {
+                        return false
+                    }
+                }
+                c == '.' -> {
+                    if (value < 0 || octets == IPV4_BYTES) {
+                        return false
+                    }
+                    out[offset + octets++] = value.toByte()
+                    value = -1
+                }
+                else -> return false
             }
-            try {
-                if (WONT_TOUCH_RESOLVER.matcher(address).matches()) {
-                    return InetAddress.getByName(address)
-                } else {
-                    throw ParseException(InetAddress::class.java, address, "Not an IP address")
+            i++
+        }
+        return octets == IPV4_BYTES
+    }
+
+    /**
+     * Parses an IPv6 address in any of the textual forms of RFC 4291, section 2.2. A `::` must
+     * stand for at least one group of zeros.
+     */
+    private fun parseIpv6(s: String, start: Int, end: Int): ByteArray? {
+        val bytes = ByteArray(IPV6_BYTES)
+        var i = start
+        // A leading colon is only valid as part of a leading "::".
+        if (s[i] == ':') {
+            if (i + 1 >= end || s[i + 1] != ':') {
+                return null
+            }
+            i++
+        }
+        var length = 0
+        var gap = -1
+        var groupStart = i
+        var digits = 0
+        var value = 0
+        loop@ while (i < end) {
+            val c = s[i]
+            val digit = hexDigit(c)
+            when {
+                digit >= 0 -> {
+                    if (++digits > 4) {
+                        return null
+                    }
+                    value = value shl 4 or digit
                 }
-            } catch (f: UnknownHostException) {
-                throw ParseException(InetAddress::class.java, address, f)
+                c == ':' -> {
+                    groupStart = i + 1
+                    if (digits == 0) {
+                        if (gap >= 0) {
+                            return null
+                        }
+                        gap = length
+                    } else {
+                        if (i + 1 == end || length + 2 > IPV6_BYTES) {
+                            return null
+                        }
+                        bytes[length++] = (value shr 8).toByte()
+                        bytes[length++] = value.toByte()
+                        digits = 0
+                        value = 0
+                    }
+                }
+                c == '.' -> {
+                    // An embedded IPv4 address can only form the last 32 bits.
+                    if (length + IPV4_BYTES > IPV6_BYTES || !parseIpv4(s, groupStart, end, bytes, length)) {
+                        return null
+                    }
+                    length += IPV4_BYTES
+                    digits = 0
+                    break@loop
+                }
+                else -> return null
+            }
+            i++
+        }
+        if (digits > 0) {
+            if (length + 2 > IPV6_BYTES) {
+                return null
+            }
+            bytes[length++] = (value shr 8).toByte()
+            bytes[length++] = value.toByte()
+        }
+        if (gap >= 0) {
+            if (length == IPV6_BYTES) {
+                return null
+            }
+            // Move everything after the "::" to the end, zero-filling the gap.
+            val tail = length - gap
+            System.arraycopy(bytes, gap, bytes, IPV6_BYTES - tail, tail)
+            bytes.fill(0, gap, IPV6_BYTES - tail)
+            length = IPV6_BYTES
+        }
+        return if (length == IPV6_BYTES) bytes else null
+    }
+
+    private fun hexDigit(c: Char): Int {
+        return when (c) {
+            in '0'..'9' -> c - '0'
+            in 'a'..'f' -> c - 'a' + 10
+            in 'A'..'F' -> c - 'A' + 10
+            else -> -1
+        }
+    }
+
+    private fun isIpv4Mapped(bytes: ByteArray): Boolean {
+        if (bytes.size != IPV6_BYTES) {
+            return false
+        }
+        for (i in 0 until 10) {
+            if (bytes[i] != 0.toByte()) {
+                return false
             }
         }
+        return bytes[10] == 0xff.toByte() && bytes[11] == 0xff.toByte()
     }
 }
@@ -26,6 +26,9 @@ class InetEndpoint private constructor(val host: String, private val isResolved:
     private var resolved: InetEndpoint? = null
 
     override fun equals(other: Any?): Boolean {
+        if (other === this) {
+            return true
+        }
         if (other !is InetEndpoint) {
             return false
         }
@@ -79,8 +82,18 @@ class InetEndpoint private constructor(val host: String, private val isResolved:
         private val BARE_IPV6 = Pattern.compile("^[^\\[\\]]*:[^\\[\\]]*")
         private val FORBIDDEN_CHARACTERS = Pattern.compile("[/?#]")
 
+        /**
+         * Parses an endpoint of the form `host:port`, where an IPv6 host is enclosed in brackets.
+         * When [Interner.isEnabled] is set, identical input yields a shared instance, which also
+         * shares the result of resolving the host.
+         */
         @Throws(ParseException::class)
         fun parse(endpoint: String): InetEndpoint {
+            return Interner.intern(Interner.endpoints, endpoint) { parseUncached(endpoint) }
+        }
+
+        @Throws(ParseException::class)
+        private fun parseUncached(endpoint: String): InetEndpoint {
             if (FORBIDDEN_CHARACTERS.matcher(endpoint).find()) {
                 throw ParseException(InetEndpoint::class.java, endpoint, "Forbidden characters")
             }
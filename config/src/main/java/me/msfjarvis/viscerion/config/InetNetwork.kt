@@ -5,36 +5,169 @@
  */
 package me.msfjarvis.viscerion.config
 
-import java.net.Inet4Address
 import java.net.InetAddress
 
 /**
  * An Internet network, denoted by its address and netmask
  *
  *
+ * The address is packed into two primitive fields instead of being held as an [InetAddress]:
+ * an IPv4 address occupies the upper 32 bits of [high], while an IPv6 address is split across
+ * [high] and [low]. Scope IDs are not retained, as they have no meaning for routes or allowed IPs.
+ *
+ *
  * Instances of this class are immutable.
  */
-class InetNetwork private constructor(val address: InetAddress, val mask: Int) {
+class InetNetwork private constructor(
+    internal val high: Long,
+    internal val low: Long,
+    val mask: Int,
+    val isIpv4: Boolean
+) {
+
+    /**
+     * Returns the address of this network, as it was written (host bits are not cleared).
+     * A new [InetAddress] is created on every call, without any DNS lookups.
+     */
+    val address: InetAddress
+        get() = InetAddress.getByAddress(toByteArray())
+
+    /**
+     * Returns the number of bits in addresses of this network's family.
+     */
+    val maxMask: Int
+        get() = if (isIpv4) IPV4_BITS else IPV6_BITS
+
+    /**
+     * Checks whether `address` lies within this network.
+     */
+    operator fun contains(address: InetAddress): Boolean {
+        val other = of(address, -1)
+        return other.isIpv4 == isIpv4 && commonPrefixLength(high, low, other.high, other.low, mask) == mask
+    }
+
+    /**
+     * Checks whether `network` lies entirely within this network.
+     */
+    operator fun contains(network: InetNetwork): Boolean {
+        return network.isIpv4 == isIpv4 && network.mask >= mask &&
+            commonPrefixLength(high, low, network.high, network.low, mask) == mask
+    }
 
     override fun equals(other: Any?): Boolean {
+        if (other === this) {
+            return true
+        }
         if (other !is InetNetwork) {
             return false
         }
-        return address == other.address && mask == other.mask
+        return high == other.high && low == other.low && mask == other.mask && isIpv4 == other.isIpv4
     }
 
     override fun hashCode(): Int {
-        return address.hashCode() xor mask
+        return (31 * (31 * high.hashCode() + low.hashCode()) + mask) xor if (isIpv4) 1 else 0
+    }
+
+    /**
+     * Returns the network this network belongs to, i.e. the same prefix with the host bits cleared.
+     */
+    fun toPrefix(): InetNetwork {
+        val prefixHigh = high and highMask(mask)
+        val prefixLow = low and lowMask(mask)
+        return if (prefixHigh == high && prefixLow == low) this else InetNetwork(prefixHigh, prefixLow, mask, isIpv4)
+    }
+
+    fun toByteArray(): ByteArray {
+        val bytes = ByteArray(if (isIpv4) IPV4_BYTES else IPV6_BYTES)
+        for (i in bytes.indices) {
+            val word = if (i < Long.SIZE_BYTES) high else low
+            bytes[i] = (word ushr (Long.SIZE_BITS - Byte.SIZE_BITS * (i % Long.SIZE_BYTES + 1))).toByte()
+        }
+        return bytes
     }
 
+    /**
+     * Returns the network in CIDR notation. The address is formatted straight from the packed
+     * fields rather than through [address]; IPv6 addresses use the compressed form of RFC 5952,
+     * as Android's own [InetAddress.getHostAddress] does.
+     */
     override fun toString(): String {
-        return address.hostAddress + '/'.toString() + mask
+        val builder = StringBuilder(if (isIpv4) IPV4_TEXT_LENGTH else IPV6_TEXT_LENGTH)
+        if (isIpv4) {
+            appendIpv4(builder)
+        } else {
+            appendIpv6(builder)
+        }
+        return builder.append('/').append(mask).toString()
+    }
+
+    private fun appendIpv4(builder: StringBuilder) {
+        for (i in 0 until IPV4_BYTES) {
+            if (i > 0) {
+                builder.append('.')
+            }
+            builder.append((high ushr (Long.SIZE_BITS - Byte.SIZE_BITS * (i + 1))).toInt() and 0xff)
+        }
+    }
+
+    private fun appendIpv6(builder: StringBuilder) {
+        // Find the longest run of at least two zero groups, preferring the first of equal runs.
+        var bestStart = -1
+        var bestLength = 1
+        var runStart = -1
+        for (i in 0..IPV6_GROUPS) {
+            if (i < IPV6_GROUPS && group(i) == 0) {
+                if (runStart < 0) {
+                    runStart = i
+                }
+            } else if (runStart >= 0) {
+                if (i - runStart > bestLength) {
+                    bestStart = runStart
+                    bestLength = i - runStart
+                }
+                runStart = -1
+            }
+        }
+        var i = 0
+        while (i < IPV6_GROUPS) {
+            if (i == bestStart) {
+                builder.append("::")
+                i += bestLength
+                continue
+            }
+            if (i > 0 && i != bestStart + bestLength) {
+                builder.append(':')
+            }
+            builder.append(Integer.toHexString(group(i)))
+            i++
+        }
+    }
+
+    private fun group(index: Int): Int {
+        val word = if (index < IPV6_GROUPS / 2) high else low
+        return (word ushr (Long.SIZE_BITS - Short.SIZE_BITS * (index % (IPV6_GROUPS / 2) + 1))).toInt() and 0xffff
     }
 
     companion object {
+        private const val IPV4_BITS = 32
+        private const val IPV4_BYTES = 4
+        private const val IPV6_BITS = 128
+        private const val IPV6_BYTES = 16
+        private const val IPV6_GROUPS = 8
+        private const val IPV4_TEXT_LENGTH = 18
+        private const val IPV6_TEXT_LENGTH = 43
 
+        /**
+         * Parses a network in CIDR notation; a bare address denotes a single host. When
+         * [Interner.isEnabled] is set, identical input yields a shared instance.
+         */
         @Throws(ParseException::class)
         fun parse(network: String): InetNetwork {
+            return Interner.intern(Interner.networks, network) { parseUncached(network) }
+        }
+
+        @Throws(ParseException::class)
+        private fun parseUncached(network: String): InetNetwork {
             val slash = network.lastIndexOf('/')
             val maskString: String
             val rawMask: Int
@@ -53,21 +186,85 @@ class InetNetwork private constructor(val address: InetAddress, val mask: Int) {
                 rawMask = -1
                 rawAddress = network
             }
-            val address = InetAddressUtils.parse(rawAddress)
-            val maxMask = if (address is Inet4Address) {
-                32
+            val bytes = InetAddressUtils.parseBytes(rawAddress)
+            val maxMask = if (bytes.size == IPV4_BYTES) {
+                IPV4_BITS
             } else {
-                128
+                IPV6_BITS
             }
             if (rawMask > maxMask) {
                 throw ParseException(InetNetwork::class.java, maskString, "Invalid network mask")
             }
-            val mask = if (rawMask in 0..maxMask) {
-                rawMask
+            return of(bytes, rawMask)
+        }
+
+        /**
+         * Creates a network from an address and a netmask. A mask outside of the valid range for
+         * the address family denotes a single host.
+         */
+        fun of(address: InetAddress, mask: Int): InetNetwork {
+            return of(address.address, mask)
+        }
+
+        private fun of(bytes: ByteArray, mask: Int): InetNetwork {
+            var high = 0L
+            var low = 0L
+            for (i in bytes.indices) {
+                val value = (bytes[i].toLong() and 0xff) shl
+                    (Long.SIZE_BITS - Byte.SIZE_BITS * (i % Long.SIZE_BYTES + 1))
+                if (i < Long.SIZE_BYTES) {
+                    high = high or value
+                } else {
+                    low = low or value
+                }
+            }
+            val isIpv4 = bytes.size == IPV4_BYTES
+            val maxMask = if (isIpv4) IPV4_BITS else IPV6_BITS
+            return InetNetwork(high, low, if (mask in 0..maxMask) mask else maxMask, isIpv4)
+        }
+
+        internal fun of(high: Long, low: Long, mask: Int, isIpv4: Boolean): InetNetwork {
+            return InetNetwork(high, low, mask, isIpv4)
+        }
+
+        /**
+         * Returns bit `index` (counted from the most significant bit) of a packed address.
+         */
+        internal fun bit(high: Long, low: Long, index: Int): Int {
+            return if (index < Long.SIZE_BITS) {
+                (high ushr (Long.SIZE_BITS - 1 - index)).toInt() and 1
+            } else {
+                (low ushr (IPV6_BITS - 1 - index)).toInt() and 1
+            }
+        }
+
+        /**
+         * Returns the number of leading bits two packed addresses have in common, up to `limit`.
+         */
+        internal fun commonPrefixLength(high: Long, low: Long, otherHigh: Long, otherLow: Long, limit: Int): Int {
+            val difference = high xor otherHigh
+            val common = if (difference != 0L) {
+                java.lang.Long.numberOfLeadingZeros(difference)
             } else {
-                maxMask
+                Long.SIZE_BITS + java.lang.Long.numberOfLeadingZeros(low xor otherLow)
+            }
+            return minOf(common, limit)
+        }
+
+        internal fun highMask(mask: Int): Long {
+            return when {
+                mask <= 0 -> 0L
+                mask >= Long.SIZE_BITS -> -1L
+                else -> -1L shl (Long.SIZE_BITS - mask)
+            }
+        }
+
+        internal fun lowMask(mask: Int): Long {
+            return when {
+                mask <= Long.SIZE_BITS -> 0L
+                mask >= IPV6_BITS -> -1L
+                else -> -1L shl (IPV6_BITS - mask)
             }
-            return InetNetwork(address, mask)
         }
     }
 }
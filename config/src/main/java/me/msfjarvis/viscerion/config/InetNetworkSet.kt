@@ -0,0 +1,227 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+/**
+ * A set of addresses described by [InetNetwork]s, supporting the set algebra needed to reason
+ * about allowed IPs and routes: union, subtraction and conversion back into the smallest list of
+ * networks covering exactly the same addresses.
+ *
+ *
+ * Internally, the addresses of each family are kept as a sorted list of disjoint, non-adjacent
+ * ranges, so overlapping and adjacent networks are merged as soon as a set is built. Host bits of
+ * the networks a set is built from are ignored.
+ *
+ *
+ * Instances of this class are immutable.
+ */
+class InetNetworkSet private constructor(
+    private val ipv4: List<Range>,
+    private val ipv6: List<Range>
+) {
+
+    /**
+     * Checks whether this set contains no addresses at all.
+     */
+    val isEmpty: Boolean
+        get() = ipv4.isEmpty() && ipv6.isEmpty()
+
+    /**
+     * Checks whether every address of `network` is in this set.
+     */
+    operator fun contains(network: InetNetwork): Boolean {
+        val range = Range.of(network)
+        return (if (network.isIpv4) ipv4 else ipv6).any { it.start <= range.start && range.end <= it.end }
+    }
+
+    override fun equals(other: Any?): Boolean {
+        if (other !is InetNetworkSet) {
+            return false
+        }
+        return ipv4 == other.ipv4 && ipv6 == other.ipv6
+    }
+
+    override fun hashCode(): Int {
+        return 31 * ipv4.hashCode() + ipv6.hashCode()
+    }
+
+    /**
+     * Returns the set of addresses that are in this set but not in `other`.
+     */
+    fun subtract(other: InetNetworkSet): InetNetworkSet {
+        return InetNetworkSet(subtract(ipv4, other.ipv4, true), subtract(ipv6, other.ipv6, false))
+    }
+
+    /**
+     * Returns the minimal list of networks covering exactly the addresses in this set, ordered by
+     * address with IPv4 networks first. Each network is a prefix, i.e. it has no host bits set.
+     */
+    fun toNetworks(): List<InetNetwork> {
+        val result = ArrayList<InetNetwork>()
+        ipv4.forEach { toNetworks(it, true, result) }
+        ipv6.forEach { toNetworks(it, false, result) }
+        return result
+    }
+
+    override fun toString(): String {
+        return Attribute.join(toNetworks())
+    }
+
+    /**
+     * Returns the set of addresses that are in this set, in `other`, or in both.
+     */
+    fun union(other: InetNetworkSet): InetNetworkSet {
+        return InetNetworkSet(merge(ipv4 + other.ipv4, true), merge(ipv6 + other.ipv6, false))
+    }
+
+    /**
+     * A 128-bit unsigned address, packed the same way as in [InetNetwork].
+     */
+    private data class Address(val high: Long, val low: Long) : Comparable<Address> {
+        override fun compareTo(other: Address): Int {
+            val byHigh = (high xor Long.MIN_VALUE).compareTo(other.high xor Long.MIN_VALUE)
+            return if (byHigh != 0) byHigh else (low xor Long.MIN_VALUE).compareTo(other.low xor Long.MIN_VALUE)
+        }
+
+        fun isLast(isIpv4: Boolean): Boolean {
+            return this == if (isIpv4) IPV4_LAST else IPV6_LAST
+        }
+
+        fun next(isIpv4: Boolean): Address {
+            return when {
+                isIpv4 -> Address(high + IPV4_UNIT, 0L)
+                low == -1L -> Address(high + 1, 0L)
+                else -> Address(high, low + 1)
+            }
+        }
+
+        fun previous(isIpv4: Boolean): Address {
+            return when {
+                isIpv4 -> Address(high - IPV4_UNIT, 0L)
+                low == 0L -> Address(high - 1, -1L)
+                else -> Address(high, low - 1)
+            }
+        }
+
+        /**
+         * Checks whether this address is the first one of a network with netmask `mask`.
+         */
+        fun isAligned(mask: Int): Boolean {
+            return high and InetNetwork.highMask(mask).inv() == 0L && low and InetNetwork.lowMask(mask).inv() == 0L
+        }
+
+        /**
+         * Returns the last address of the network with netmask `mask` that starts at this address.
+         */
+        fun last(mask: Int, isIpv4: Boolean): Address {
+            return if (isIpv4) {
+                Address(high or (InetNetwork.highMask(mask).inv() and IPV4_LAST.high), 0L)
+            } else {
+                Address(high or InetNetwork.highMask(mask).inv(), low or InetNetwork.lowMask(mask).inv())
+            }
+        }
+    }
+
+    private data class Range(val start: Address, val end: Address) {
+        companion object {
+            fun of(network: InetNetwork): Range {
+                val prefix = network.toPrefix()
+                val start = Address(prefix.high, prefix.low)
+                return Range(start, start.last(prefix.mask, prefix.isIpv4))
+            }
+        }
+    }
+
+    companion object {
+        private const val IPV4_BITS = 32
+        private const val IPV6_BITS = 128
+        private const val IPV4_UNIT = 1L shl (Long.SIZE_BITS - IPV4_BITS)
+        private val IPV4_LAST = Address(-1L shl (Long.SIZE_BITS - IPV4_BITS), 0L)
+        private val IPV6_LAST = Address(-1L, -1L)
+
+        /**
+         * Returns the set of all addresses in any of `networks`.
+         */
+        fun of(networks: Iterable<InetNetwork>): InetNetworkSet {
+            val ipv4 = ArrayList<Range>()
+            val ipv6 = ArrayList<Range>()
+            for (network in networks) {
+                (if (network.isIpv4) ipv4 else ipv6).add(Range.of(network))
+            }
+            return InetNetworkSet(merge(ipv4, true), merge(ipv6, false))
+        }
+
+        /**
+         * Sorts `ranges` and merges the ones that overlap or touch.
+         */
+        private fun merge(ranges: List<Range>, isIpv4: Boolean): List<Range> {
+            val result = ArrayList<Range>()
+            for (range in ranges.sortedBy { it.start }) {
+                val last = result.lastOrNull()
+                if (last != null && (last.end.isLast(isIpv4) || range.start <= last.end.next(isIpv4))) {
+                    if (range.end > last.end) {
+                        result[result.size - 1] = Range(last.start, range.end)
+                    }
+                } else {
+                    result.add(range)
+                }
+            }
+            return result
+        }
+
+        /**
+         * Removes the addresses in `cuts` from `ranges`. Both lists must be sorted and merged.
+         */
+        private fun subtract(ranges: List<Range>, cuts: List<Range>, isIpv4: Boolean): List<Range> {
+            val result = ArrayList<Range>()
+            var first = 0
+            for (range in ranges) {
+                while (first < cuts.size && cuts[first].end < range.start) {
+                    first++
+                }
+                var start = range.start
+                var remaining = true
+                var i = first
+                while (i < cuts.size && cuts[i].start <= range.end) {
+                    val cut = cuts[i]
+                    if (cut.start > start) {
+                        result.add(Range(start, cut.start.previous(isIpv4)))
+                    }
+                    if (cut.end >= range.end) {
+                        remaining = false
+                        break
+                    }
+                    start = cut.end.next(isIpv4)
+                    i++
+                }
+                if (remaining) {
+                    result.add(Range(start, range.end))
+                }
+            }
+            return result
+        }
+
+        /**
+         * Splits `range` into the fewest possible networks, largest first at each step.
+         */
+        private fun toNetworks(range: Range, isIpv4: Boolean, result: MutableList<InetNetwork>) {
+            val maxMask = if (isIpv4) IPV4_BITS else IPV6_BITS
+            var start = range.start
+            while (true) {
+                var mask = 0
+                while (mask < maxMask && !(start.isAligned(mask) && start.last(mask, isIpv4) <= range.end)) {
+                    mask++
+                }
+                result.add(InetNetwork.of(start.high, start.low, mask, isIpv4))
+                val last = start.last(mask, isIpv4)
+                if (last >= range.end) {
+                    return
+                }
+                start = last.next(isIpv4)
+            }
+        }
+    }
+}
@@ -5,6 +5,9 @@
  */
 package me.msfjarvis.viscerion.config
 
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
 import java.net.InetAddress
 import java.util.Collections
 import java.util.LinkedHashSet
@@ -75,8 +78,42 @@ class Interface private constructor(builder: Builder) {
         mtu = builder.mtu
     }
 
+    // The list of excluded applications is left out of the cached values, as callers modify it in
+    // place to apply global exclusions.
+    private val hash: Int = run {
+        var hash = 1
+        hash = 31 * hash + addresses.hashCode()
+        hash = 31 * hash + dnsServers.hashCode()
+        hash = 31 * hash + keyPair.hashCode()
+        hash = 31 * hash + listenPort.hashCode()
+        hash = 31 * hash + mtu.hashCode()
+        hash
+    }
+    private val partialFingerprint: Long = run {
+        var fingerprint = Fingerprint.addUnordered(Fingerprint.SEED, addresses, Fingerprint::of)
+        fingerprint = Fingerprint.addUnordered(fingerprint, dnsServers, Fingerprint::of)
+        fingerprint = Fingerprint.add(fingerprint, keyPair.privateKey)
+        fingerprint = Fingerprint.add(fingerprint, listenPort)
+        Fingerprint.add(fingerprint, mtu)
+    }
+
+    /**
+     * A 64-bit digest of the contents of the interface; see [Config.fingerprint].
+     */
+    internal val fingerprint: Long
+        get() {
+            var fingerprint = Fingerprint.add(partialFingerprint, excludedApplications.size)
+            for (application in excludedApplications) {
+                fingerprint = Fingerprint.add(fingerprint, application)
+            }
+            return fingerprint
+        }
+
     override fun equals(other: Any?): Boolean {
-        if (other !is Interface) {
+        if (other === this) {
+            return true
+        }
+        if (other !is Interface || hash != other.hash) {
             return false
         }
         return (addresses == other.addresses &&
@@ -88,13 +125,6 @@ class Interface private constructor(builder: Builder) {
     }
 
     override fun hashCode(): Int {
-        var hash = 1
-        hash = 31 * hash + addresses.hashCode()
-        hash = 31 * hash + dnsServers.hashCode()
-        hash = 31 * hash + excludedApplications.hashCode()
-        hash = 31 * hash + keyPair.hashCode()
-        hash = 31 * hash + listenPort.hashCode()
-        hash = 31 * hash + mtu.hashCode()
         return hash
     }
 
@@ -118,34 +148,90 @@ class Interface private constructor(builder: Builder) {
      * @return The `Interface` represented as a series of "Key = Value" lines
      */
     fun toWgQuickString(): String {
-        val sb = StringBuilder()
+        return writeWgQuick(StringBuilder()).toString()
+    }
+
+    /**
+     * Serializes the `Interface` for use with the WireGuard cross-platform userspace API.
+     * Note that not all attributes are included in this representation.
+     *
+     * @return the `Interface` represented as a series of "KEY=VALUE" lines
+     */
+    fun toWgUserspaceString(): String {
+        return writeWgUserspace(StringBuilder()).toString()
+    }
+
+    /**
+     * Writes the `Interface` to `out` in the format used by [toWgQuickString], without
+     * building an intermediate string.
+     *
+     * @return `out`
+     */
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgQuick(out: A): A {
         if (addresses.isNotEmpty()) {
-            sb.append("Address = ").append(Attribute.join(addresses)).append('\n')
+            Attribute.join(out.append("Address = "), addresses).append('\n')
         }
         if (dnsServers.isNotEmpty()) {
-            val dnsServerStrings = dnsServers.map { dnsServer -> dnsServer.hostAddress }
-            sb.append("DNS = ").append(Attribute.join(dnsServerStrings)).append('\n')
+            out.append("DNS = ")
+            var first = true
+            for (dnsServer in dnsServers) {
+                if (!first) {
+                    out.append(", ")
+                }
+                out.append(dnsServer.hostAddress)
+                first = false
+            }
+            out.append('\n')
         }
         if (excludedApplications.isNotEmpty()) {
-            sb.append("ExcludedApplications = ").append(Attribute.join(excludedApplications)).append('\n')
+            Attribute.join(out.append("ExcludedApplications = "), excludedApplications).append('\n')
         }
-        listenPort?.let { lp -> sb.append("ListenPort = ").append(lp).append('\n') }
-        mtu?.let { m -> sb.append("MTU = ").append(m).append('\n') }
-        sb.append("PrivateKey = ").append(keyPair.privateKey.toBase64()).append('\n')
-        return sb.toString()
+        listenPort?.let { lp -> out.append("ListenPort = ").append(lp.toString()).append('\n') }
+        mtu?.let { m -> out.append("MTU = ").append(m.toString()).append('\n') }
+        out.append("PrivateKey = ").append(keyPair.privateKey.toBase64()).append('\n')
+        return out
     }
 
     /**
-     * Serializes the `Interface` for use with the WireGuard cross-platform userspace API.
-     * Note that not all attributes are included in this representation.
+     * Writes only the attributes of the `Interface` that are understood by `wg setconf` to `out`,
+     * leaving out those handled by `wg-quick` itself, as `wg-quick strip` would.
      *
-     * @return the `Interface` represented as a series of "KEY=VALUE" lines
+     * @return `out`
      */
-    fun toWgUserspaceString(): String {
-        val sb = StringBuilder()
-        sb.append("private_key=").append(keyPair.privateKey.toHex()).append('\n')
-        listenPort?.let { lp -> sb.append("listen_port=").append(lp).append('\n') }
-        return sb.toString()
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgStripped(out: A): A {
+        listenPort?.let { lp -> out.append("ListenPort = ").append(lp.toString()).append('\n') }
+        out.append("PrivateKey = ").append(keyPair.privateKey.toBase64()).append('\n')
+        return out
+    }
+
+    /**
+     * Writes the `Interface` to `out` in the format used by [toWgUserspaceString], without
+     * building an intermediate string.
+     *
+     * @return `out`
+     */
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgUserspace(out: A): A {
+        out.append("private_key=").append(keyPair.privateKey.toHex()).append('\n')
+        listenPort?.let { lp -> out.append("listen_port=").append(lp.toString()).append('\n') }
+        return out
+    }
+
+    /**
+     * Writes the `Interface` in the binary form read by [readBinary]. Only the public key is
+     * written, so that reading it back does not have to derive it again; the private key is
+     * left to the caller.
+     */
+    @Throws(IOException::class)
+    internal fun writeBinary(out: DataOutput) {
+        BinaryFormat.writeKey(out, keyPair.publicKey)
+        BinaryFormat.writeNetworks(out, addresses)
+        BinaryFormat.writeAddresses(out, dnsServers)
+        BinaryFormat.writeStrings(out, excludedApplications)
+        BinaryFormat.writeOptionalInt(out, listenPort)
+        BinaryFormat.writeOptionalInt(out, mtu)
     }
 
     class Builder {
@@ -204,6 +290,25 @@ class Interface private constructor(builder: Builder) {
             return this
         }
 
+        /**
+         * Applies the attribute the tokenizer is currently positioned on to this builder.
+         */
+        @Throws(BadConfigException::class)
+        internal fun parseAttribute(tokenizer: ConfigTokenizer): Builder {
+            return when {
+                tokenizer.keyEquals("address") -> parseAddresses(tokenizer.valueSequence())
+                tokenizer.keyEquals("dns") -> parseDnsServers(tokenizer.valueSequence())
+                tokenizer.keyEquals("excludedapplications") -> parseExcludedApplications(tokenizer.valueSequence())
+                tokenizer.keyEquals("listenport") -> parseListenPort(tokenizer.value())
+                tokenizer.keyEquals("mtu") -> parseMtu(tokenizer.value())
+                tokenizer.keyEquals("privatekey") -> parsePrivateKey(tokenizer.value())
+                else -> throw BadConfigException(
+                    Section.INTERFACE, Location.TOP_LEVEL,
+                    Reason.UNKNOWN_ATTRIBUTE, tokenizer.key()
+                )
+            }
+        }
+
         @Throws(BadConfigException::class)
         fun parseAddresses(addresses: CharSequence): Builder {
             try {
@@ -321,5 +426,17 @@ class Interface private constructor(builder: Builder) {
             }
             return builder.build()
         }
+
+        @Throws(IOException::class, BadConfigException::class, KeyFormatException::class)
+        internal fun readBinary(input: DataInput, privateKey: Key): Interface {
+            val builder = Builder()
+            builder.setKeyPair(KeyPair(privateKey, BinaryFormat.readKey(input)))
+            builder.addAddresses(BinaryFormat.readNetworks(input))
+            builder.addDnsServers(BinaryFormat.readAddresses(input))
+            builder.excludeApplications(BinaryFormat.readStrings(input))
+            builder.listenPort = BinaryFormat.readOptionalInt(input)
+            builder.mtu = BinaryFormat.readOptionalInt(input)
+            return builder.build()
+        }
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.lang.ref.ReferenceQueue
+import java.lang.ref.WeakReference
+import java.net.InetAddress
+
+/**
+ * Opt-in cache that makes [InetAddressUtils.parse], [InetEndpoint.parse] and [InetNetwork.parse]
+ * return one shared instance for identical input, so that many configurations listing the same
+ * DNS servers, addresses, allowed IPs or endpoints do not each hold their own copies.
+ *
+ *
+ * Cached values are only weakly reachable from the cache, so they are released as soon as no
+ * configuration refers to them any more. Interning is disabled by default.
+ */
+object Interner {
+    internal val addresses = WeakValueCache<InetAddress>()
+    internal val endpoints = WeakValueCache<InetEndpoint>()
+    internal val networks = WeakValueCache<InetNetwork>()
+
+    /**
+     * Whether parsed values are interned. Values parsed while this was disabled are never shared.
+     */
+    @Volatile
+    var isEnabled = false
+
+    /**
+     * Drops every cached value. Instances that were already handed out remain valid.
+     */
+    fun clear() {
+        addresses.clear()
+        endpoints.clear()
+        networks.clear()
+    }
+
+    /**
+     * Returns the value cached for `key`, or the result of `parse` after caching it.
+     */
+    @Throws(ParseException::class)
+    internal inline fun <V : Any> intern(cache: WeakValueCache<V>, key: String, parse: () -> V): V {
+        if (!isEnabled) {
+            return parse()
+        }
+        return cache[key] ?: cache.putIfAbsent(key, parse())
+    }
+
+    /**
+     * A map from strings to weakly-referenced values, whose entries are removed once their values
+     * have been collected. Access is synchronized, as configurations may be parsed in parallel.
+     */
+    internal class WeakValueCache<V : Any> {
+        private val map = HashMap<String, Entry<V>>()
+        private val queue = ReferenceQueue<V>()
+
+        @Synchronized
+        fun clear() {
+            map.clear()
+            while (queue.poll() != null) {
+                // Drain references to values that were cleared together with the map.
+            }
+        }
+
+        @Synchronized
+        operator fun get(key: String): V? {
+            expunge()
+            return map[key]?.get()
+        }
+
+        @Synchronized
+        fun putIfAbsent(key: String, value: V): V {
+            expunge()
+            map[key]?.get()?.let { return it }
+            map[key] = Entry(key, value, queue)
+            return value
+        }
+
+        @Synchronized
+        fun size(): Int {
+            expunge()
+            return map.size
+        }
+
+        private fun expunge() {
+            while (true) {
+                @Suppress("UNCHECKED_CAST")
+                val entry = queue.poll() as Entry<V>? ?: return
+                // The key may already have been reused for a newer value.
+                if (map[entry.key] === entry) {
+                    map.remove(entry.key)
+                }
+            }
+        }
+
+        private class Entry<V>(val key: String, value: V, queue: ReferenceQueue<V>) :
+            WeakReference<V>(value, queue)
+    }
+}
@@ -5,6 +5,9 @@
  */
 package me.msfjarvis.viscerion.config
 
+import java.io.DataInput
+import java.io.DataOutput
+import java.io.IOException
 import java.util.Collections
 import java.util.Locale
 import me.msfjarvis.viscerion.config.BadConfigException.Location
@@ -62,8 +65,32 @@ class Peer private constructor(builder: Builder) {
         publicKey = requireNotNull(builder.publicKey) { "Peers must have a public key" }
     }
 
+    private val hash: Int = run {
+        var hash = 1
+        hash = 31 * hash + allowedIps.hashCode()
+        hash = 31 * hash + endpoint.hashCode()
+        hash = 31 * hash + persistentKeepalive.hashCode()
+        hash = 31 * hash + preSharedKey.hashCode()
+        hash = 31 * hash + publicKey.hashCode()
+        hash
+    }
+
+    /**
+     * A 64-bit digest of the contents of the peer; see [Config.fingerprint].
+     */
+    internal val fingerprint: Long = run {
+        var fingerprint = Fingerprint.addUnordered(Fingerprint.SEED, allowedIps, Fingerprint::of)
+        fingerprint = Fingerprint.add(fingerprint, endpoint?.let { Fingerprint.of(it) } ?: 0L)
+        fingerprint = Fingerprint.add(fingerprint, persistentKeepalive)
+        fingerprint = Fingerprint.add(fingerprint, preSharedKey)
+        Fingerprint.add(fingerprint, publicKey)
+    }
+
     override fun equals(other: Any?): Boolean {
-        if (other !is Peer) {
+        if (other === this) {
+            return true
+        }
+        if (other !is Peer || hash != other.hash || fingerprint != other.fingerprint) {
             return false
         }
         return (allowedIps == other.allowedIps &&
@@ -74,12 +101,6 @@ class Peer private constructor(builder: Builder) {
     }
 
     override fun hashCode(): Int {
-        var hash = 1
-        hash = 31 * hash + allowedIps.hashCode()
-        hash = 31 * hash + endpoint.hashCode()
-        hash = 31 * hash + persistentKeepalive.hashCode()
-        hash = 31 * hash + preSharedKey.hashCode()
-        hash = 31 * hash + publicKey.hashCode()
         return hash
     }
 
@@ -104,15 +125,7 @@ class Peer private constructor(builder: Builder) {
      * @return the `Peer` represented as a series of "Key = Value" lines
      */
     fun toWgQuickString(): String {
-        val sb = StringBuilder()
-        if (allowedIps.isNotEmpty()) {
-            sb.append("AllowedIPs = ").append(Attribute.join(allowedIps)).append('\n')
-        }
-        endpoint?.let { ep -> sb.append("Endpoint = ").append(ep).append('\n') }
-        persistentKeepalive?.let { pk -> sb.append("PersistentKeepalive = ").append(pk).append('\n') }
-        preSharedKey?.let { psk -> sb.append("PreSharedKey = ").append(psk.toBase64()).append('\n') }
-        sb.append("PublicKey = ").append(publicKey.toBase64()).append('\n')
-        return sb.toString()
+        return writeWgQuick(StringBuilder()).toString()
     }
 
     /**
@@ -122,16 +135,58 @@ class Peer private constructor(builder: Builder) {
      * @return the `Peer` represented as a series of "key=value" lines
      */
     fun toWgUserspaceString(): String {
-        val sb = StringBuilder()
+        return writeWgUserspace(StringBuilder()).toString()
+    }
+
+    /**
+     * Writes the `Peer` to `out` in the format used by [toWgQuickString], without building
+     * an intermediate string.
+     *
+     * @return `out`
+     */
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgQuick(out: A): A {
+        if (allowedIps.isNotEmpty()) {
+            Attribute.join(out.append("AllowedIPs = "), allowedIps).append('\n')
+        }
+        endpoint?.let { ep -> out.append("Endpoint = ").append(ep.toString()).append('\n') }
+        persistentKeepalive?.let { pk -> out.append("PersistentKeepalive = ").append(pk.toString()).append('\n') }
+        preSharedKey?.let { psk -> out.append("PreSharedKey = ").append(psk.toBase64()).append('\n') }
+        out.append("PublicKey = ").append(publicKey.toBase64()).append('\n')
+        return out
+    }
+
+    /**
+     * Writes the `Peer` to `out` in the format used by [toWgUserspaceString], without
+     * building an intermediate string.
+     *
+     * @return `out`
+     */
+    @Throws(IOException::class)
+    fun <A : Appendable> writeWgUserspace(out: A): A {
         // The order here is important: public_key signifies the beginning of a new peer.
-        sb.append("public_key=").append(publicKey.toHex()).append('\n')
+        out.append("public_key=").append(publicKey.toHex()).append('\n')
         for (allowedIp in allowedIps) {
-            sb.append("allowed_ip=").append(allowedIp).append('\n')
+            out.append("allowed_ip=").append(allowedIp.toString()).append('\n')
         }
-        endpoint?.getResolved().let { ep -> sb.append("endpoint=").append(ep).append('\n') }
-        persistentKeepalive?.let { pk -> sb.append("persistent_keepalive_interval=").append(pk).append('\n') }
-        preSharedKey?.let { psk -> sb.append("preshared_key=").append(psk.toHex()).append('\n') }
-        return sb.toString()
+        endpoint?.getResolved()?.let { ep -> out.append("endpoint=").append(ep.toString()).append('\n') }
+        persistentKeepalive?.let { pk -> out.append("persistent_keepalive_interval=").append(pk.toString()).append('\n') }
+        preSharedKey?.let { psk -> out.append("preshared_key=").append(psk.toHex()).append('\n') }
+        return out
+    }
+
+    /**
+     * Writes the `Peer` in the binary form read by [readBinary].
+     */
+    @Throws(IOException::class)
+    internal fun writeBinary(out: DataOutput) {
+        BinaryFormat.writeKey(out, publicKey)
+        out.writeBoolean(preSharedKey != null)
+        preSharedKey?.let { BinaryFormat.writeKey(out, it) }
+        out.writeBoolean(endpoint != null)
+        endpoint?.let { out.writeUTF(it.toString()) }
+        BinaryFormat.writeOptionalInt(out, persistentKeepalive)
+        BinaryFormat.writeNetworks(out, allowedIps)
     }
 
     class Builder {
@@ -168,6 +223,24 @@ class Peer private constructor(builder: Builder) {
             return Peer(this)
         }
 
+        /**
+         * Applies the attribute the tokenizer is currently positioned on to this builder.
+         */
+        @Throws(BadConfigException::class)
+        internal fun parseAttribute(tokenizer: ConfigTokenizer): Builder {
+            return when {
+                tokenizer.keyEquals("allowedips") -> parseAllowedIPs(tokenizer.valueSequence())
+                tokenizer.keyEquals("endpoint") -> parseEndpoint(tokenizer.value())
+                tokenizer.keyEquals("persistentkeepalive") -> parsePersistentKeepalive(tokenizer.value())
+                tokenizer.keyEquals("presharedkey") -> parsePreSharedKey(tokenizer.value())
+                tokenizer.keyEquals("publickey") -> parsePublicKey(tokenizer.value())
+                else -> throw BadConfigException(
+                    Section.PEER, Location.TOP_LEVEL,
+                    Reason.UNKNOWN_ATTRIBUTE, tokenizer.key()
+                )
+            }
+        }
+
         @Throws(BadConfigException::class)
         fun parseAllowedIPs(allowedIps: CharSequence): Builder {
             try {
@@ -283,5 +356,20 @@ class Peer private constructor(builder: Builder) {
             }
             return builder.build()
         }
+
+        @Throws(IOException::class, BadConfigException::class, KeyFormatException::class, ParseException::class)
+        internal fun readBinary(input: DataInput): Peer {
+            val builder = Builder()
+            builder.setPublicKey(BinaryFormat.readKey(input))
+            if (input.readBoolean()) {
+                builder.setPreSharedKey(BinaryFormat.readKey(input))
+            }
+            if (input.readBoolean()) {
+                builder.setEndpoint(InetEndpoint.parse(input.readUTF()))
+            }
+            builder.persistentKeepalive = BinaryFormat.readOptionalInt(input)
+            builder.addAllowedIps(BinaryFormat.readNetworks(input))
+            return builder.build()
+        }
     }
 }
@@ -0,0 +1,105 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class AllowedIpsTableTest {
+
+    @Test
+    fun `packed networks round trip through their string form`() {
+        listOf("10.64.7.18/32", "0.0.0.0/0", "192.168.1.1/24", "fc00:bbbb:bbbb:bb01::1:711/128", "::0/0").forEach {
+            val network = InetNetwork.parse(it)
+            assertEquals(network, InetNetwork.parse(network.toString()))
+            assertEquals(network.address, InetAddressUtils.parse(it.substringBefore('/')))
+        }
+        assertEquals("192.168.1.0/24", InetNetwork.parse("192.168.1.1/24").toPrefix().toString())
+        assertTrue(InetNetwork.parse("10.0.0.0/8").contains(InetNetwork.parse("10.1.2.0/24")))
+        assertFalse(InetNetwork.parse("10.1.2.0/24").contains(InetNetwork.parse("10.0.0.0/8")))
+    }
+
+    @Test
+    fun `networks are formatted in compressed form`() {
+        assertEquals("10.64.7.18/32", InetNetwork.parse("10.64.7.18").toString())
+        assertEquals("::/0", InetNetwork.parse("::0/0").toString())
+        assertEquals("::1/128", InetNetwork.parse("0:0:0:0:0:0:0:1").toString())
+        assertEquals("fd00::/8", InetNetwork.parse("fd00:0:0:0:0:0:0:0/8").toString())
+        assertEquals("fc00:bbbb:bbbb:bb01::1:711/128", InetNetwork.parse("fc00:bbbb:bbbb:bb01:0:0:1:711").toString())
+        assertEquals("2001:db8::1:0:0:1/64", InetNetwork.parse("2001:db8:0:0:1:0:0:1/64").toString())
+        assertEquals("2001:db8:0:1:1:1:1:1/64", InetNetwork.parse("2001:db8::1:1:1:1:1/64").toString())
+    }
+
+    @Test
+    fun `lookup returns the longest matching prefix`() {
+        val table = AllowedIpsTable<String>()
+        table.put(net("0.0.0.0/0"), "default")
+        table.put(net("10.0.0.0/8"), "ten")
+        table.put(net("10.1.0.0/16"), "ten-one")
+        table.put(net("::/0"), "v6")
+        assertEquals("ten-one", table.lookup(InetAddressUtils.parse("10.1.2.3")))
+        assertEquals("ten", table.lookup(InetAddressUtils.parse("10.2.0.1")))
+        assertEquals("default", table.lookup(InetAddressUtils.parse("192.0.2.1")))
+        assertEquals("v6", table.lookup(InetAddressUtils.parse("2001:db8::1")))
+        assertEquals(4, table.size)
+
+        assertEquals("ten", table.remove(net("10.0.0.0/8")))
+        assertEquals("default", table.lookup(InetAddressUtils.parse("10.2.0.1")))
+        assertEquals("ten-one", table[net("10.1.0.0/16")])
+        assertNull(table[net("10.0.0.0/8")])
+        assertEquals(3, table.size)
+    }
+
+    @Test
+    fun `overlapping networks are reported in both directions`() {
+        val table = AllowedIpsTable<String>()
+        table.put(net("10.0.0.0/8"), "a")
+        table.put(net("10.1.2.0/24"), "b")
+        table.put(net("192.168.0.0/16"), "c")
+        assertEquals(setOf("a", "b"), table.overlapping(net("10.1.0.0/16")).map { it.second }.toSet())
+        assertEquals(setOf("a"), table.overlapping(net("10.3.0.0/16")).map { it.second }.toSet())
+        assertTrue(table.overlapping(net("172.16.0.0/12")).isEmpty())
+    }
+
+    @Test
+    fun `aggregation merges adjacent and drops covered prefixes`() {
+        val table = AllowedIpsTable<Int>()
+        listOf("10.0.0.0/25", "10.0.0.128/26", "10.0.0.192/26", "10.0.0.7/32", "192.168.0.0/24", "192.168.2.0/24")
+            .forEachIndexed { i, network -> table.put(net(network), i) }
+        assertEquals(
+            listOf("10.0.0.0/24", "192.168.0.0/24", "192.168.2.0/24"),
+            table.aggregate().map { it.toString() }
+        )
+    }
+
+    @Test
+    fun `later peers own duplicated allowed ips`() {
+        val config = Config.parse(
+            "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n" +
+                "[Peer]\nPublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\nAllowedIPs = 10.0.0.0/8\n" +
+                "[Peer]\nPublicKey = NYZxBGjCBKo2aAVTyMOIH5NMN9nLdUHMPO9kJfLbyko=\nAllowedIPs = 10.0.0.0/8, 10.9.0.0/16\n"
+        )
+        val table = AllowedIpsTable.fromPeers(config.peers)
+        assertEquals(config.peers[1], table.lookup(InetAddressUtils.parse("10.1.1.1")))
+        assertEquals(2, table.size)
+    }
+
+    @Test
+    fun `overlaps between different peers are found`() {
+        val config = Config.parse(
+            "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n" +
+                "[Peer]\nPublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\nAllowedIPs = 10.0.0.0/8, 10.1.0.0/16\n" +
+                "[Peer]\nPublicKey = NYZxBGjCBKo2aAVTyMOIH5NMN9nLdUHMPO9kJfLbyko=\nAllowedIPs = 10.9.0.0/16, 192.168.0.0/24\n"
+        )
+        assertEquals(listOf(net("10.9.0.0/16")), AllowedIpsTable.findOverlaps(config.peers))
+        assertTrue(AllowedIpsTable.findOverlaps(config.peers.subList(0, 1)).isEmpty())
+    }
+
+    private fun net(network: String) = InetNetwork.parse(network)
+}
@@ -0,0 +1,29 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+/**
+ * Timing helper for the benchmarks in this package, which are all `@Ignore`d and meant to be run
+ * by hand.
+ */
+object Benchmark {
+    private const val ROUNDS = 20
+    private const val WARMUP = 10
+
+    /**
+     * Returns the best of several timed runs of `block` in nanoseconds, after warming it up.
+     */
+    fun measure(block: () -> Unit): Long {
+        repeat(WARMUP) { block() }
+        var best = Long.MAX_VALUE
+        repeat(ROUNDS) {
+            val start = System.nanoTime()
+            block()
+            best = minOf(best, System.nanoTime() - start)
+        }
+        return best
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import me.msfjarvis.viscerion.crypto.KeyPair
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class ConfigDiffTest {
+    private val keys = List(PEERS + 1) { KeyPair().publicKey }
+
+    @Test
+    fun `identical configs produce no commands`() {
+        val config = Config.parse(configText(PEERS))
+        val diff = ConfigDiff.between(config, Config.parse(configText(PEERS)))
+        assertTrue(diff.isEmpty)
+        assertFalse(diff.isTunnelChanged)
+        assertEquals("", diff.toWgUserspaceString())
+    }
+
+    @Test
+    fun `editing one peer only updates that peer`() {
+        val from = Config.parse(configText(PEERS))
+        val to = Config.parse(configText(PEERS) { i -> if (i == 7) "PersistentKeepalive = 25\n" else "" })
+        val diff = ConfigDiff.between(from, to)
+        assertEquals(
+            "public_key=${keys[7].toHex()}\nupdate_only=true\npersistent_keepalive_interval=25\n",
+            diff.toWgUserspaceString()
+        )
+        assertFalse(diff.isTunnelChanged)
+    }
+
+    @Test
+    fun `added and removed peers are sent individually`() {
+        val from = Config.parse(configText(3))
+        val to = Config.parse(configText(4).replace(peerText(0), ""))
+        val diff = ConfigDiff.between(from, to)
+        assertEquals(listOf(from.peers[0]), diff.removedPeers)
+        assertEquals(listOf(to.peers.last()), diff.addedPeers)
+        assertEquals(
+            "public_key=${keys[0].toHex()}\nremove=true\n" + to.peers.last().toWgUserspaceString(),
+            diff.toWgUserspaceString()
+        )
+        assertTrue("routes change with the peers", diff.isTunnelChanged)
+    }
+
+    @Test
+    fun `changed allowed ips replace the old ones`() {
+        val from = Config.parse(configText(2))
+        val to = Config.parse(configText(2).replace("10.0.1.0/24", "10.0.1.0/25"))
+        assertEquals(
+            "public_key=${keys[1].toHex()}\nupdate_only=true\nreplace_allowed_ips=true\nallowed_ip=10.0.1.0/25\n",
+            ConfigDiff.between(from, to).toWgUserspaceString()
+        )
+    }
+
+    @Test
+    fun `removing an endpoint re-adds the peer`() {
+        val from = Config.parse(configText(2) { i -> if (i == 1) "Endpoint = 192.0.2.1:51820\n" else "" })
+        val to = Config.parse(configText(2))
+        assertEquals(
+            "public_key=${keys[1].toHex()}\nremove=true\n" + to.peers[1].toWgUserspaceString(),
+            ConfigDiff.between(from, to).toWgUserspaceString()
+        )
+    }
+
+    private fun configText(peers: Int, extra: (Int) -> String = { "" }): String {
+        return buildString {
+            append("[Interface]\nPrivateKey = $PRIVATE_KEY\nAddress = 10.0.0.1/32\n")
+            repeat(peers) { i -> append(peerText(i)).append(extra(i)) }
+        }
+    }
+
+    private fun peerText(i: Int): String {
+        return "[Peer]\nPublicKey = ${keys[i].toBase64()}\nAllowedIPs = 10.${i shr 8 and 255}.${i and 255}.0/24\n"
+    }
+
+    companion object {
+        private const val PEERS = 2000
+        private const val PRIVATE_KEY = "TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo="
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.io.BufferedReader
+import java.io.FileNotFoundException
+import java.io.StringReader
+import me.msfjarvis.viscerion.config.BadConfigException.Location
+import me.msfjarvis.viscerion.config.BadConfigException.Reason
+import me.msfjarvis.viscerion.config.BadConfigException.Section
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Test
+
+class ConfigParserTest {
+
+    @Test
+    fun `single pass parser matches line based parser on test resources`() {
+        resources.forEach { name ->
+            val text = javaClass.classLoader!!.getResource("$name.conf")!!.readText()
+            assertSameOutcome(name, text)
+        }
+    }
+
+    @Test
+    fun `single pass parser matches line based parser on edge cases`() {
+        listOf(
+            "",
+            "# only a comment\n",
+            "Address = 10.0.0.1/32\n",
+            "[Interface]\r\nPrivateKey = $PRIVATE_KEY\r\n",
+            "[interface]\rprivatekey=$PRIVATE_KEY\r[PEER]\rpublickey=$PUBLIC_KEY",
+            "[Interface]\nPrivateKey = $PRIVATE_KEY # trailing comment\n\n\t[Peer]  \nPublicKey = $PUBLIC_KEY",
+            "[Interface]\nPrivateKey = $PRIVATE_KEY\nAddress = 10.0.0.1/32 , fd00::1/128,\n",
+            "[Interface]\nPrivateKey = $PRIVATE_KEY\nAddress = ,10.0.0.1/32\n",
+            "[Interface]\nPrivateKey = $PRIVATE_KEY\nDNS = 1.1.1.1,,8.8.8.8\n",
+            "[Interface]\nPrivateKey =\n[Peer]\nPublicKey = $PUBLIC_KEY\n",
+            "[Interface]\nPrivateKey = $PRIVATE_KEY\nListenPort = nope\n[Peer]\nEndpoint\n",
+            "[Interface]\nPrivate-Key = $PRIVATE_KEY\n[Section]\n",
+            "[Interface]\nPrivateKey = $PRIVATE_KEY\n[Peer]\n[Peer]\nPublicKey = $PUBLIC_KEY\n",
+            "[Interface]\nPrivateKey = $PRIVATE_KEY\n[Peer]\nPublicKey = $PUBLIC_KEY\nFoo = bar\n",
+            "[Interface]\nMTU = 1420\n[Peer]\nPublicKey = $PUBLIC_KEY\n[Interface]\nPrivateKey = $PRIVATE_KEY\n",
+            "[Peer]\nPublicKey = $PUBLIC_KEY\n"
+        ).forEachIndexed { index, text -> assertSameOutcome("case $index", text) }
+    }
+
+    @Test
+    fun `list attributes split like the regex separator`() {
+        listOf("a", "a,b", "a , b", "a b, c", ",a", "a,,b", "a, ,b", "a,", "a, ,", ",", "").forEach {
+            assertEquals(it, LIST_SEPARATOR.split(it).toList(), Attribute.split(it).toList())
+        }
+    }
+
+    @Test
+    fun `streaming reader yields the same interface and peers`() {
+        val text = buildString {
+            append("[Interface]\nPrivateKey = $PRIVATE_KEY\nAddress = 10.0.0.1/32\n")
+            repeat(STREAMING_PEERS) { i ->
+                append("[Peer]\nPublicKey = $PUBLIC_KEY\nAllowedIPs = 10.${i shr 8 and 255}.${i and 255}.0/24\n")
+            }
+        }
+        val config = Config.parse(text)
+        assertEquals(config.toWgQuickString(), Config.parse(BufferedReader(StringReader(text))).toWgQuickString())
+        ConfigReader(StringReader(text)).use { reader ->
+            assertEquals(config.interfaze.toWgQuickString(), reader.readInterface().toWgQuickString())
+            var index = 0
+            reader.forEachPeer { peer -> assertEquals(config.peers[index++], peer) }
+            assertEquals(config.peers.size, index)
+        }
+    }
+
+    @Test
+    fun `streaming reader rejects interface after peers`() {
+        val text = "[Interface]\nPrivateKey = $PRIVATE_KEY\n[Peer]\nPublicKey = $PUBLIC_KEY\n[Interface]\nMTU = 1280\n"
+        try {
+            ConfigReader(StringReader(text)).forEachPeer { }
+            throw Exception("Config parsing must fail in this test")
+        } catch (exc: BadConfigException) {
+            assertEquals(Reason.UNKNOWN_SECTION, exc.reason)
+            assertEquals("[Interface]", exc.text)
+        }
+    }
+
+    @Test
+    fun `bulk parsing reports each outcome under its own name`() {
+        val sources = resources.associateWith { name -> { javaClass.classLoader!!.getResourceAsStream("$name.conf")!! } } +
+            ("missing" to { throw FileNotFoundException("missing.conf") })
+        val results = Config.parseAll(sources)
+        assertEquals(sources.keys.toList(), results.keys.toList())
+        resources.forEach { name ->
+            val text = javaClass.classLoader!!.getResource("$name.conf")!!.readText()
+            assertEquals(name, outcome { parseLineBased(text) }, outcome { results.getValue(name).get() })
+        }
+        assertTrue(results.getValue("missing").error is FileNotFoundException)
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually to compare against the line-based parser")
+    fun `benchmark single pass parser against line based parser`() {
+        val text = buildString {
+            append("[Interface]\nPrivateKey = $PRIVATE_KEY\nAddress = 10.0.0.1/32, fd00::1/128\n")
+            append("DNS = 1.1.1.1, 8.8.8.8\n")
+            repeat(BENCHMARK_PEERS) { i ->
+                append("\n# peer $i\n[Peer]\nPublicKey = $PUBLIC_KEY\n")
+                append("AllowedIPs = 10.${i shr 8 and 255}.${i and 255}.0/24, fd00:$i::/64\n")
+                append("Endpoint = 192.0.2.${i and 255}:51820\nPersistentKeepalive = 25\n")
+            }
+        }
+        val lineBased = Benchmark.measure { parseLineBased(text) }
+        val singlePass = Benchmark.measure { Config.parse(text) }
+        println("$BENCHMARK_PEERS peers: line-based ${lineBased / 1000} us, single pass ${singlePass / 1000} us")
+    }
+
+    private fun assertSameOutcome(name: String, text: String) {
+        val expected = outcome { parseLineBased(text) }
+        val actual = outcome { Config.parse(text) }
+        assertEquals(name, expected, actual)
+    }
+
+    private fun outcome(parse: () -> Config): String {
+        return try {
+            parse().toWgQuickString()
+        } catch (e: BadConfigException) {
+            "${e.section} ${e.location} ${e.reason} ${e.text}"
+        }
+    }
+
+    companion object {
+        private const val BENCHMARK_PEERS = 5000
+        private const val PRIVATE_KEY = "TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo="
+        private const val PUBLIC_KEY = "vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg="
+        private const val STREAMING_PEERS = 1000
+        private val LIST_SEPARATOR = Regex("\\s*,\\s*").toPattern()
+        private val resources = listOf(
+            "broken",
+            "invalid-key",
+            "invalid-number",
+            "invalid-value",
+            "missing-attribute",
+            "missing-section",
+            "missing-value",
+            "syntax-error",
+            "unknown-attribute",
+            "unknown-section",
+            "working"
+        )
+
+        /**
+         * The original line-buffering parser, kept as a reference for behaviour and performance.
+         */
+        private fun parseLineBased(text: String): Config {
+            val reader = BufferedReader(StringReader(text))
+            val builder = Config.Builder()
+            val interfaceLines = ArrayList<String>()
+            val peerLines = ArrayList<String>()
+            var inInterfaceSection = false
+            var inPeerSection = false
+            while (true) {
+                var line = reader.readLine() ?: break
+                val commentIndex = line.indexOf('#')
+                if (commentIndex != -1) {
+                    line = line.substring(0, commentIndex)
+                }
+                line = line.trim { it <= ' ' }
+                if (line.isEmpty()) {
+                    continue
+                }
+                when {
+                    line.startsWith("[") -> {
+                        if (inPeerSection) {
+                            builder.parsePeer(peerLines)
+                            peerLines.clear()
+                        }
+                        when {
+                            "[Interface]".equals(line, ignoreCase = true) -> {
+                                inInterfaceSection = true
+                                inPeerSection = false
+                            }
+                            "[Peer]".equals(line, ignoreCase = true) -> {
+                                inInterfaceSection = false
+                                inPeerSection = true
+                            }
+                            else -> throw BadConfigException(
+                                Section.CONFIG, Location.TOP_LEVEL, Reason.UNKNOWN_SECTION, line
+                            )
+                        }
+                    }
+                    inInterfaceSection -> interfaceLines.add(line)
+                    inPeerSection -> peerLines.add(line)
+                    else -> throw BadConfigException(
+                        Section.CONFIG, Location.TOP_LEVEL, Reason.UNKNOWN_SECTION, line
+                    )
+                }
+            }
+            if (inPeerSection) {
+                builder.parsePeer(peerLines)
+            } else if (!inInterfaceSection) {
+                throw BadConfigException(Section.CONFIG, Location.TOP_LEVEL, Reason.MISSING_SECTION, null)
+            }
+            builder.parseInterface(interfaceLines)
+            return builder.build()
+        }
+    }
+}
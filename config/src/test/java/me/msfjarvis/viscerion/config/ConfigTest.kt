@@ -5,6 +5,15 @@
  */
 package me.msfjarvis.viscerion.config
 
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.nio.charset.StandardCharsets
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNotEquals
 import org.junit.Assert.assertNotNull
 import org.junit.Assert.assertTrue
 import org.junit.Test
@@ -33,6 +42,95 @@ class ConfigTest {
         )
     }
 
+    @Test
+    fun `reparsed configs are equal and share a fingerprint`() {
+        val text = javaClass.classLoader!!.getResource("working.conf")!!.readText()
+        val config = Config.parse(text)
+        val reparsed = Config.parse(config.toWgQuickString())
+        assertEquals(config, reparsed)
+        assertEquals(config.hashCode(), reparsed.hashCode())
+        assertEquals(config.fingerprint, reparsed.fingerprint)
+
+        val changed = Config.parse(text.replace("DNS", "MTU = 1280\nDNS"))
+        assertNotEquals(config, changed)
+        assertNotEquals(config.fingerprint, changed.fingerprint)
+
+        reparsed.interfaze.excludedApplications.add("me.msfjarvis.viscerion")
+        assertNotEquals(config, reparsed)
+        assertNotEquals(config.fingerprint, reparsed.fingerprint)
+    }
+
+    @Test
+    fun `config writes to a stream as UTF-8`() {
+        val config = Config.parse(javaClass.classLoader!!.getResourceAsStream("working.conf"))
+        val stream = ByteArrayOutputStream()
+        config.writeWgQuick(stream)
+        assertEquals(config.toWgQuickString(), String(stream.toByteArray(), StandardCharsets.UTF_8))
+        assertEquals(config.toWgQuickString(), Config.parse(ByteArrayInputStream(stream.toByteArray())).toWgQuickString())
+    }
+
+    @Test
+    fun `stripped configs only keep what wg understands`() {
+        val config = Config.parse(javaClass.classLoader!!.getResourceAsStream("working.conf"))
+        val stripped = config.writeWgStripped(StringBuilder()).toString()
+        listOf("Address", "DNS", "MTU", "ExcludedApplications").forEach { key ->
+            assertFalse("$key must be stripped", stripped.contains("$key ="))
+        }
+        val reparsed = Config.parse(stripped)
+        assertEquals(config.interfaze.keyPair, reparsed.interfaze.keyPair)
+        assertEquals(config.peers, reparsed.peers)
+    }
+
+    @Test
+    fun `peers without an endpoint omit it from the userspace string`() {
+        val config = Config.parse(
+            "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n" +
+                "[Peer]\nPublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n"
+        )
+        assertFalse("no endpoint line may be emitted", config.toWgUserspaceString().contains("endpoint="))
+    }
+
+    @Test
+    fun `binary configs read back equal`() {
+        val config = Config.parse(
+            "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\nAddress = 10.0.0.2/32, fd00::2/128\n" +
+                "DNS = 1.1.1.1\nExcludedApplications = com.example\nMTU = 1420\n" +
+                "[Peer]\nPublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\nAllowedIPs = 0.0.0.0/0, ::/0\n" +
+                "Endpoint = [2001:db8::1]:51820\nPersistentKeepalive = 25\n" +
+                "[Peer]\nPublicKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n"
+        )
+        val bytes = ByteArrayOutputStream()
+        config.writeBinary(DataOutputStream(bytes))
+        val read = Config.readBinary(
+            DataInputStream(ByteArrayInputStream(bytes.toByteArray())),
+            config.interfaze.keyPair.privateKey
+        )
+        assertEquals(config, read)
+        assertEquals(config.fingerprint, read.fingerprint)
+        assertEquals(config.interfaze.keyPair.publicKey, read.interfaze.keyPair.publicKey)
+        assertEquals(config.toWgQuickString(), read.toWgQuickString())
+    }
+
+    @Test
+    fun `binary configs leave out the private key`() {
+        val config = Config.parse(javaClass.classLoader!!.getResourceAsStream("working.conf"))
+        val bytes = ByteArrayOutputStream()
+        config.writeBinary(DataOutputStream(bytes))
+        val privateKey = config.interfaze.keyPair.privateKey
+        assertFalse(String(bytes.toByteArray(), Charsets.ISO_8859_1).contains(String(privateKey.bytes, Charsets.ISO_8859_1)))
+    }
+
+    @Test(expected = IOException::class)
+    fun `truncated binary configs throw IOException`() {
+        val config = Config.parse(javaClass.classLoader!!.getResourceAsStream("working.conf"))
+        val bytes = ByteArrayOutputStream()
+        config.writeBinary(DataOutputStream(bytes))
+        Config.readBinary(
+            DataInputStream(ByteArrayInputStream(bytes.toByteArray().copyOf(bytes.size() - 1))),
+            config.interfaze.keyPair.privateKey
+        )
+    }
+
     @Test(expected = BadConfigException::class)
     fun `broken config throws BadConfigException`() {
         Config.parse(javaClass.classLoader!!.getResourceAsStream("broken.conf"))
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import java.net.Inet4Address
+import java.net.Inet6Address
+import java.net.InetAddress
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Ignore
+import org.junit.Test
+
+class InetAddressUtilsTest {
+
+    @Test
+    fun `literals parse to the same addresses as the platform parser`() {
+        VALID.forEach { literal ->
+            val expected = InetAddress.getByName(literal)
+            val actual = InetAddressUtils.parse(literal)
+            assertEquals(literal, expected.javaClass, actual.javaClass)
+            assertArrayEquals(literal, expected.address, actual.address)
+        }
+    }
+
+    @Test
+    fun `zone ids and brackets are accepted only on ipv6 addresses`() {
+        val scoped = InetAddressUtils.parse("[fe80::1%3]")
+        assertTrue(scoped is Inet6Address)
+        assertEquals(3, (scoped as Inet6Address).scopeId)
+        assertTrue(InetAddressUtils.parse("::ffff:192.0.2.1") is Inet4Address)
+        assertArrayEquals(byteArrayOf(192.toByte(), 0, 2, 1), InetAddressUtils.parseBytes("::ffff:192.0.2.1"))
+    }
+
+    @Test
+    fun `malformed literals are rejected`() {
+        INVALID.forEach { literal ->
+            try {
+                InetAddressUtils.parse(literal)
+                throw Exception("\"$literal\" must not parse")
+            } catch (e: ParseException) {
+                assertEquals(literal, e.text)
+            }
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run manually to compare against the platform parser")
+    fun `benchmark literal parser against the platform parser`() {
+        val mix = List(BENCHMARK_ADDRESSES) { i ->
+            when (i % 4) {
+                0 -> "10.${i shr 8 and 255}.${i and 255}.1"
+                1 -> "fd00:${i.toString(16)}::1"
+                2 -> "2001:db8:85a3:0:0:8a2e:${i.toString(16)}:7334"
+                else -> "::ffff:192.0.2.${i and 255}"
+            }
+        }
+        val platform = Benchmark.measure { mix.forEach { InetAddress.getByName(it) } }
+        val literal = Benchmark.measure { mix.forEach { InetAddressUtils.parse(it) } }
+        println("$BENCHMARK_ADDRESSES addresses: platform ${platform / 1000} us, literal parser ${literal / 1000} us")
+    }
+
+    companion object {
+        private const val BENCHMARK_ADDRESSES = 10000
+        private val VALID = listOf(
+            "0.0.0.0", "10.64.7.18", "255.255.255.255", "193.138.218.74",
+            "::", "::1", "1::", "fc00:bbbb:bbbb:bb01::1:711", "2001:DB8::8:800:200C:417A",
+            "1:2:3:4:5:6:7:8", "1:2:3:4:5:6::8", "::ffff:10.0.0.1", "64:ff9b::192.0.2.33",
+            "1:2:3:4:5:6:1.2.3.4", "[2001:db8::1]"
+        )
+        private val INVALID = listOf(
+            "", "1.2.3", "1.2.3.4.5", "256.1.1.1", "01.2.3.4", "1..2.3", "1.2.3.4.", "1.2.3.a",
+            "1.2.3.4%1", "[1.2.3.4]", ":", ":::", ":1::2", "1::2::3", "1:2:3:4:5:6:7:8:9",
+            "1:2:3:4:5:6:7::8", "12345::", "1:", "::1.2.3", "1.2.3.4::", "g::1", "fe80::1%",
+            "example.com", "[::1", "１.2.3.4"
+        )
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class InetNetworkSetTest {
+
+    @Test
+    fun `union merges overlapping and adjacent networks`() {
+        val set = set("10.0.0.0/25", "10.0.0.128/25", "10.0.0.7/32", "10.0.1.0/24", "192.168.0.0/24", "fd00::/9", "fd80::/9")
+            .union(set("192.168.1.0/24", "192.168.3.0/24"))
+        assertEquals(nets("10.0.0.0/23", "192.168.0.0/23", "192.168.3.0/24", "fd00::/8"), set.toNetworks())
+        assertTrue(net("10.0.1.0/25") in set)
+        assertFalse(net("192.168.0.0/22") in set)
+    }
+
+    @Test
+    fun `subtraction reproduces the public ipv4 networks`() {
+        val public = set("0.0.0.0/0").subtract(set("10.0.0.0/8", "172.16.0.0/12", "192.168.0.0/16", "224.0.0.0/3"))
+        assertEquals(
+            listOf(
+                "0.0.0.0/5", "8.0.0.0/7", "11.0.0.0/8", "12.0.0.0/6", "16.0.0.0/4", "32.0.0.0/3",
+                "64.0.0.0/2", "128.0.0.0/3", "160.0.0.0/5", "168.0.0.0/6", "172.0.0.0/12",
+                "172.32.0.0/11", "172.64.0.0/10", "172.128.0.0/9", "173.0.0.0/8", "174.0.0.0/7",
+                "176.0.0.0/4", "192.0.0.0/9", "192.128.0.0/11", "192.160.0.0/13", "192.169.0.0/16",
+                "192.170.0.0/15", "192.172.0.0/14", "192.176.0.0/12", "192.192.0.0/10",
+                "193.0.0.0/8", "194.0.0.0/7", "196.0.0.0/6", "200.0.0.0/5", "208.0.0.0/4"
+            ),
+            strings(public)
+        )
+        assertEquals(set("0.0.0.0/0"), public.union(set("10.0.0.0/8", "172.16.0.0/12", "192.168.0.0/16", "224.0.0.0/3")))
+    }
+
+    @Test
+    fun `subtraction handles the edges of the address space`() {
+        assertEquals(nets("::/1", "8000::/2", "c000::/3", "e000::/4"), set("::/0").subtract(set("f000::/4")).toNetworks())
+        assertEquals(nets("::1/128", "::2/127", "::4/126"), set("::/125").subtract(set("::/128")).toNetworks())
+        assertEquals(listOf("255.255.255.254/32"), strings(set("255.255.255.254/31").subtract(set("255.255.255.255/32"))))
+        assertTrue(set("10.0.0.0/8").subtract(set("0.0.0.0/0")).isEmpty)
+        assertEquals(set("::/0"), set("::/0").subtract(set("0.0.0.0/0")))
+    }
+
+    @Test
+    fun `networks with host bits are reduced to their prefix`() {
+        assertEquals(nets("10.0.0.0/8", "2001:db8::/32"), set("10.1.2.3/8", "2001:db8::1/32").toNetworks())
+    }
+
+    private fun net(network: String) = InetNetwork.parse(network)
+
+    private fun nets(vararg networks: String) = networks.map { net(it) }
+
+    private fun set(vararg networks: String) = InetNetworkSet.of(nets(*networks))
+
+    private fun strings(set: InetNetworkSet) = set.toNetworks().map { it.toString() }
+}
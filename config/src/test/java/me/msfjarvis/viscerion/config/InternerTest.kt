@@ -0,0 +1,83 @@
+/*
+ * Copyright © 2017-2020 WireGuard LLC.
+ * Copyright © 2018-2020 Harsh Shandilya <msfjarvis@gmail.com>. All Rights Reserved.
+ * SPDX-License-Identifier: Apache-2.0
+ */
+package me.msfjarvis.viscerion.config
+
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotSame
+import org.junit.Assert.assertSame
+import org.junit.Ignore
+import org.junit.Test
+
+class InternerTest {
+
+    @After
+    fun `disable interning`() {
+        Interner.isEnabled = false
+        Interner.clear()
+    }
+
+    @Test
+    fun `identical values are shared only when interning is enabled`() {
+        val first = Config.parse(CONFIG)
+        val second = Config.parse(CONFIG)
+        assertEquals(first.peers[0].allowedIps, second.peers[0].allowedIps)
+        assertNotSame(first.peers[0].endpoint, second.peers[0].endpoint)
+
+        Interner.isEnabled = true
+        val third = Config.parse(CONFIG)
+        val fourth = Config.parse(CONFIG)
+        assertSame(third.peers[0].endpoint, fourth.peers[0].endpoint)
+        assertSame(third.interfaze.dnsServers.first(), fourth.interfaze.dnsServers.first())
+        assertSame(third.interfaze.addresses.first(), fourth.interfaze.addresses.first())
+        third.peers[0].allowedIps.zip(fourth.peers[0].allowedIps).forEach { (a, b) -> assertSame(a, b) }
+    }
+
+    @Test
+    fun `interned values are released once unreachable`() {
+        Interner.isEnabled = true
+        InetNetwork.parse("10.0.0.0/8")
+        repeat(10) {
+            System.gc()
+            if (Interner.networks.size() == 0) {
+                return
+            }
+            Thread.sleep(10)
+        }
+        assertEquals(0, Interner.networks.size())
+    }
+
+    @Test
+    @Ignore("Heap measurement, run manually to compare retained sizes")
+    fun `measure retained heap with and without interning`() {
+        val without = retainedBytes()
+        Interner.isEnabled = true
+        val with = retainedBytes()
+        println("$MEASURED_CONFIGS configs: ${without / 1024} KiB without interning, ${with / 1024} KiB with interning")
+    }
+
+    private fun retainedBytes(): Long {
+        val before = usedHeap()
+        val configs = List(MEASURED_CONFIGS) { Config.parse(CONFIG) }
+        val after = usedHeap()
+        assertEquals(MEASURED_CONFIGS, configs.size)
+        return after - before
+    }
+
+    private fun usedHeap(): Long {
+        val runtime = Runtime.getRuntime()
+        repeat(3) { System.gc() }
+        return runtime.totalMemory() - runtime.freeMemory()
+    }
+
+    companion object {
+        private const val MEASURED_CONFIGS = 1000
+        private const val CONFIG = "[Interface]\nPrivateKey = TFlmmEUC7V7VtiDYLKsbP5rySTKLIZq1yn8lMqK83wo=\n" +
+            "Address = 10.64.7.18/32, fc00:bbbb:bbbb:bb01::1:711/128\nDNS = 193.138.218.74\n" +
+            "[Peer]\nPublicKey = vBN7qyUTb5lJtWYJ8LhbPio1Z4RcyBPGnqFBGn6O6Qg=\n" +
+            "AllowedIPs = 0.0.0.0/0, ::/0\nEndpoint = 185.65.135.224:51820\n"
+    }
+}
@@ -31,6 +31,33 @@ public class KeyPair {
         publicKey = Key.generatePublicKey(privateKey);
     }
 
+    /**
+     * Creates a key pair from a private key and the public key previously derived from it,
+     * skipping the derivation. The caller is responsible for the keys belonging together.
+     *
+     * @param privateKey a private key
+     * @param publicKey the public key derived from {@code privateKey}
+     */
+    public KeyPair(final Key privateKey, final Key publicKey) {
+        this.privateKey = privateKey;
+        this.publicKey = publicKey;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (obj == this)
+            return true;
+        if (obj == null || obj.getClass() != getClass())
+            return false;
+        // The public key is derived from the private key, so comparing the latter is enough.
+        return privateKey.equals(((KeyPair) obj).privateKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return privateKey.hashCode();
+    }
+
     /**
      * Returns the private key from the key pair.
      *
@@ -11,6 +11,8 @@ import "C"
 
 import (
 	"bufio"
+	"encoding/binary"
+	"encoding/hex"
 	"golang.org/x/sys/unix"
 	"golang.zx2c4.com/wireguard/device"
 	"golang.zx2c4.com/wireguard/ipc"
@@ -22,6 +24,7 @@ import (
 	"os"
 	"os/signal"
 	"runtime"
+	"strconv"
 	"strings"
 	"unsafe"
 )
@@ -149,6 +152,19 @@ func wgTurnOff(tunnelHandle int32) {
 	handle.device.Close()
 }
 
+//export wgSetConfig
+func wgSetConfig(tunnelHandle int32, settings string) int32 {
+	handle, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return -1
+	}
+	setError := handle.device.IpcSetOperation(bufio.NewReader(strings.NewReader(settings)))
+	if setError != nil {
+		return -2
+	}
+	return 0
+}
+
 //export wgGetSocketV4
 func wgGetSocketV4(tunnelHandle int32) int32 {
 	handle, ok := tunnelHandles[tunnelHandle]
@@ -191,6 +207,107 @@ func wgGetConfig(tunnelHandle int32) *C.char {
 	return C.CString(settings.String())
 }
 
+const (
+	statisticsHeaderSize = 8
+	statisticsRecordSize = 80
+)
+
+// The peer statistics are written as a header of two little-endian uint32s, the size of each
+// record and the number of records, followed by one fixed-size record per peer:
+//
+//	[0:32]  public key
+//	[32:40] rx bytes
+//	[40:48] tx bytes
+//	[48:56] latest handshake, in milliseconds since the epoch, or 0 if there was none
+//	[56:58] endpoint port
+//	[58]    endpoint address length: 0 if there is no endpoint, otherwise 4 or 16
+//	[59:64] reserved
+//	[64:80] endpoint address
+func putPeerStatistics(record []byte, publicKey []byte, rx, tx, handshakeSec, handshakeNsec uint64, endpoint string) {
+	copy(record[0:32], publicKey)
+	binary.LittleEndian.PutUint64(record[32:40], rx)
+	binary.LittleEndian.PutUint64(record[40:48], tx)
+	binary.LittleEndian.PutUint64(record[48:56], handshakeSec*1000+handshakeNsec/1000000)
+	if host, port, err := net.SplitHostPort(endpoint); err == nil {
+		if ip := net.ParseIP(host); ip != nil {
+			if ip4 := ip.To4(); ip4 != nil {
+				ip = ip4
+			}
+			p, _ := strconv.ParseUint(port, 10, 16)
+			binary.LittleEndian.PutUint16(record[56:58], uint16(p))
+			record[58] = byte(len(ip))
+			copy(record[64:80], ip)
+		}
+	}
+}
+
+//export wgGetStatistics
+func wgGetStatistics(tunnelHandle int32, buffer unsafe.Pointer, capacity int32) int32 {
+	handle, ok := tunnelHandles[tunnelHandle]
+	if !ok {
+		return -1
+	}
+	settings := new(bytes.Buffer)
+	writer := bufio.NewWriter(settings)
+	err := handle.device.IpcGetOperation(writer)
+	if err != nil {
+		return -2
+	}
+	writer.Flush()
+
+	var out []byte
+	count := 0
+	var publicKey []byte
+	var rx, tx, handshakeSec, handshakeNsec uint64
+	var endpoint string
+	flush := func() {
+		if publicKey != nil {
+			record := make([]byte, statisticsRecordSize)
+			putPeerStatistics(record, publicKey, rx, tx, handshakeSec, handshakeNsec, endpoint)
+			out = append(out, record...)
+			count++
+		}
+		publicKey, endpoint = nil, ""
+		rx, tx, handshakeSec, handshakeNsec = 0, 0, 0, 0
+	}
+	scanner := bufio.NewScanner(settings)
+	for scanner.Scan() {
+		parts := strings.SplitN(scanner.Text(), "=", 2)
+		if len(parts) != 2 {
+			continue
+		}
+		switch parts[0] {
+		case "public_key":
+			flush()
+			if key, err := hex.DecodeString(parts[1]); err == nil && len(key) == 32 {
+				publicKey = key
+			}
+		case "endpoint":
+			endpoint = parts[1]
+		case "rx_bytes":
+			rx, _ = strconv.ParseUint(parts[1], 10, 64)
+		case "tx_bytes":
+			tx, _ = strconv.ParseUint(parts[1], 10, 64)
+		case "last_handshake_time_sec":
+			handshakeSec, _ = strconv.ParseUint(parts[1], 10, 64)
+		case "last_handshake_time_nsec":
+			handshakeNsec, _ = strconv.ParseUint(parts[1], 10, 64)
+		}
+	}
+	flush()
+
+	// If the buffer is too small, report the size needed so that the caller can retry.
+	length := statisticsHeaderSize + len(out)
+	if length > int(capacity) {
+		return int32(length)
+	}
+	dst := (*[1 << 30]byte)(buffer)[:capacity:capacity]
+	binary.LittleEndian.PutUint32(dst[0:4], statisticsRecordSize)
+	binary.LittleEndian.PutUint32(dst[4:8], uint32(count))
+	copy(dst[statisticsHeaderSize:], out)
+	return int32(length)
+}
+
 //export wgVersion
 func wgVersion() *C.char {
 	return C.CString(device.WireGuardGoVersion)